@@ -27,15 +27,32 @@ import com.mku.salmon.integrity.IntegrityException;
 import com.mku.salmon.streams.EncryptionFormat;
 import com.mku.streams.RandomAccessStream;
 import com.mku.streams.MemoryStream;
+import com.mku.salmon.integrity.HMACSHA256Provider;
+import com.mku.salmon.integrity.IHashProvider;
 import com.mku.salmon.integrity.Integrity;
 import com.mku.salmon.streams.EncryptionMode;
 import com.mku.salmon.streams.AesStream;
+import com.mku.salmon.streams.AesParallelInputStream;
 import com.mku.salmon.transform.AesCTRTransformer;
+import com.mku.salmon.transform.ICTRTransformer;
+import com.mku.salmon.transform.TransformerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -43,6 +60,16 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class Decryptor {
 
+    /**
+     * Default data size below which data are decrypted in a single thread.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4 * Integrity.DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Number of parts per thread the data are split to so threads that finish early can take more work.
+     */
+    private static final int PARTS_PER_THREAD = 4;
+
     /**
      * The number of parallel threads to use.
      */
@@ -51,13 +78,34 @@ public class Decryptor {
     /**
      * Executor for parallel tasks.
      */
-    private ExecutorService executor;
+    private Executor executor;
+
+    /**
+     * True if the executor was created by this decryptor and should be shut down on close.
+     */
+    private final boolean ownsExecutor;
 
     /**
      * The buffer size to use.
      */
     private final int bufferSize;
 
+    /**
+     * The data size below which data are decrypted in a single thread.
+     */
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Hash provider for decrypting into caller buffers.
+     */
+    private static final IHashProvider hashProvider = new HMACSHA256Provider();
+
+    /**
+     * Transformer of each calling thread for decrypting into caller buffers.
+     */
+    private final ThreadLocal<ICTRTransformer> transformer = ThreadLocal.withInitial(
+            () -> TransformerFactory.create(AesStream.getAesProviderType()));
+
     /**
      * Instantiate an encryptor.
      */
@@ -88,9 +136,57 @@ public class Decryptor {
         this.threads = threads;
         if (threads > 1)
             executor = Executors.newFixedThreadPool(threads);
+        this.ownsExecutor = true;
         this.bufferSize = bufferSize;
     }
 
+    /**
+     * Instantiate a decryptor that runs parallel tasks on a shared executor.
+     *
+     * @param executor The executor to use, for example a {@link java.util.concurrent.ForkJoinPool}.
+     *                 The executor is not shut down when the decryptor is closed.
+     * @param threads  The maximum number of parallel tasks per operation.
+     */
+    public Decryptor(Executor executor, int threads) {
+        this(executor, threads, Integrity.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Instantiate a decryptor that runs parallel tasks on a shared executor.
+     *
+     * @param executor   The executor to use, for example a {@link java.util.concurrent.ForkJoinPool}.
+     *                   The executor is not shut down when the decryptor is closed.
+     * @param threads    The maximum number of parallel tasks per operation.
+     * @param bufferSize The buffer size to use. It is recommended for performance  to use
+     *                   a multiple of the chunk size if you enabled integrity
+     *                   otherwise a multiple of the AES block size (16 bytes).
+     */
+    public Decryptor(Executor executor, int threads, int bufferSize) {
+        if (executor == null)
+            throw new IllegalArgumentException("Executor is missing");
+        this.threads = Math.max(1, threads);
+        this.executor = executor;
+        this.ownsExecutor = false;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Get the data size below which data are decrypted in a single thread.
+     *
+     * @return The threshold in bytes.
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Set the data size below which data are decrypted in a single thread.
+     *
+     * @param parallelThreshold The threshold in bytes.
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
 
     /**
      * Decrypts a byte array using the embedded nonce.
@@ -190,12 +286,16 @@ public class Decryptor {
             throw new SecurityException("Key is missing");
         if (format == EncryptionFormat.Generic && nonce == null)
             throw new SecurityException("Need to specify a nonce if the file doesn't have a header");
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
 
         MemoryStream inputStream = new MemoryStream(data);
         if (format == EncryptionFormat.Salmon) {
             Header header = Header.readHeaderData(inputStream);
-            if (header != null)
+            if (header != null) {
+                header.checkVersion(Generator.VERSION);
                 chunkSize = header.getChunkSize();
+            }
         } else if (integrity) {
             chunkSize = chunkSize <= 0 ? Integrity.DEFAULT_CHUNK_SIZE : chunkSize;
         } else {
@@ -205,7 +305,16 @@ public class Decryptor {
         int realSize = (int) AesStream.getOutputSize(EncryptionMode.Decrypt, data.length, format, chunkSize);
         byte[] outData = new byte[realSize];
 
-        if (threads == 1) {
+        if (isSmallPayload(realSize, format, integrity, chunkSize)) {
+            try {
+                decryptInto(data, 0, data.length, outData, 0,
+                        key, nonce, format, integrity, hashKey);
+            } catch (SecurityException | IntegrityException ex) {
+                // wrap the same way as the stream path so callers see the same exceptions
+                throw new SecurityException("Could not decrypt data",
+                        new IOException("Could not read from stream: ", ex));
+            }
+        } else if (threads == 1 || executor == null || data.length < parallelThreshold) {
             decryptData(inputStream, 0, realSize, outData, key, nonce, format,
                     integrity, hashKey, chunkSize);
         } else {
@@ -217,8 +326,266 @@ public class Decryptor {
         return outData;
     }
 
+    /**
+     * Check if the decrypted data fit in a single chunk so they can be decrypted directly
+     * without the overhead of setting up streams.
+     *
+     * @param length    The length of the decrypted data.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity True if integrity is enabled.
+     * @param chunkSize The chunk size.
+     * @return True if the small payload path can be used.
+     */
+    private static boolean isSmallPayload(int length, EncryptionFormat format,
+                                          boolean integrity, int chunkSize) {
+        if (format == EncryptionFormat.Generic && integrity)
+            return false;
+        return length <= (chunkSize > 0 ? chunkSize : Integrity.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Decrypt data into a buffer provided by the caller. The data are decrypted in the
+     * calling thread. If the format is Generic the source and the destination can be the
+     * same buffer with the same offset for in-place decryption.
+     *
+     * @param src        The buffer with the encrypted data.
+     * @param srcOffset  The offset of the encrypted data in the source buffer.
+     * @param length     The length of the encrypted data.
+     * @param dest       The buffer to write the decrypted data to, see {@link AesStream#getOutputSize}.
+     * @param destOffset The offset in the destination buffer.
+     * @param key        The AES key to use for decryption.
+     * @param nonce      The nonce to use for decryption, not needed if the format is Salmon.
+     * @param format     The format to use, see {@link EncryptionFormat}
+     * @param integrity  Verify hash integrity in the data.
+     * @param hashKey    The hash key to be used for integrity.
+     * @return The number of bytes written to the destination buffer.
+     * @throws SecurityException  Thrown if the key and nonce are not provided.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     * @throws IllegalArgumentException Thrown if the destination buffer is too small.
+     */
+    public int decryptInto(byte[] src, int srcOffset, int length, byte[] dest, int destOffset,
+                           byte[] key, byte[] nonce, EncryptionFormat format,
+                           boolean integrity, byte[] hashKey) {
+        if (key == null)
+            throw new SecurityException("Key is missing");
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
+        if (format == EncryptionFormat.Generic) {
+            if (nonce == null)
+                throw new SecurityException("Need to specify a nonce if the file doesn't have a header");
+            if (dest.length - destOffset < length)
+                throw new IllegalArgumentException("Destination buffer is too small, required: " + length);
+            // the output is written while the input is read so only the same offset is safe
+            if (src == dest && srcOffset != destOffset
+                    && srcOffset < destOffset + length && destOffset < srcOffset + length)
+                throw new IllegalArgumentException("In-place decryption needs the same source and destination offset");
+            ICTRTransformer transformer = getTransformer(key, nonce);
+            transformer.syncCounter(0);
+            return transformer.decryptData(src, srcOffset, dest, destOffset, length);
+        }
+
+        Header header = Header.readHeaderData(src, srcOffset);
+        if (header == null || length < Header.HEADER_LENGTH)
+            throw new SecurityException("Could not read header");
+        header.checkVersion(Generator.VERSION);
+        int chunkSize = header.getChunkSize();
+        if (integrity && chunkSize == 0)
+            throw new SecurityException("Cannot check integrity if file doesn't support it");
+        if (integrity && hashKey == null)
+            throw new SecurityException("You need a hash to use with integrity");
+        long outSize = AesStream.getOutputSize(EncryptionMode.Decrypt, length, format, chunkSize);
+        if (dest.length - destOffset < outSize)
+            throw new IllegalArgumentException("Destination buffer is too small, required: " + outSize);
+        if (src == dest && srcOffset < destOffset + outSize && destOffset < srcOffset + length)
+            throw new IllegalArgumentException("In-place decryption is only supported for the Generic format");
+
+        ICTRTransformer transformer = getTransformer(key, header.getNonce());
+        int pos = srcOffset + (int) Header.HEADER_LENGTH;
+        int end = srcOffset + length;
+        if (chunkSize <= 0) {
+            transformer.syncCounter(0);
+            return transformer.decryptData(src, pos, dest, destOffset, end - pos);
+        }
+        int outPos = destOffset;
+        while (pos + Generator.HASH_RESULT_LENGTH < end) {
+            int dataPos = pos + Generator.HASH_RESULT_LENGTH;
+            int count = Math.min(chunkSize, end - dataPos);
+            if (integrity) {
+                byte[] hash = Integrity.calculateHash(hashProvider, src, dataPos, count, hashKey,
+                        outPos == destOffset ? header.getHeaderData() : null);
+                for (int k = 0; k < hash.length; k++) {
+                    if (hash[k] != src[pos + k])
+                        throw new IntegrityException("Data corrupt or tampered");
+                }
+            }
+            transformer.syncCounter(outPos - destOffset);
+            outPos += transformer.decryptData(src, dataPos, dest, outPos, count);
+            pos = dataPos + count;
+        }
+        return outPos - destOffset;
+    }
+
+    /**
+     * Decrypt the remaining data of a buffer into a buffer provided by the caller.
+     * The positions of both buffers are advanced. If the format is Generic the source and
+     * the destination can be the same buffer for in-place decryption.
+     *
+     * @param src       The buffer with the encrypted data.
+     * @param dest      The buffer to write the decrypted data to, see {@link AesStream#getOutputSize}.
+     * @param key       The AES key to use for decryption.
+     * @param nonce     The nonce to use for decryption, not needed if the format is Salmon.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity Verify hash integrity in the data.
+     * @param hashKey   The hash key to be used for integrity.
+     * @return The number of bytes written to the destination buffer.
+     * @throws SecurityException  Thrown if the key and nonce are not provided.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     * @throws IllegalArgumentException Thrown if the destination buffer is too small.
+     */
+    public int decryptInto(ByteBuffer src, ByteBuffer dest, byte[] key, byte[] nonce,
+                           EncryptionFormat format, boolean integrity, byte[] hashKey) {
+        int length = src.remaining();
+        byte[] srcArray;
+        int srcOffset;
+        if (src.hasArray()) {
+            srcArray = src.array();
+            srcOffset = src.arrayOffset() + src.position();
+        } else {
+            srcArray = new byte[length];
+            src.duplicate().get(srcArray);
+            srcOffset = 0;
+        }
+        long outSize = length;
+        if (format == EncryptionFormat.Salmon) {
+            Header header = Header.readHeaderData(srcArray, srcOffset);
+            if (header == null)
+                throw new SecurityException("Could not read header");
+            outSize = AesStream.getOutputSize(EncryptionMode.Decrypt, length, format, header.getChunkSize());
+        }
+        if (dest.remaining() < outSize)
+            throw new IllegalArgumentException("Destination buffer is too small, required: " + outSize);
+        int bytesWritten;
+        if (dest.hasArray()) {
+            bytesWritten = decryptInto(srcArray, srcOffset, length,
+                    dest.array(), dest.arrayOffset() + dest.position(),
+                    key, nonce, format, integrity, hashKey);
+        } else {
+            byte[] destArray = new byte[(int) outSize];
+            bytesWritten = decryptInto(srcArray, srcOffset, length, destArray, 0,
+                    key, nonce, format, integrity, hashKey);
+            dest.duplicate().put(destArray, 0, bytesWritten);
+        }
+        src.position(src.position() + length);
+        dest.position(dest.position() + bytesWritten);
+        return bytesWritten;
+    }
+
+    /**
+     * Get the transformer of the calling thread initialized with the key and nonce.
+     *
+     * @param key   The AES key.
+     * @param nonce The nonce.
+     * @return The transformer
+     */
+    private ICTRTransformer getTransformer(byte[] key, byte[] nonce) {
+        ICTRTransformer transformer = this.transformer.get();
+        if (!Arrays.equals(transformer.getKey(), key) || !Arrays.equals(transformer.getNonce(), nonce))
+            transformer.init(key.clone(), nonce.clone());
+        return transformer;
+    }
+
+    /**
+     * Decrypt the data from an input stream to an output stream. The data are decrypted
+     * in bounded windows so the size of the data is not limited by memory.
+     * The streams are not closed.
+     *
+     * @param input  The input stream with the encrypted data.
+     * @param output The output stream to write the decrypted data to.
+     * @param key    The AES key to use for decryption.
+     * @param nonce  The nonce to use for decryption.
+     * @param format The format to use, see {@link EncryptionFormat}
+     * @return The number of bytes decrypted.
+     * @throws SecurityException  Thrown if the key and nonce are not provided.
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public long decrypt(InputStream input, OutputStream output, byte[] key, byte[] nonce,
+                        EncryptionFormat format)
+            throws IOException {
+        return decrypt(input, output, key, nonce, format, false, null);
+    }
+
+    /**
+     * Decrypt the data from an input stream to an output stream using the nonce and the integrity
+     * hash key. The data are decrypted in bounded windows so the size of the data is not limited
+     * by memory. If the decryptor uses multiple threads the chunks are decrypted in parallel
+     * and written in order. The streams are not closed.
+     *
+     * @param input     The input stream with the encrypted data.
+     * @param output    The output stream to write the decrypted data to.
+     * @param key       The AES key to use for decryption.
+     * @param nonce     The nonce to use for decryption.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity Verify hash integrity in the data.
+     * @param hashKey   The hash key to be used for integrity.
+     * @return The number of bytes decrypted.
+     * @throws SecurityException  Thrown if the key and nonce are not provided.
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public long decrypt(InputStream input, OutputStream output, byte[] key, byte[] nonce,
+                        EncryptionFormat format, boolean integrity, byte[] hashKey)
+            throws IOException {
+        if (key == null)
+            throw new SecurityException("Key is missing");
+        if (format == EncryptionFormat.Generic && nonce == null)
+            throw new SecurityException("Need to specify a nonce if the file doesn't have a header");
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
+
+        Executor streamExecutor = executor != null ? executor : Runnable::run;
+        AesParallelInputStream stream = new AesParallelInputStream(key, nonce, input,
+                format, integrity, hashKey, streamExecutor,
+                threads * AesParallelInputStream.DEFAULT_SEGMENTS_PER_THREAD);
+        long totalBytes = 0;
+        byte[] buff = new byte[bufferSize];
+        int bytesRead;
+        while ((bytesRead = stream.read(buff, 0, buff.length)) > 0) {
+            output.write(buff, 0, bytesRead);
+            totalBytes += bytesRead;
+        }
+        output.flush();
+        return totalBytes;
+    }
+
+    /**
+     * Decrypt the data from a channel to another channel using the nonce and the integrity
+     * hash key. See {@link #decrypt(InputStream, OutputStream, byte[], byte[], EncryptionFormat, boolean, byte[])}.
+     * The channels are not closed.
+     *
+     * @param input     The channel with the encrypted data.
+     * @param output    The channel to write the decrypted data to.
+     * @param key       The AES key to use for decryption.
+     * @param nonce     The nonce to use for decryption.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity Verify hash integrity in the data.
+     * @param hashKey   The hash key to be used for integrity.
+     * @return The number of bytes decrypted.
+     * @throws SecurityException  Thrown if the key and nonce are not provided.
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public long decrypt(ReadableByteChannel input, WritableByteChannel output, byte[] key, byte[] nonce,
+                        EncryptionFormat format, boolean integrity, byte[] hashKey)
+            throws IOException {
+        return decrypt(Channels.newInputStream(input), Channels.newOutputStream(output),
+                key, nonce, format, integrity, hashKey);
+    }
+
     /**
      * Decrypt stream using parallel threads.
+     * The data are split into chunk aligned parts, several per thread, and each thread
+     * takes the next available part when it is done so a slow part does not stall the others.
      *
      * @param data      The input data to be decrypted
      * @param outData   The output buffer with the decrypted data.
@@ -228,12 +595,11 @@ public class Decryptor {
      * @param format    The format to use, see {@link EncryptionFormat}
      * @param chunkSize The chunk size.
      * @param integrity True to verify integrity.
+     * @throws IOException Thrown if the operation is interrupted.
      */
     private void decryptDataParallel(byte[] data, byte[] outData,
                                      byte[] key, byte[] hashKey, byte[] nonce, EncryptionFormat format,
-                                     int chunkSize, boolean integrity) {
-        int runningThreads = 1;
-        long partSize = data.length;
+                                     int chunkSize, boolean integrity) throws IOException {
 
         // if we want to check integrity we align to the chunk size otherwise to the AES Block
         long minPartSize = AesCTRTransformer.BLOCK_SIZE;
@@ -242,29 +608,27 @@ public class Decryptor {
         else if (integrity)
             minPartSize = Integrity.DEFAULT_CHUNK_SIZE;
 
-        if (partSize > minPartSize) {
-            partSize = (int) Math.ceil(data.length / (float) threads);
-            if (partSize > minPartSize)
-                partSize -= partSize % minPartSize;
-            else
-                partSize = minPartSize;
-            runningThreads = (int) (data.length / partSize);
-            if (runningThreads > this.threads)
-                runningThreads = this.threads;
-        }
+        long partSize = (long) Math.ceil(outData.length / (double) (threads * PARTS_PER_THREAD));
+        if (partSize > minPartSize)
+            partSize -= partSize % minPartSize;
+        else
+            partSize = minPartSize;
+        int parts = (int) ((outData.length + partSize - 1) / partSize);
+        int runningThreads = Math.min(threads, parts);
 
-        submitDecryptJobs(runningThreads, partSize, data, outData,
+        submitDecryptJobs(runningThreads, partSize, parts, data, outData,
                 key, hashKey, nonce, format,
                 integrity, chunkSize);
     }
 
     /**
-     * Submit decryption parallel jobs.
+     * Submit decryption parallel jobs. The calling thread also decrypts parts.
      *
-     * @param runningThreads The number of threads to submit.
-     * @param partSize       The data length of each part that belongs to each thread.
+     * @param runningThreads The number of threads to decrypt with.
+     * @param partSize       The data length of each part.
+     * @param parts          The number of parts.
      * @param data           The buffer of data you want to decrypt. This is a shared byte array across all threads where each
-     *                       thread will read each own part.
+     *                       thread will read the parts it takes.
      * @param outData        The buffer of data containing the decrypted data.
      * @param key            The AES key.
      * @param hashKey        The hash key for integrity validation.
@@ -272,37 +636,34 @@ public class Decryptor {
      * @param format         The format to use, see {@link EncryptionFormat}
      * @param integrity      True to verify the data integrity.
      * @param chunkSize      The chunk size.
+     * @throws IOException Thrown if the operation is interrupted.
      */
-    private void submitDecryptJobs(int runningThreads, long partSize, byte[] data, byte[] outData,
+    private void submitDecryptJobs(int runningThreads, long partSize, int parts, byte[] data, byte[] outData,
                                    byte[] key, byte[] hashKey, byte[] nonce, EncryptionFormat format,
-                                   boolean integrity, int chunkSize) {
-        final CountDownLatch done = new CountDownLatch(runningThreads);
+                                   boolean integrity, int chunkSize) throws IOException {
+        // count the finished parts so the calling thread returns as soon as all the parts
+        // are done even if some of the helper tasks have not been scheduled yet
+        final CountDownLatch done = new CountDownLatch(parts);
         AtomicReference<Exception> ex = new AtomicReference<>();
-        for (int i = 0; i < runningThreads; i++) {
-            final int index = i;
-            executor.submit(() ->
-            {
-                try {
-                    long start = partSize * index;
-                    long length;
-                    if (index == runningThreads - 1)
-                        length = data.length - start;
-                    else
-                        length = partSize;
-                    MemoryStream ins = new MemoryStream(data);
-                    decryptData(ins, start, length, outData,
-                            key, nonce, format,
-                            integrity, hashKey, chunkSize);
-                } catch (Exception ex1) {
-                    ex.set(ex1);
-                }
-                done.countDown();
-            });
+        AtomicInteger nextPart = new AtomicInteger();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Runnable job = () -> decryptParts(data, outData, partSize, parts, nextPart, cancelled, done, ex,
+                key, nonce, format, integrity, hashKey, chunkSize);
+        for (int i = 0; i < runningThreads - 1; i++) {
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException ex1) {
+                // the calling thread will take the remaining parts
+                break;
+            }
         }
-
+        job.run();
         try {
             done.await();
-        } catch (InterruptedException ignored) {
+        } catch (InterruptedException ex1) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Decryption was interrupted");
         }
 
         if (ex.get() != null) {
@@ -314,6 +675,73 @@ public class Decryptor {
         }
     }
 
+    /**
+     * Decrypt the next available parts until there are no more parts.
+     *
+     * @param data      The data to be decrypted.
+     * @param outData   The buffer with the decrypted data.
+     * @param partSize  The data length of each part.
+     * @param parts     The number of parts.
+     * @param nextPart  The next part to be decrypted shared by all threads.
+     * @param cancelled Set if the operation is cancelled.
+     * @param done      Counted down when each part is finished or will not be decrypted.
+     * @param error     Set to the first error.
+     * @param key       The AES key to be used.
+     * @param nonce     The nonce to be used.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity True to verify integrity.
+     * @param hashKey   The hash key to be used for integrity verification.
+     * @param chunkSize The chunk size.
+     */
+    private void decryptParts(byte[] data, byte[] outData, long partSize, int parts,
+                              AtomicInteger nextPart, AtomicBoolean cancelled,
+                              CountDownLatch done, AtomicReference<Exception> error,
+                              byte[] key, byte[] nonce, EncryptionFormat format,
+                              boolean integrity, byte[] hashKey, int chunkSize) {
+        MemoryStream inputStream = new MemoryStream(data);
+        AesStream stream = null;
+        boolean inPart = false;
+        try {
+            stream = new AesStream(key, nonce, EncryptionMode.Decrypt, inputStream, format,
+                    integrity, hashKey, chunkSize);
+            int part;
+            while (!cancelled.get() && (part = nextPart.getAndIncrement()) < parts) {
+                inPart = true;
+                long start = part * partSize;
+                int length = (int) Math.min(partSize, outData.length - start);
+                stream.setPosition(start);
+                int totalBytesRead = 0;
+                int bytesRead;
+                while (totalBytesRead < length && (bytesRead = stream.read(outData,
+                        (int) start + totalBytesRead, length - totalBytesRead)) > 0)
+                    totalBytesRead += bytesRead;
+                inPart = false;
+                done.countDown();
+            }
+        } catch (IOException | RuntimeException ex) {
+            Exception err = ex;
+            if (ex instanceof IOException || ex instanceof SecurityException || ex instanceof IntegrityException)
+                err = new SecurityException("Could not decrypt data", ex);
+            // the error is set before the failed part is counted down so the caller sees it
+            error.compareAndSet(null, err);
+            cancelled.set(true);
+            if (inPart)
+                done.countDown();
+        } finally {
+            try {
+                inputStream.close();
+                if (stream != null)
+                    stream.close();
+            } catch (IOException ignored) {
+            }
+            // release the parts that will not be decrypted
+            if (cancelled.get()) {
+                while (nextPart.getAndIncrement() < parts)
+                    done.countDown();
+            }
+        }
+    }
+
     /**
      * Decrypt the data stream.
      *
@@ -371,7 +799,7 @@ public class Decryptor {
      * Close the decryptor and release associated resources
      */
     public void close() {
-        if (executor != null)
-            executor.shutdownNow();
+        if (ownsExecutor && executor != null)
+            ((ExecutorService) executor).shutdownNow();
     }
 }
@@ -23,19 +23,36 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
 */
 
+import com.mku.salmon.integrity.HMACSHA256Provider;
+import com.mku.salmon.integrity.IHashProvider;
 import com.mku.salmon.integrity.Integrity;
 import com.mku.salmon.integrity.IntegrityException;
+import com.mku.salmon.streams.AesParallelOutputStream;
 import com.mku.salmon.streams.AesStream;
 import com.mku.salmon.streams.EncryptionFormat;
 import com.mku.salmon.streams.EncryptionMode;
 import com.mku.salmon.transform.AesCTRTransformer;
+import com.mku.salmon.transform.ICTRTransformer;
+import com.mku.salmon.transform.TransformerFactory;
 import com.mku.streams.MemoryStream;
 import com.mku.streams.RandomAccessStream;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -43,6 +60,16 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class Encryptor {
 
+    /**
+     * Default data size below which data are encrypted in a single thread.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4 * Integrity.DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Number of parts per thread the data are split to so threads that finish early can take more work.
+     */
+    private static final int PARTS_PER_THREAD = 4;
+
     /**
      * The number of parallel threads to use.
      */
@@ -51,13 +78,34 @@ public class Encryptor {
     /**
      * Executor for parallel tasks.
      */
-    private ExecutorService executor;
+    private Executor executor;
+
+    /**
+     * True if the executor was created by this encryptor and should be shut down on close.
+     */
+    private final boolean ownsExecutor;
 
     /**
      * The buffer size to use.
      */
     private final int bufferSize;
 
+    /**
+     * The data size below which data are encrypted in a single thread.
+     */
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Hash provider for encrypting into caller buffers.
+     */
+    private static final IHashProvider hashProvider = new HMACSHA256Provider();
+
+    /**
+     * Transformer of each calling thread for encrypting into caller buffers.
+     */
+    private final ThreadLocal<ICTRTransformer> transformer = ThreadLocal.withInitial(
+            () -> TransformerFactory.create(AesStream.getAesProviderType()));
+
     /**
      * Instantiate an encryptor.
      */
@@ -88,9 +136,58 @@ public class Encryptor {
         this.threads = threads;
 		if(threads > 1)
 			executor = Executors.newFixedThreadPool(threads);
+        this.ownsExecutor = true;
         this.bufferSize = bufferSize;
     }
 
+    /**
+     * Instantiate an encryptor that runs parallel tasks on a shared executor.
+     *
+     * @param executor The executor to use, for example a {@link java.util.concurrent.ForkJoinPool}.
+     *                 The executor is not shut down when the encryptor is closed.
+     * @param threads  The maximum number of parallel tasks per operation.
+     */
+    public Encryptor(Executor executor, int threads) {
+        this(executor, threads, Integrity.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Instantiate an encryptor that runs parallel tasks on a shared executor.
+     *
+     * @param executor   The executor to use, for example a {@link java.util.concurrent.ForkJoinPool}.
+     *                   The executor is not shut down when the encryptor is closed.
+     * @param threads    The maximum number of parallel tasks per operation.
+     * @param bufferSize The buffer size to use. It is recommended for performance  to use
+     *                   a multiple of the chunk size if you enabled integrity
+     *                   otherwise a multiple of the AES block size (16 bytes).
+     */
+    public Encryptor(Executor executor, int threads, int bufferSize) {
+        if (executor == null)
+            throw new IllegalArgumentException("Executor is missing");
+        this.threads = Math.max(1, threads);
+        this.executor = executor;
+        this.ownsExecutor = false;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Get the data size below which data are encrypted in a single thread.
+     *
+     * @return The threshold in bytes.
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Set the data size below which data are encrypted in a single thread.
+     *
+     * @param parallelThreshold The threshold in bytes.
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
     /**
      * Encrypt a byte array and embedded the nonce.
      *
@@ -167,6 +264,8 @@ public class Encryptor {
             throw new SecurityException("Key is missing");
         if (nonce == null)
             throw new SecurityException("Nonce is missing");
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
 
         if (integrity)
             chunkSize = chunkSize <= 0 ? Integrity.DEFAULT_CHUNK_SIZE : chunkSize;
@@ -176,7 +275,10 @@ public class Encryptor {
         int realSize = (int) AesStream.getOutputSize(EncryptionMode.Encrypt, data.length, format, chunkSize);
         byte[] outData = new byte[realSize];
 
-        if (threads == 1) {
+        if (isSmallPayload(data.length, format, integrity, chunkSize)) {
+            encryptInto(data, 0, data.length, outData, 0,
+                    key, nonce, format, integrity, hashKey, chunkSize);
+        } else if (threads == 1 || executor == null || data.length < parallelThreshold) {
             MemoryStream inputStream = new MemoryStream(data);
             encryptData(inputStream, 0, data.length, outData,
                     key, nonce, format, integrity, hashKey, chunkSize);
@@ -188,8 +290,276 @@ public class Encryptor {
         return outData;
     }
 
+    /**
+     * Check if the data fit in a single chunk so they can be encrypted directly
+     * without the overhead of setting up streams.
+     *
+     * @param length    The length of the data.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity True if integrity is enabled.
+     * @param chunkSize The chunk size.
+     * @return True if the small payload path can be used.
+     */
+    private static boolean isSmallPayload(int length, EncryptionFormat format,
+                                          boolean integrity, int chunkSize) {
+        if (format == EncryptionFormat.Generic && integrity)
+            return false;
+        return length <= (chunkSize > 0 ? chunkSize : Integrity.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Encrypt data into a buffer provided by the caller. The data are encrypted in the
+     * calling thread. If the format is Generic the source and the destination can be the
+     * same buffer with the same offset for in-place encryption.
+     *
+     * @param src        The buffer with the data to encrypt.
+     * @param srcOffset  The offset of the data in the source buffer.
+     * @param length     The length of the data.
+     * @param dest       The buffer to write the encrypted data to, see {@link AesStream#getOutputSize}.
+     * @param destOffset The offset in the destination buffer.
+     * @param key        The AES key to be used.
+     * @param nonce      The nonce to be used.
+     * @param format     The format to use, see {@link EncryptionFormat}
+     * @param integrity  True if you want to calculate and store hash signatures for each chunkSize.
+     * @param hashKey    Hash key to be used for all chunks.
+     * @param chunkSize  The chunk size.
+     * @return The number of bytes written to the destination buffer.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IntegrityException Thrown if the hash signatures cannot be calculated.
+     * @throws IllegalArgumentException Thrown if the destination buffer is too small.
+     */
+    public int encryptInto(byte[] src, int srcOffset, int length, byte[] dest, int destOffset,
+                           byte[] key, byte[] nonce, EncryptionFormat format,
+                           boolean integrity, byte[] hashKey, int chunkSize) {
+        if (key == null)
+            throw new SecurityException("Key is missing");
+        if (nonce == null)
+            throw new SecurityException("Nonce is missing");
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
+        if (format == EncryptionFormat.Generic)
+            integrity = false;
+        if (integrity)
+            chunkSize = chunkSize <= 0 ? Integrity.DEFAULT_CHUNK_SIZE : chunkSize;
+        else
+            chunkSize = 0;
+        if (integrity && hashKey == null)
+            throw new SecurityException("You need a hash to use with integrity");
+
+        long outSize = getEncryptedSize(length, format, integrity, chunkSize);
+        if (dest.length - destOffset < outSize)
+            throw new IllegalArgumentException("Destination buffer is too small, required: " + outSize);
+        if (src == dest && srcOffset < destOffset + outSize && destOffset < srcOffset + length) {
+            if (format != EncryptionFormat.Generic)
+                throw new IllegalArgumentException("In-place encryption is only supported for the Generic format");
+            // the output is written while the input is read so only the same offset is safe
+            if (srcOffset != destOffset)
+                throw new IllegalArgumentException("In-place encryption needs the same source and destination offset");
+        }
+
+        ICTRTransformer transformer = getTransformer(key, nonce);
+        if (format == EncryptionFormat.Generic) {
+            transformer.syncCounter(0);
+            return transformer.encryptData(src, srcOffset, dest, destOffset, length);
+        }
+
+        Header header = Header.writeHeaderData(dest, destOffset, nonce, chunkSize);
+        int pos = destOffset + (int) Header.HEADER_LENGTH;
+        if (chunkSize <= 0) {
+            transformer.syncCounter(0);
+            pos += transformer.encryptData(src, srcOffset, dest, pos, length);
+            return pos - destOffset;
+        }
+        for (int i = 0; i < length; i += chunkSize) {
+            int count = Math.min(chunkSize, length - i);
+            int dataPos = pos + Generator.HASH_RESULT_LENGTH;
+            transformer.syncCounter(i);
+            transformer.encryptData(src, srcOffset + i, dest, dataPos, count);
+            byte[] hash = Integrity.calculateHash(hashProvider, dest, dataPos, count, hashKey,
+                    i == 0 ? header.getHeaderData() : null);
+            System.arraycopy(hash, 0, dest, pos, hash.length);
+            pos = dataPos + count;
+        }
+        return pos - destOffset;
+    }
+
+    /**
+     * Encrypt the remaining data of a buffer into a buffer provided by the caller.
+     * The positions of both buffers are advanced. If the format is Generic the source and
+     * the destination can be the same buffer for in-place encryption.
+     *
+     * @param src       The buffer with the data to encrypt.
+     * @param dest      The buffer to write the encrypted data to, see {@link AesStream#getOutputSize}.
+     * @param key       The AES key to be used.
+     * @param nonce     The nonce to be used.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity True if you want to calculate and store hash signatures for each chunkSize.
+     * @param hashKey   Hash key to be used for all chunks.
+     * @param chunkSize The chunk size.
+     * @return The number of bytes written to the destination buffer.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IntegrityException Thrown if the hash signatures cannot be calculated.
+     * @throws IllegalArgumentException Thrown if the destination buffer is too small.
+     */
+    public int encryptInto(ByteBuffer src, ByteBuffer dest, byte[] key, byte[] nonce,
+                           EncryptionFormat format, boolean integrity, byte[] hashKey, int chunkSize) {
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
+        int length = src.remaining();
+        byte[] srcArray;
+        int srcOffset;
+        if (src.hasArray()) {
+            srcArray = src.array();
+            srcOffset = src.arrayOffset() + src.position();
+        } else {
+            srcArray = new byte[length];
+            src.duplicate().get(srcArray);
+            srcOffset = 0;
+        }
+        long outSize = getEncryptedSize(length, format, integrity, chunkSize);
+        if (dest.remaining() < outSize)
+            throw new IllegalArgumentException("Destination buffer is too small, required: " + outSize);
+        int bytesWritten;
+        if (dest.hasArray()) {
+            bytesWritten = encryptInto(srcArray, srcOffset, length,
+                    dest.array(), dest.arrayOffset() + dest.position(),
+                    key, nonce, format, integrity, hashKey, chunkSize);
+        } else {
+            byte[] destArray = new byte[(int) outSize];
+            bytesWritten = encryptInto(srcArray, srcOffset, length, destArray, 0,
+                    key, nonce, format, integrity, hashKey, chunkSize);
+            dest.duplicate().put(destArray, 0, bytesWritten);
+        }
+        src.position(src.position() + length);
+        dest.position(dest.position() + bytesWritten);
+        return bytesWritten;
+    }
+
+    /**
+     * Get the size of the encrypted data.
+     *
+     * @param length    The length of the data.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity True if hash signatures are stored.
+     * @param chunkSize The chunk size.
+     * @return The size of the encrypted data.
+     */
+    private static long getEncryptedSize(int length, EncryptionFormat format, boolean integrity, int chunkSize) {
+        if (format == EncryptionFormat.Generic || !integrity)
+            chunkSize = 0;
+        else if (chunkSize <= 0)
+            chunkSize = Integrity.DEFAULT_CHUNK_SIZE;
+        return AesStream.getOutputSize(EncryptionMode.Encrypt, length, format, chunkSize);
+    }
+
+    /**
+     * Get the transformer of the calling thread initialized with the key and nonce.
+     *
+     * @param key   The AES key.
+     * @param nonce The nonce.
+     * @return The transformer
+     */
+    private ICTRTransformer getTransformer(byte[] key, byte[] nonce) {
+        ICTRTransformer transformer = this.transformer.get();
+        if (!Arrays.equals(transformer.getKey(), key) || !Arrays.equals(transformer.getNonce(), nonce))
+            transformer.init(key.clone(), nonce.clone());
+        return transformer;
+    }
+
+    /**
+     * Encrypt the data from an input stream to an output stream. The data are encrypted
+     * in bounded windows so the size of the data is not limited by memory.
+     * The streams are not closed.
+     *
+     * @param input  The input stream with the data to encrypt.
+     * @param output The output stream to write the encrypted data to.
+     * @param key    The AES key to be used.
+     * @param nonce  The nonce to be used.
+     * @param format The format to use, see {@link EncryptionFormat}
+     * @return The number of bytes encrypted.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public long encrypt(InputStream input, OutputStream output, byte[] key, byte[] nonce,
+                        EncryptionFormat format)
+            throws IOException {
+        return encrypt(input, output, key, nonce, format, false, null, 0);
+    }
+
+    /**
+     * Encrypt the data from an input stream to an output stream using the nonce, the integrity
+     * hash key, and the chunk size. The data are encrypted in bounded windows so the size of
+     * the data is not limited by memory. If the encryptor uses multiple threads the chunks
+     * are encrypted in parallel and written in order. The streams are not closed.
+     *
+     * @param input     The input stream with the data to encrypt.
+     * @param output    The output stream to write the encrypted data to.
+     * @param key       The AES key to be used.
+     * @param nonce     The nonce to be used.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity True if you want to calculate and store hash signatures for each chunkSize.
+     * @param hashKey   Hash key to be used for all chunks.
+     * @param chunkSize The chunk size.
+     * @return The number of bytes encrypted.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public long encrypt(InputStream input, OutputStream output, byte[] key, byte[] nonce,
+                        EncryptionFormat format, boolean integrity, byte[] hashKey, int chunkSize)
+            throws IOException {
+        if (key == null)
+            throw new SecurityException("Key is missing");
+        if (nonce == null)
+            throw new SecurityException("Nonce is missing");
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
+
+        Executor streamExecutor = executor != null ? executor : Runnable::run;
+        AesParallelOutputStream stream = new AesParallelOutputStream(key, nonce, output,
+                format, integrity, hashKey, chunkSize, streamExecutor,
+                threads * AesParallelOutputStream.DEFAULT_SEGMENTS_PER_THREAD);
+        long totalBytes = 0;
+        byte[] buff = new byte[bufferSize];
+        int bytesRead;
+        while ((bytesRead = input.read(buff, 0, buff.length)) > 0) {
+            stream.write(buff, 0, bytesRead);
+            totalBytes += bytesRead;
+        }
+        stream.finish();
+        return totalBytes;
+    }
+
+    /**
+     * Encrypt the data from a channel to another channel using the nonce, the integrity
+     * hash key, and the chunk size. See {@link #encrypt(InputStream, OutputStream, byte[], byte[], EncryptionFormat, boolean, byte[], int)}.
+     * The channels are not closed.
+     *
+     * @param input     The channel with the data to encrypt.
+     * @param output    The channel to write the encrypted data to.
+     * @param key       The AES key to be used.
+     * @param nonce     The nonce to be used.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity True if you want to calculate and store hash signatures for each chunkSize.
+     * @param hashKey   Hash key to be used for all chunks.
+     * @param chunkSize The chunk size.
+     * @return The number of bytes encrypted.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public long encrypt(ReadableByteChannel input, WritableByteChannel output, byte[] key, byte[] nonce,
+                        EncryptionFormat format, boolean integrity, byte[] hashKey, int chunkSize)
+            throws IOException {
+        return encrypt(Channels.newInputStream(input), Channels.newOutputStream(output),
+                key, nonce, format, integrity, hashKey, chunkSize);
+    }
+
     /**
      * Encrypt stream using parallel threads.
+     * The data are split into chunk aligned parts, several per thread, and each thread
+     * takes the next available part when it is done so a slow part does not stall the others.
      *
      * @param data      The input data to be encrypted
      * @param outData   The output buffer with the encrypted data.
@@ -199,13 +569,11 @@ public class Encryptor {
      * @param format    The format to use, see {@link EncryptionFormat}
      * @param chunkSize The chunk size.
      * @param integrity True to apply integrity.
+     * @throws IOException Thrown if the operation is interrupted.
      */
     private void encryptDataParallel(byte[] data, byte[] outData,
                                      byte[] key, byte[] hashKey, byte[] nonce, EncryptionFormat format,
-                                     int chunkSize, boolean integrity) {
-
-        int runningThreads = 1;
-        long partSize = data.length;
+                                     int chunkSize, boolean integrity) throws IOException {
 
         // if we want to check integrity we align to the chunk size otherwise to the AES Block
         long minPartSize = AesCTRTransformer.BLOCK_SIZE;
@@ -214,30 +582,28 @@ public class Encryptor {
         else if (integrity)
             minPartSize = Integrity.DEFAULT_CHUNK_SIZE;
 
-        if (partSize > minPartSize) {
-            partSize = (int) Math.ceil(data.length / (float) threads);
-            if (partSize > minPartSize)
-                partSize -= partSize % minPartSize;
-            else
-                partSize = minPartSize;
-            runningThreads = (int) (data.length / partSize);
-			if (runningThreads > this.threads)
-				runningThreads = this.threads;
-        }
+        long partSize = (long) Math.ceil(data.length / (double) (threads * PARTS_PER_THREAD));
+        if (partSize > minPartSize)
+            partSize -= partSize % minPartSize;
+        else
+            partSize = minPartSize;
+        int parts = (int) ((data.length + partSize - 1) / partSize);
+        int runningThreads = Math.min(threads, parts);
 
-        submitEncryptJobs(runningThreads, partSize,
+        submitEncryptJobs(runningThreads, partSize, parts,
                 data, outData,
                 key, hashKey, nonce, format,
                 integrity, chunkSize);
     }
 
     /**
-     * Submit encryption parallel jobs.
+     * Submit encryption parallel jobs. The calling thread also encrypts parts.
      *
-     * @param runningThreads The number of threads to submit.
-     * @param partSize       The data length of each part that belongs to each thread.
-     * @param data           The buffer of data you want to decrypt. This is a shared byte array across all threads where each
-     *                       thread will read each own part.
+     * @param runningThreads The number of threads to encrypt with.
+     * @param partSize       The data length of each part.
+     * @param parts          The number of parts.
+     * @param data           The buffer of data you want to encrypt. This is a shared byte array across all threads where each
+     *                       thread will read the parts it takes.
      * @param outData        The buffer of data containing the encrypted data.
      * @param key            The AES key.
      * @param hashKey        The hash key for integrity.
@@ -245,34 +611,35 @@ public class Encryptor {
      * @param format         The format to use, see {@link EncryptionFormat}
      * @param integrity      True to apply the data integrity.
      * @param chunkSize      The chunk size.
+     * @throws IOException Thrown if the operation is interrupted.
      */
-    private void submitEncryptJobs(int runningThreads, long partSize, byte[] data, byte[] outData,
+    private void submitEncryptJobs(int runningThreads, long partSize, int parts, byte[] data, byte[] outData,
                                    byte[] key, byte[] hashKey, byte[] nonce, EncryptionFormat format,
-                                   boolean integrity, int chunkSize) {
+                                   boolean integrity, int chunkSize) throws IOException {
 
-        final CountDownLatch done = new CountDownLatch(runningThreads);
+        // count the finished parts so the calling thread returns as soon as all the parts
+        // are done even if some of the helper tasks have not been scheduled yet
+        final CountDownLatch done = new CountDownLatch(parts);
         AtomicReference<Exception> ex = new AtomicReference<>();
-        for (int i = 0; i < runningThreads; i++) {
-            final int index = i;
-            executor.submit(() -> {
-                try {
-                    long start = partSize * index;
-                    long length;
-                    if (index == runningThreads - 1)
-                        length = data.length - start;
-                    else
-                        length = partSize;
-                    MemoryStream ins = new MemoryStream(data);
-                    encryptData(ins, start, length, outData, key, nonce, format, integrity, hashKey, chunkSize);
-                } catch (Exception ex1) {
-                    ex.set(ex1);
-                }
-                done.countDown();
-            });
+        AtomicInteger nextPart = new AtomicInteger();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Runnable job = () -> encryptParts(data, outData, partSize, parts, nextPart, cancelled, done, ex,
+                key, nonce, format, integrity, hashKey, chunkSize);
+        for (int i = 0; i < runningThreads - 1; i++) {
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException ex1) {
+                // the calling thread will take the remaining parts
+                break;
+            }
         }
+        job.run();
         try {
             done.await();
-        } catch (InterruptedException ignored) {
+        } catch (InterruptedException ex1) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Encryption was interrupted");
         }
 
         if (ex.get() != null) {
@@ -284,6 +651,69 @@ public class Encryptor {
         }
     }
 
+    /**
+     * Encrypt the next available parts until there are no more parts.
+     *
+     * @param data      The data to be encrypted.
+     * @param outData   The buffer with the encrypted data.
+     * @param partSize  The data length of each part.
+     * @param parts     The number of parts.
+     * @param nextPart  The next part to be encrypted shared by all threads.
+     * @param cancelled Set if the operation is cancelled.
+     * @param done      Counted down when each part is finished or will not be encrypted.
+     * @param error     Set to the first error.
+     * @param key       The AES key to be used.
+     * @param nonce     The nonce to be used.
+     * @param format    The format to use, see {@link EncryptionFormat}
+     * @param integrity True to apply integrity.
+     * @param hashKey   The key to be used for integrity application.
+     * @param chunkSize The chunk size.
+     */
+    private void encryptParts(byte[] data, byte[] outData, long partSize, int parts,
+                              AtomicInteger nextPart, AtomicBoolean cancelled,
+                              CountDownLatch done, AtomicReference<Exception> error,
+                              byte[] key, byte[] nonce, EncryptionFormat format,
+                              boolean integrity, byte[] hashKey, int chunkSize) {
+        MemoryStream outputStream = new MemoryStream(outData);
+        AesStream stream = null;
+        boolean inPart = false;
+        try {
+            stream = new AesStream(key, nonce, EncryptionMode.Encrypt, outputStream,
+                    format, integrity, hashKey, chunkSize);
+            stream.setAllowRangeWrite(true);
+            int part;
+            while (!cancelled.get() && (part = nextPart.getAndIncrement()) < parts) {
+                inPart = true;
+                long start = part * partSize;
+                int length = (int) Math.min(partSize, data.length - start);
+                stream.setPosition(start);
+                stream.write(data, (int) start, length);
+                inPart = false;
+                done.countDown();
+            }
+            stream.flush();
+        } catch (IOException | RuntimeException ex) {
+            // the error is set before the failed part is counted down so the caller sees it
+            error.compareAndSet(null, ex instanceof IOException ?
+                    new SecurityException("Could not encrypt data", ex) : ex);
+            cancelled.set(true);
+            if (inPart)
+                done.countDown();
+        } finally {
+            try {
+                outputStream.close();
+                if (stream != null)
+                    stream.close();
+            } catch (IOException ignored) {
+            }
+            // release the parts that will not be encrypted
+            if (cancelled.get()) {
+                while (nextPart.getAndIncrement() < parts)
+                    done.countDown();
+            }
+        }
+    }
+
     /**
      * Encrypt the data stream.
      *
@@ -340,7 +770,7 @@ public class Encryptor {
      * Close the decryptor and release associated resources
      */
     public void close() {
-        if (executor != null)
-            executor.shutdownNow();
+        if (ownsExecutor && executor != null)
+            ((ExecutorService) executor).shutdownNow();
     }
 }
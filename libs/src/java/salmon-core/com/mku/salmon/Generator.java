@@ -35,6 +35,11 @@ public class Generator {
      */
     public static final byte VERSION = 2;
 
+    /**
+     * Version for streams with compressed chunks, see {@link com.mku.salmon.streams.AesCompressedStream}.
+     */
+    public static final byte COMPRESSED_VERSION = 3;
+
     /**
      * Lenght for the magic bytes.
      */
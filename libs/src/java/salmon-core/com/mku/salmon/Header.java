@@ -98,6 +98,16 @@ public class Header {
         return version;
     }
 
+    /**
+     * Check the format version of the header.
+     * @param version The expected version, see {@link Generator#VERSION} and {@link Generator#COMPRESSED_VERSION}
+     * @throws SecurityException Thrown if the data are in a different format version
+     */
+    public void checkVersion(byte version) {
+        if (this.version != version)
+            throw new SecurityException("Unsupported format version: " + this.version);
+    }
+
     /**
      * Get the magic bytes
      * @return Magic bytes
@@ -148,6 +158,53 @@ public class Header {
         return header;
     }
 
+    /**
+     * Parse the header data from a buffer.
+     * @param buffer The buffer.
+     * @param offset The offset of the header in the buffer.
+     * @return The header data or null if the buffer is too small.
+     */
+    public static Header readHeaderData(byte[] buffer, int offset) {
+        if (buffer.length - offset < HEADER_LENGTH)
+            return null;
+        byte[] headerData = new byte[(int) HEADER_LENGTH];
+        System.arraycopy(buffer, offset, headerData, 0, headerData.length);
+        Header header = new Header(headerData);
+        int pos = 0;
+        header.magicBytes = new byte[Generator.MAGIC_LENGTH];
+        System.arraycopy(headerData, pos, header.magicBytes, 0, Generator.MAGIC_LENGTH);
+        pos += Generator.MAGIC_LENGTH;
+        header.version = headerData[pos];
+        pos += Generator.VERSION_LENGTH;
+        header.chunkSize = (int) BitConverter.toLong(headerData, pos, Generator.CHUNK_SIZE_LENGTH);
+        pos += Generator.CHUNK_SIZE_LENGTH;
+        header.nonce = new byte[Generator.NONCE_LENGTH];
+        System.arraycopy(headerData, pos, header.nonce, 0, Generator.NONCE_LENGTH);
+        return header;
+    }
+
+    /**
+     * Write header data to a buffer.
+     * @param buffer The buffer to write to.
+     * @param offset The offset in the buffer.
+     * @param nonce The nonce
+     * @param chunkSize The chunk size
+     * @return The header
+     */
+    public static Header writeHeaderData(byte[] buffer, int offset, byte[] nonce, int chunkSize) {
+        byte[] magicBytes = Generator.getMagicBytes();
+        byte[] chunkSizeBytes = BitConverter.toBytes(chunkSize, Generator.CHUNK_SIZE_LENGTH);
+        int pos = offset;
+        System.arraycopy(magicBytes, 0, buffer, pos, magicBytes.length);
+        pos += magicBytes.length;
+        buffer[pos] = Generator.getVersion();
+        pos += Generator.VERSION_LENGTH;
+        System.arraycopy(chunkSizeBytes, 0, buffer, pos, chunkSizeBytes.length);
+        pos += chunkSizeBytes.length;
+        System.arraycopy(nonce, 0, buffer, pos, nonce.length);
+        return readHeaderData(buffer, offset);
+    }
+
     /**
      * Write header data to the stream
      * @param stream The stream to write to
@@ -157,8 +214,21 @@ public class Header {
      * @throws IOException If an error occurs
      */
     public static Header writeHeader(RandomAccessStream stream, byte[] nonce, int chunkSize) throws IOException {
+        return writeHeader(stream, nonce, chunkSize, Generator.getVersion());
+    }
+
+    /**
+     * Write header data with a specific format version to the stream
+     * @param stream The stream to write to
+     * @param nonce The nonce
+     * @param chunkSize The chunk size
+     * @param version The format version, see {@link Generator#VERSION} and {@link Generator#COMPRESSED_VERSION}
+     * @return The header
+     * @throws IOException If an error occurs
+     */
+    public static Header writeHeader(RandomAccessStream stream, byte[] nonce, int chunkSize, byte version)
+            throws IOException {
         byte[] magicBytes = Generator.getMagicBytes();
-        byte version = Generator.getVersion();
         byte[] versionBytes = new byte[]{version};
         byte[] chunkSizeBytes = BitConverter.toBytes(chunkSize, Generator.CHUNK_SIZE_LENGTH);
 
@@ -0,0 +1,158 @@
+package com.mku.salmon;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs indexed tasks concurrently on an executor. The calling thread also runs tasks so the
+ * call returns as soon as all the tasks are done even if the executor is busy.
+ */
+public class ParallelTasks {
+    /**
+     * Default executor, created when first needed.
+     */
+    private static Executor defaultExecutor;
+
+    /**
+     * Task that runs for each index.
+     *
+     * @param <E> The exception type thrown by the task
+     */
+    public interface Task<E extends Exception> {
+        /**
+         * Run the task.
+         *
+         * @param index The index
+         * @throws E Thrown if the task fails.
+         */
+        void run(int index) throws E;
+    }
+
+    /**
+     * Get the default executor, a shared cached pool of daemon threads.
+     *
+     * @return The executor
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool((runnable) -> {
+                Thread thread = new Thread(runnable, "ParallelTasks");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Run a task for each index on the default executor, see {@link #forEach(int, int, Executor, Task)}.
+     *
+     * @param count   The number of indexes
+     * @param threads The maximum number of threads including the calling thread
+     * @param task    The task
+     * @param <E>     The exception type thrown by the task
+     * @throws E                      Thrown if a task fails.
+     * @throws InterruptedIOException Thrown if the calling thread is interrupted.
+     */
+    public static <E extends Exception> void forEach(int count, int threads, Task<E> task)
+            throws E, InterruptedIOException {
+        forEach(count, threads, null, task);
+    }
+
+    /**
+     * Run a task for each index from 0 to count. After the first error no more tasks are started
+     * and the error is thrown once the running tasks are done.
+     *
+     * @param count    The number of indexes
+     * @param threads  The maximum number of threads including the calling thread
+     * @param executor The executor or null to use the default executor
+     * @param task     The task
+     * @param <E>      The exception type thrown by the task
+     * @throws E                      Thrown if a task fails.
+     * @throws InterruptedIOException Thrown if the calling thread is interrupted.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends Exception> void forEach(int count, int threads, Executor executor, Task<E> task)
+            throws E, InterruptedIOException {
+        threads = Math.max(1, Math.min(threads, count));
+        if (threads == 1) {
+            for (int i = 0; i < count; i++)
+                task.run(i);
+            return;
+        }
+        if (executor == null)
+            executor = getDefaultExecutor();
+
+        // count the finished tasks instead of the threads so the calling thread does not
+        // wait for helpers that have not been scheduled yet
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < count) {
+                if (error.get() == null) {
+                    try {
+                        task.run(i);
+                    } catch (Throwable ex) {
+                        error.compareAndSet(null, ex);
+                    }
+                }
+                done.countDown();
+            }
+        };
+        for (int t = 0; t < threads - 1; t++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException ex) {
+                // the calling thread will run the remaining tasks
+                break;
+            }
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            InterruptedIOException interrupted = new InterruptedIOException("Tasks were interrupted");
+            error.compareAndSet(null, interrupted);
+            Thread.currentThread().interrupt();
+            throw interrupted;
+        }
+
+        Throwable ex = error.get();
+        if (ex instanceof RuntimeException)
+            throw (RuntimeException) ex;
+        if (ex instanceof Error)
+            throw (Error) ex;
+        if (ex != null)
+            throw (E) ex;
+    }
+}
@@ -0,0 +1,260 @@
+package com.mku.salmon.streams;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.salmon.Generator;
+import com.mku.salmon.Header;
+import com.mku.salmon.SecurityException;
+import com.mku.salmon.integrity.IntegrityException;
+import com.mku.streams.RandomAccessStream;
+
+import java.io.IOException;
+
+/**
+ * Stream that appends encrypted data to the end of an existing Salmon stream. Only the trailing
+ * partial chunk, or the trailing partial AES block if there is no integrity, is decrypted,
+ * verified, and encrypted and signed again along with the new data. Since the existing data are
+ * encrypted again with the same plain text the keystream is never used for different data and
+ * the new data use keystream past the end of the existing data.
+ * <p>
+ * Writes are buffered so the underlying {@link AesStream} is always written at aligned positions.
+ * Data are written when a chunk is filled, when the stream is flushed, or when the stream is closed.
+ * </p>
+ */
+public class AesAppendStream extends RandomAccessStream {
+    /**
+     * Buffer size when the stream has no integrity, a multiple of the AES block size.
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+    private final AesStream stream;
+    private final byte[] buffer;
+    private int bufferLength;
+    private long bufferStart;
+    private boolean closed;
+
+    /**
+     * Instantiate a stream that appends to existing encrypted data.
+     *
+     * @param key          The AES key
+     * @param inputStream  The base stream to read the existing data from, it will be closed
+     * @param outputStream The base stream to write to, it must not truncate the existing data
+     * @param integrity    True if the existing data have integrity, the last chunk is verified
+     * @param hashKey      Hash key to be used with integrity
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws SecurityException  Thrown if the data do not have a Salmon header
+     * @throws IntegrityException Thrown if the last chunk is corrupt or tampered with.
+     */
+    public AesAppendStream(byte[] key, RandomAccessStream inputStream, RandomAccessStream outputStream,
+                           boolean integrity, byte[] hashKey) throws IOException {
+        Header header;
+        byte[] tail;
+        try {
+            header = Header.readHeaderData(inputStream);
+            if (header == null)
+                throw new SecurityException("Stream has no header");
+            if (header.getVersion() != Generator.VERSION)
+                throw new SecurityException("Cannot append to this format version: " + header.getVersion());
+            if (integrity && header.getChunkSize() <= 0)
+                throw new IntegrityException("Stream does not support integrity");
+            AesStream decStream = new AesStream(key, header, inputStream, integrity, hashKey);
+            long length = decStream.getLength();
+            int alignSize = header.getChunkSize() > 0 ? header.getChunkSize() : Generator.BLOCK_SIZE;
+            bufferStart = length - length % alignSize;
+            tail = new byte[(int) (length - bufferStart)];
+            if (tail.length > 0) {
+                decStream.setPosition(bufferStart);
+                int bytesRead = 0;
+                while (bytesRead < tail.length) {
+                    int n = decStream.read(tail, bytesRead, tail.length - bytesRead);
+                    if (n <= 0)
+                        throw new IOException("Could not read the end of the stream");
+                    bytesRead += n;
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        // the header is written again with the same nonce and chunk size
+        stream = new AesStream(key, header.getNonce(), EncryptionMode.Encrypt, outputStream,
+                EncryptionFormat.Salmon, integrity, hashKey, header.getChunkSize());
+        stream.setAllowRangeWrite(true);
+        stream.setPosition(bufferStart);
+        buffer = new byte[header.getChunkSize() > 0 ? header.getChunkSize() : DEFAULT_BUFFER_SIZE];
+        System.arraycopy(tail, 0, buffer, 0, tail.length);
+        bufferLength = tail.length;
+    }
+
+    /**
+     * The stream is write only.
+     *
+     * @return False
+     */
+    @Override
+    public boolean canRead() {
+        return false;
+    }
+
+    /**
+     * Check if the stream is writable.
+     *
+     * @return True if writable
+     */
+    @Override
+    public boolean canWrite() {
+        return !closed && stream.canWrite();
+    }
+
+    /**
+     * The stream is append only.
+     *
+     * @return False
+     */
+    @Override
+    public boolean canSeek() {
+        return false;
+    }
+
+    /**
+     * Get the length of the data including the appended data.
+     *
+     * @return The length
+     */
+    @Override
+    public long getLength() {
+        return bufferStart + bufferLength;
+    }
+
+    /**
+     * Get the position, this is always the end of the stream.
+     *
+     * @return The position
+     */
+    @Override
+    public long getPosition() {
+        return getLength();
+    }
+
+    /**
+     * Set the position. Only the current position is allowed.
+     *
+     * @param value The new position
+     * @throws IOException Thrown if the position is not the end of the stream
+     */
+    @Override
+    public void setPosition(long value) throws IOException {
+        if (value != getPosition())
+            throw new IOException("Append streams can only be written at the end");
+    }
+
+    /**
+     * Set the length of the stream. Currently unsupported.
+     *
+     * @param value The new length
+     */
+    @Override
+    public void setLength(long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Read is not supported.
+     *
+     * @param buffer The buffer
+     * @param offset The offset
+     * @param count  The count
+     * @return Nothing
+     * @throws IOException Always thrown
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        throw new IOException("Stream is not readable");
+    }
+
+    /**
+     * Append data to the stream.
+     *
+     * @param buffer The data
+     * @param offset The offset in the buffer
+     * @param count  The number of bytes
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        if (closed)
+            throw new IOException("Stream is closed");
+        while (count > 0) {
+            int n = Math.min(count, this.buffer.length - bufferLength);
+            System.arraycopy(buffer, offset, this.buffer, bufferLength, n);
+            bufferLength += n;
+            offset += n;
+            count -= n;
+            if (bufferLength == this.buffer.length) {
+                stream.write(this.buffer, 0, bufferLength);
+                bufferStart += bufferLength;
+                bufferLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Write the buffered data. The buffered partial chunk is kept and written again
+     * with the next data so writes stay aligned.
+     */
+    @Override
+    public void flush() {
+        try {
+            writeBuffer();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        stream.flush();
+    }
+
+    /**
+     * Write the buffered data and close the stream.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            writeBuffer();
+            stream.flush();
+        } finally {
+            closed = true;
+            stream.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (bufferLength == 0 || closed)
+            return;
+        stream.write(buffer, 0, bufferLength);
+        stream.setPosition(bufferStart);
+    }
+}
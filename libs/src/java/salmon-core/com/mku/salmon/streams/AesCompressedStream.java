@@ -0,0 +1,481 @@
+package com.mku.salmon.streams;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.convert.BitConverter;
+import com.mku.salmon.Generator;
+import com.mku.salmon.Header;
+import com.mku.salmon.SecurityException;
+import com.mku.salmon.integrity.Integrity;
+import com.mku.salmon.integrity.IntegrityException;
+import com.mku.streams.RandomAccessStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stream that compresses each chunk of data before encrypting it, see {@link EncryptionFormat#SalmonCompressed}.
+ * The compressed chunks are stored back to back in an {@link AesStream} with a {@link Generator#COMPRESSED_VERSION}
+ * header and are followed by a table with the compressed length of each chunk, so reads can seek to any
+ * position by decompressing only the chunk that contains it. Chunks that do not compress are stored as is.
+ * The table is encrypted and signed along with the data.
+ * <p>
+ * Streams created for encryption can only be written sequentially, the table is written when the stream is closed.
+ * Streams created for decryption are read only and support random access.
+ * </p>
+ */
+public class AesCompressedStream extends RandomAccessStream {
+    /**
+     * Deflate compression, see {@link Deflater}.
+     */
+    public static final byte DEFLATE = 1;
+
+    /**
+     * Flag in the chunk table for chunks that are stored without compression.
+     */
+    private static final int STORED_FLAG = 0x80000000;
+
+    /**
+     * Length of the trailer: compression (1), chunk size (4), data length (8), chunk count (4).
+     */
+    private static final int TRAILER_LENGTH = 17;
+
+    private final AesStream stream;
+    private final EncryptionMode encryptionMode;
+    private final int chunkSize;
+    private final byte[] chunkData;
+    private int chunkLength;
+    private int chunkIndex = -1;
+    private long position;
+    private long length;
+    private int[] chunkLengths;
+    private long[] chunkOffsets;
+    private int chunkCount;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] compressedData;
+    private byte[] physicalData;
+    private int physicalLength;
+    private boolean closed;
+
+    /**
+     * Instantiate a stream that compresses and encrypts the data written to the base stream.
+     *
+     * @param key        The AES key
+     * @param nonce      The nonce, see {@link Generator#getSecureRandomBytes(int)}
+     * @param baseStream The base stream to write the encrypted data to
+     * @param integrity  True to sign the encrypted data
+     * @param hashKey    Hash key to be used with integrity
+     * @param chunkSize  The size of the chunks that are compressed, also the integrity chunk size.
+     *                   Use 0 for the default chunk size.
+     * @throws IOException       Thrown if there is an IO error.
+     * @throws SecurityException Thrown if there is a security exception
+     */
+    public AesCompressedStream(byte[] key, byte[] nonce, RandomAccessStream baseStream,
+                               boolean integrity, byte[] hashKey, int chunkSize) throws IOException {
+        if (chunkSize <= 0)
+            chunkSize = Integrity.DEFAULT_CHUNK_SIZE;
+        this.encryptionMode = EncryptionMode.Encrypt;
+        this.chunkSize = chunkSize;
+        this.stream = new AesStream(key, nonce, EncryptionMode.Encrypt, baseStream,
+                EncryptionFormat.Salmon, integrity, hashKey, integrity ? chunkSize : 0,
+                null, Generator.COMPRESSED_VERSION);
+        this.chunkData = new byte[chunkSize];
+        this.compressedData = new byte[chunkSize];
+        this.physicalData = new byte[chunkSize];
+        this.chunkLengths = new int[16];
+        this.deflater = new Deflater();
+    }
+
+    /**
+     * Instantiate a stream that decrypts and decompresses the data from the base stream.
+     *
+     * @param key        The AES key
+     * @param baseStream The base stream with the encrypted data
+     * @param integrity  True to verify the integrity of the data
+     * @param hashKey    Hash key to be used with integrity
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws SecurityException  Thrown if the stream is not a compressed stream
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public AesCompressedStream(byte[] key, RandomAccessStream baseStream,
+                               boolean integrity, byte[] hashKey) throws IOException {
+        Header header = Header.readHeaderData(baseStream);
+        if (header == null || header.getVersion() != Generator.COMPRESSED_VERSION)
+            throw new SecurityException("Stream is not compressed");
+        this.encryptionMode = EncryptionMode.Decrypt;
+        this.stream = new AesStream(key, header.getNonce(), EncryptionMode.Decrypt, baseStream,
+                EncryptionFormat.Salmon, integrity, hashKey, header.getChunkSize(),
+                header, Generator.COMPRESSED_VERSION);
+        this.chunkSize = readTable();
+        this.chunkData = new byte[chunkSize];
+        this.inflater = new Inflater();
+    }
+
+    /**
+     * Read the trailer and the chunk table.
+     *
+     * @return The chunk size
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private int readTable() throws IOException {
+        long physicalLength = stream.getLength();
+        if (physicalLength < TRAILER_LENGTH)
+            throw new IntegrityException("Compressed stream is truncated");
+        byte[] trailer = new byte[TRAILER_LENGTH];
+        readPhysical(physicalLength - TRAILER_LENGTH, trailer, TRAILER_LENGTH);
+        if (trailer[0] != DEFLATE)
+            throw new IOException("Unsupported compression: " + trailer[0]);
+        int size = (int) BitConverter.toLong(trailer, 1, 4);
+        length = BitConverter.toLong(trailer, 5, 8);
+        chunkCount = (int) BitConverter.toLong(trailer, 13, 4);
+        long tableLength = (long) chunkCount * 4;
+        if (size <= 0 || chunkCount < 0 || tableLength > physicalLength - TRAILER_LENGTH
+                || length > (long) chunkCount * size)
+            throw new IntegrityException("Compressed stream table is corrupt");
+
+        byte[] table = new byte[(int) tableLength];
+        long tableOffset = physicalLength - TRAILER_LENGTH - tableLength;
+        readPhysical(tableOffset, table, table.length);
+        chunkLengths = new int[chunkCount];
+        chunkOffsets = new long[chunkCount + 1];
+        for (int i = 0; i < chunkCount; i++) {
+            chunkLengths[i] = (int) BitConverter.toLong(table, i * 4, 4);
+            chunkOffsets[i + 1] = chunkOffsets[i] + (chunkLengths[i] & ~STORED_FLAG);
+        }
+        if (chunkOffsets[chunkCount] != tableOffset)
+            throw new IntegrityException("Compressed stream table is corrupt");
+        return size;
+    }
+
+    /**
+     * Get the size of the chunks that are compressed.
+     *
+     * @return The chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Check if the stream is readable.
+     *
+     * @return True if mode is decryption.
+     */
+    @Override
+    public boolean canRead() {
+        return encryptionMode == EncryptionMode.Decrypt && stream.canRead();
+    }
+
+    /**
+     * Check if the stream is writable.
+     *
+     * @return True if mode is encryption.
+     */
+    @Override
+    public boolean canWrite() {
+        return encryptionMode == EncryptionMode.Encrypt && stream.canWrite();
+    }
+
+    /**
+     * Check if the stream is seekable, only streams for decryption can seek.
+     *
+     * @return True if seekable.
+     */
+    @Override
+    public boolean canSeek() {
+        return encryptionMode == EncryptionMode.Decrypt && stream.canSeek();
+    }
+
+    /**
+     * Get the length of the uncompressed data.
+     *
+     * @return The length
+     */
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Get the position in the uncompressed data.
+     *
+     * @return The position
+     */
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Set the position in the uncompressed data. The chunk that contains the position
+     * is decompressed on the next read.
+     *
+     * @param value The new position
+     * @throws IOException Thrown if the position is out of range or the stream is for encryption
+     *                     and the position is not the current position.
+     */
+    @Override
+    public void setPosition(long value) throws IOException {
+        if (encryptionMode == EncryptionMode.Encrypt) {
+            if (value != position)
+                throw new IOException("Compressed streams can only be written sequentially");
+            return;
+        }
+        if (value < 0 || value > length)
+            throw new IOException("Position is out of range");
+        position = value;
+    }
+
+    /**
+     * Set the length of the stream. Currently unsupported.
+     *
+     * @param value The new length
+     */
+    @Override
+    public void setLength(long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Read and decompress data from the current position.
+     *
+     * @param buffer The buffer to read into
+     * @param offset The offset in the buffer
+     * @param count  The maximum number of bytes to read
+     * @return The number of bytes read or -1 if the end of the stream is reached
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (!canRead())
+            throw new IOException("Stream is not readable");
+        if (position >= length)
+            return -1;
+        int bytesRead = 0;
+        while (bytesRead < count && position < length) {
+            int index = (int) (position / chunkSize);
+            loadChunk(index);
+            int chunkOffset = (int) (position - (long) index * chunkSize);
+            int n = Math.min(count - bytesRead, chunkLength - chunkOffset);
+            System.arraycopy(chunkData, chunkOffset, buffer, offset + bytesRead, n);
+            bytesRead += n;
+            position += n;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Decompress a chunk unless it is already loaded.
+     *
+     * @param index The chunk index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void loadChunk(int index) throws IOException {
+        if (index == chunkIndex)
+            return;
+        chunkIndex = -1;
+        int storedLength = chunkLengths[index] & ~STORED_FLAG;
+        int expectedLength = (int) Math.min(chunkSize, length - (long) index * chunkSize);
+        if ((chunkLengths[index] & STORED_FLAG) != 0) {
+            if (storedLength != expectedLength)
+                throw new IntegrityException("Compressed chunk length is invalid");
+            readPhysical(chunkOffsets[index], chunkData, storedLength);
+        } else {
+            if (compressedData == null || compressedData.length < storedLength)
+                compressedData = new byte[storedLength];
+            readPhysical(chunkOffsets[index], compressedData, storedLength);
+            inflater.reset();
+            inflater.setInput(compressedData, 0, storedLength);
+            int inflated = 0;
+            try {
+                while (inflated < expectedLength && !inflater.finished()) {
+                    int n = inflater.inflate(chunkData, inflated, expectedLength - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    inflated += n;
+                }
+            } catch (DataFormatException ex) {
+                throw new IntegrityException("Could not decompress chunk", ex);
+            }
+            if (inflated != expectedLength)
+                throw new IntegrityException("Compressed chunk length is invalid");
+        }
+        chunkLength = expectedLength;
+        chunkIndex = index;
+    }
+
+    /**
+     * Compress and encrypt data. Data are compressed in chunks as they are filled.
+     *
+     * @param buffer The data
+     * @param offset The offset in the buffer
+     * @param count  The number of bytes to write
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        if (!canWrite() || closed)
+            throw new IOException("Stream is not writable");
+        while (count > 0) {
+            int n = Math.min(count, chunkSize - chunkLength);
+            System.arraycopy(buffer, offset, chunkData, chunkLength, n);
+            chunkLength += n;
+            offset += n;
+            count -= n;
+            position += n;
+            length += n;
+            if (chunkLength == chunkSize)
+                writeChunk();
+        }
+    }
+
+    /**
+     * Compress and write the current chunk.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void writeChunk() throws IOException {
+        deflater.reset();
+        deflater.setInput(chunkData, 0, chunkLength);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished() && compressed < compressedData.length)
+            compressed += deflater.deflate(compressedData, compressed, compressedData.length - compressed);
+
+        int entry;
+        if (deflater.finished() && compressed < chunkLength) {
+            writePhysical(compressedData, 0, compressed);
+            entry = compressed;
+        } else {
+            writePhysical(chunkData, 0, chunkLength);
+            entry = chunkLength | STORED_FLAG;
+        }
+        if (chunkCount == chunkLengths.length)
+            chunkLengths = Arrays.copyOf(chunkLengths, chunkCount * 2);
+        chunkLengths[chunkCount++] = entry;
+        chunkLength = 0;
+    }
+
+    /**
+     * Write the chunk table and the trailer.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void writeTable() throws IOException {
+        if (chunkLength > 0)
+            writeChunk();
+        byte[] table = new byte[chunkCount * 4 + TRAILER_LENGTH];
+        for (int i = 0; i < chunkCount; i++)
+            System.arraycopy(BitConverter.toBytes(chunkLengths[i], 4), 0, table, i * 4, 4);
+        int pos = chunkCount * 4;
+        table[pos] = DEFLATE;
+        System.arraycopy(BitConverter.toBytes(chunkSize, 4), 0, table, pos + 1, 4);
+        System.arraycopy(BitConverter.toBytes(length, 8), 0, table, pos + 5, 8);
+        System.arraycopy(BitConverter.toBytes(chunkCount, 4), 0, table, pos + 13, 4);
+        writePhysical(table, 0, table.length);
+        if (physicalLength > 0)
+            stream.write(physicalData, 0, physicalLength);
+        physicalLength = 0;
+    }
+
+    /**
+     * Write compressed data to the encrypted stream in whole chunks since the
+     * encrypted stream needs writes aligned to the integrity chunks.
+     *
+     * @param buffer The data
+     * @param offset The offset in the buffer
+     * @param count  The number of bytes
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void writePhysical(byte[] buffer, int offset, int count) throws IOException {
+        while (count > 0) {
+            int n = Math.min(count, physicalData.length - physicalLength);
+            System.arraycopy(buffer, offset, physicalData, physicalLength, n);
+            physicalLength += n;
+            offset += n;
+            count -= n;
+            if (physicalLength == physicalData.length) {
+                stream.write(physicalData, 0, physicalLength);
+                physicalLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Read fully from the encrypted stream.
+     *
+     * @param physicalPosition The position in the decrypted compressed data
+     * @param buffer           The buffer
+     * @param count            The number of bytes to read
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void readPhysical(long physicalPosition, byte[] buffer, int count) throws IOException {
+        stream.setPosition(physicalPosition);
+        int bytesRead = 0;
+        while (bytesRead < count) {
+            int n = stream.read(buffer, bytesRead, count - bytesRead);
+            if (n <= 0)
+                throw new IntegrityException("Compressed stream is truncated");
+            bytesRead += n;
+        }
+    }
+
+    /**
+     * Flush the base stream. Data of the current chunk are written only when the chunk is
+     * compressed and filled or the stream is closed.
+     */
+    @Override
+    public void flush() {
+        stream.flush();
+    }
+
+    /**
+     * Close the stream. For encryption the remaining data and the chunk table are written first.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (encryptionMode == EncryptionMode.Encrypt) {
+                writeTable();
+                stream.flush();
+            }
+        } finally {
+            if (deflater != null)
+                deflater.end();
+            if (inflater != null)
+                inflater.end();
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package com.mku.salmon.streams;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.salmon.Generator;
+import com.mku.salmon.Header;
+import com.mku.salmon.SecurityException;
+import com.mku.salmon.integrity.HMACSHA256Provider;
+import com.mku.salmon.integrity.Integrity;
+import com.mku.salmon.integrity.IntegrityException;
+import com.mku.salmon.transform.ICTRTransformer;
+import com.mku.salmon.transform.TransformerFactory;
+import com.mku.streams.MemoryStream;
+import com.mku.streams.RandomAccessStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Input stream for sequential consumption that decrypts ahead of the reader. Consecutive
+ * segments of chunks are read, verified, and decrypted on a worker pool while the reader
+ * only copies the decrypted data that are handed off in order. The number of segments
+ * in flight is bounded.
+ */
+public class AesParallelInputStream extends InputStream {
+    /**
+     * Default number of segments per thread that are decrypted ahead.
+     */
+    public static final int DEFAULT_SEGMENTS_PER_THREAD = 2;
+
+    /**
+     * The AES key.
+     */
+    private final byte[] key;
+
+    /**
+     * The nonce.
+     */
+    private final byte[] nonce;
+
+    /**
+     * The header data included in the hash of the first chunk, null for the generic format.
+     */
+    private final byte[] headerData;
+
+    /**
+     * The integrity settings.
+     */
+    private final Integrity integrity;
+
+    /**
+     * The base stream with the encrypted data, read by the workers. Null if reading from an input stream.
+     */
+    private final RandomAccessStream baseStream;
+
+    /**
+     * The input stream with the encrypted data, read in order by the reader. Null if reading from a base stream.
+     */
+    private final InputStream inputStream;
+
+    /**
+     * The length of the base stream.
+     */
+    private final long baseLength;
+
+    /**
+     * The plain text size of each segment.
+     */
+    private final int segmentSize;
+
+    /**
+     * The maximum number of segments in flight.
+     */
+    private final int maxInFlight;
+
+    /**
+     * The decryption workers.
+     */
+    private final Executor executor;
+
+    /**
+     * True if the executor was created by this stream.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * Transformers not used by any worker, reused so the keys are not expanded for every segment.
+     */
+    private final ConcurrentLinkedQueue<ICTRTransformer> transformers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Decrypted segments in the order they should be read.
+     */
+    private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+
+    /**
+     * The segment being read by the caller.
+     */
+    private byte[] buffer;
+
+    /**
+     * The read position within the current segment.
+     */
+    private int bufferPosition;
+
+    /**
+     * The plain text position of the next segment to submit.
+     */
+    private long nextSegment;
+
+    /**
+     * True if the end of the base stream was reached.
+     */
+    private boolean endOfStream;
+
+    /**
+     * True if the stream is closed.
+     */
+    private boolean closed;
+
+    /**
+     * Construct a decrypt-ahead stream.
+     *
+     * @param key        The AES key.
+     * @param nonce      The nonce, use null if the format is Salmon to read it from the header.
+     * @param baseStream The base stream with the encrypted data.
+     * @param format     The format to use, see {@link EncryptionFormat}
+     * @param integrity  True to verify integrity.
+     * @param hashKey    The hash key for integrity.
+     * @param threads    The number of threads to decrypt with.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesParallelInputStream(byte[] key, byte[] nonce, RandomAccessStream baseStream,
+                                  EncryptionFormat format, boolean integrity, byte[] hashKey,
+                                  int threads) throws IOException {
+        this(key, nonce, baseStream, format, integrity, hashKey, threads,
+                threads * DEFAULT_SEGMENTS_PER_THREAD);
+    }
+
+    /**
+     * Construct a decrypt-ahead stream.
+     *
+     * @param key         The AES key.
+     * @param nonce       The nonce, use null if the format is Salmon to read it from the header.
+     * @param baseStream  The base stream with the encrypted data.
+     * @param format      The format to use, see {@link EncryptionFormat}
+     * @param integrity   True to verify integrity.
+     * @param hashKey     The hash key for integrity.
+     * @param threads     The number of threads to decrypt with.
+     * @param maxInFlight The maximum number of segments decrypted ahead of the reader.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesParallelInputStream(byte[] key, byte[] nonce, RandomAccessStream baseStream,
+                                  EncryptionFormat format, boolean integrity, byte[] hashKey,
+                                  int threads, int maxInFlight) throws IOException {
+        this(key, nonce, baseStream, null, format, integrity, hashKey,
+                Executors.newFixedThreadPool(Math.max(1, threads)), true, maxInFlight);
+    }
+
+    /**
+     * Construct a decrypt-ahead stream over a sequential input stream. The encrypted data
+     * are read in order by the reader thread while the workers verify and decrypt them.
+     *
+     * @param key         The AES key.
+     * @param nonce       The nonce, use null if the format is Salmon to read it from the header.
+     * @param inputStream The input stream with the encrypted data.
+     * @param format      The format to use, see {@link EncryptionFormat}
+     * @param integrity   True to verify integrity.
+     * @param hashKey     The hash key for integrity.
+     * @param executor    The executor to decrypt with, it is not shut down when the stream is closed.
+     * @param maxInFlight The maximum number of segments decrypted ahead of the reader.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesParallelInputStream(byte[] key, byte[] nonce, InputStream inputStream,
+                                  EncryptionFormat format, boolean integrity, byte[] hashKey,
+                                  Executor executor, int maxInFlight) throws IOException {
+        this(key, nonce, null, inputStream, format, integrity, hashKey,
+                executor, false, maxInFlight);
+    }
+
+    /**
+     * Construct a decrypt-ahead stream.
+     *
+     * @param key          The AES key.
+     * @param nonce        The nonce, use null if the format is Salmon to read it from the header.
+     * @param baseStream   The base stream with the encrypted data or null.
+     * @param inputStream  The input stream with the encrypted data if there is no base stream.
+     * @param format       The format to use, see {@link EncryptionFormat}
+     * @param integrity    True to verify integrity.
+     * @param hashKey      The hash key for integrity.
+     * @param executor     The executor to decrypt with.
+     * @param ownsExecutor True to shut down the executor when the stream is closed.
+     * @param maxInFlight  The maximum number of segments decrypted ahead of the reader.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private AesParallelInputStream(byte[] key, byte[] nonce, RandomAccessStream baseStream,
+                                   InputStream inputStream, EncryptionFormat format,
+                                   boolean integrity, byte[] hashKey,
+                                   Executor executor, boolean ownsExecutor,
+                                   int maxInFlight) throws IOException {
+        if (key == null)
+            throw new SecurityException("Key is missing");
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
+        this.baseStream = baseStream;
+        this.inputStream = inputStream;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        int chunkSize = 0;
+        if (format == EncryptionFormat.Salmon) {
+            Header header = readHeader();
+            if (header == null)
+                throw new IOException("Could not read header");
+            header.checkVersion(Generator.VERSION);
+            nonce = header.getNonce();
+            chunkSize = header.getChunkSize();
+            headerData = header.getHeaderData();
+        } else {
+            integrity = false;
+            hashKey = null;
+            headerData = null;
+        }
+        if (nonce == null)
+            throw new SecurityException("Nonce is missing");
+        if (integrity && chunkSize == 0)
+            throw new SecurityException("Cannot check integrity if file doesn't support it");
+
+        this.key = key;
+        this.nonce = nonce;
+        this.baseLength = baseStream != null ? baseStream.getLength() : -1;
+        // hashes are skipped even if integrity is not verified
+        this.integrity = new Integrity(integrity, hashKey, chunkSize,
+                new HMACSHA256Provider(), Generator.HASH_RESULT_LENGTH);
+        this.maxInFlight = Math.max(1, maxInFlight);
+
+        int segmentSize = Integrity.DEFAULT_CHUNK_SIZE;
+        if (chunkSize > 0)
+            segmentSize = Math.max(1, segmentSize / chunkSize) * chunkSize;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Read a byte from the stream.
+     *
+     * @return The byte read or -1 if the end of the stream is reached.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int bytesRead = read(b, 0, 1);
+        return bytesRead <= 0 ? -1 : (b[0] & 0xFF);
+    }
+
+    /**
+     * Read decrypted data into the buffer.
+     *
+     * @param b   The buffer to read into.
+     * @param off The offset in the buffer.
+     * @param len The maximum number of bytes to read.
+     * @return The number of bytes read or -1 if the end of the stream is reached.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream is closed");
+        if (len == 0)
+            return 0;
+        int totalBytesRead = 0;
+        while (totalBytesRead < len) {
+            if (buffer == null || bufferPosition >= buffer.length) {
+                if (!nextBuffer())
+                    break;
+                continue;
+            }
+            int count = Math.min(len - totalBytesRead, buffer.length - bufferPosition);
+            System.arraycopy(buffer, bufferPosition, b, off + totalBytesRead, count);
+            bufferPosition += count;
+            totalBytesRead += count;
+        }
+        return totalBytesRead > 0 ? totalBytesRead : -1;
+    }
+
+    /**
+     * Get the number of decrypted bytes that can be read without waiting.
+     *
+     * @return The number of bytes available.
+     */
+    @Override
+    public int available() {
+        return buffer == null ? 0 : buffer.length - bufferPosition;
+    }
+
+    /**
+     * Close the stream, stop the workers, and close the base stream.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        for (CompletableFuture<byte[]> future : pending)
+            future.cancel(true);
+        pending.clear();
+        buffer = null;
+        if (ownsExecutor)
+            ((ExecutorService) executor).shutdownNow();
+        if (baseStream != null) {
+            synchronized (baseStream) {
+                baseStream.close();
+            }
+        } else {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Keep the pipeline full and wait for the next segment in order.
+     *
+     * @return True if a segment is available, false if the end of the stream is reached.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private boolean nextBuffer() throws IOException {
+        fillPipeline();
+        CompletableFuture<byte[]> future = pending.poll();
+        if (future == null)
+            return false;
+        byte[] data;
+        try {
+            data = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decrypting");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException("Could not read from stream: ", ex.getCause());
+        }
+        fillPipeline();
+        if (data.length == 0) {
+            endOfStream = true;
+            return false;
+        }
+        buffer = data;
+        bufferPosition = 0;
+        return true;
+    }
+
+    /**
+     * Submit segments until the maximum number of segments is in flight.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void fillPipeline() throws IOException {
+        while (!endOfStream && pending.size() < maxInFlight) {
+            final long start = nextSegment;
+            if (baseStream != null) {
+                if (getBasePosition(start) >= baseLength) {
+                    endOfStream = true;
+                    break;
+                }
+                pending.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        byte[] raw = new byte[getRawSegmentLength()];
+                        int rawBytesRead;
+                        synchronized (baseStream) {
+                            baseStream.setPosition(getBasePosition(start));
+                            int bytesRead;
+                            rawBytesRead = 0;
+                            while (rawBytesRead < raw.length
+                                    && (bytesRead = baseStream.read(raw, rawBytesRead, raw.length - rawBytesRead)) > 0)
+                                rawBytesRead += bytesRead;
+                        }
+                        return decryptSegment(start, raw, rawBytesRead);
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, executor));
+            } else {
+                byte[] raw = new byte[getRawSegmentLength()];
+                int rawBytesRead = readFully(inputStream, raw);
+                if (rawBytesRead == 0) {
+                    endOfStream = true;
+                    break;
+                }
+                pending.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return decryptSegment(start, raw, rawBytesRead);
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, executor));
+            }
+            nextSegment += segmentSize;
+        }
+    }
+
+    /**
+     * Read the header from the start of the encrypted data.
+     *
+     * @return The header or null if there are no data.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private Header readHeader() throws IOException {
+        if (baseStream != null)
+            return Header.readHeaderData(baseStream);
+        byte[] headerData = new byte[(int) Header.HEADER_LENGTH];
+        if (readFully(inputStream, headerData) < headerData.length)
+            return null;
+        return Header.readHeaderData(new MemoryStream(headerData));
+    }
+
+    /**
+     * Get the length of a segment in the base stream including the hash signatures.
+     *
+     * @return The length.
+     */
+    private int getRawSegmentLength() {
+        int chunkSize = integrity.getChunkSize();
+        int rawLength = segmentSize;
+        if (chunkSize > 0)
+            rawLength += segmentSize / chunkSize * Generator.HASH_RESULT_LENGTH;
+        return rawLength;
+    }
+
+    /**
+     * Read until the buffer is full or the end of the stream is reached.
+     *
+     * @param stream The stream to read from.
+     * @param buffer The buffer.
+     * @return The number of bytes read.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private static int readFully(InputStream stream, byte[] buffer) throws IOException {
+        int totalBytesRead = 0;
+        int bytesRead;
+        while (totalBytesRead < buffer.length
+                && (bytesRead = stream.read(buffer, totalBytesRead, buffer.length - totalBytesRead)) > 0)
+            totalBytesRead += bytesRead;
+        return totalBytesRead;
+    }
+
+    /**
+     * Get the position in the base stream for a chunk aligned plain text position.
+     *
+     * @param position The plain text position.
+     * @return The base stream position.
+     */
+    private long getBasePosition(long position) {
+        long basePosition = headerData != null ? Header.HEADER_LENGTH : 0;
+        int chunkSize = integrity.getChunkSize();
+        if (chunkSize > 0)
+            basePosition += position / chunkSize * Generator.HASH_RESULT_LENGTH;
+        return basePosition + position;
+    }
+
+    /**
+     * Verify and decrypt a segment.
+     *
+     * @param start        The plain text position of the segment.
+     * @param raw          The segment as stored including the hash signatures.
+     * @param rawBytesRead The length of the stored data.
+     * @return The decrypted data, empty if there are no data.
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    private byte[] decryptSegment(long start, byte[] raw, int rawBytesRead) throws IOException {
+        int chunkSize = integrity.getChunkSize();
+        byte[] encData;
+        if (chunkSize > 0) {
+            encData = new byte[rawBytesRead];
+            int chunks = 0;
+            int length = 0;
+            for (int i = 0; i < rawBytesRead; i += Generator.HASH_RESULT_LENGTH + chunkSize) {
+                int count = Math.min(chunkSize, rawBytesRead - i - Generator.HASH_RESULT_LENGTH);
+                if (count <= 0)
+                    break;
+                System.arraycopy(raw, i + Generator.HASH_RESULT_LENGTH, encData, length, count);
+                length += count;
+                chunks++;
+            }
+            byte[] data = new byte[length];
+            System.arraycopy(encData, 0, data, 0, length);
+            encData = data;
+            if (integrity.useIntegrity()) {
+                byte[][] hashes = new byte[chunks][];
+                for (int i = 0; i < chunks; i++) {
+                    hashes[i] = new byte[Generator.HASH_RESULT_LENGTH];
+                    System.arraycopy(raw, i * (Generator.HASH_RESULT_LENGTH + chunkSize),
+                            hashes[i], 0, Generator.HASH_RESULT_LENGTH);
+                }
+                integrity.verifyHashes(hashes, encData, start == 0 ? headerData : null);
+            }
+        } else if (rawBytesRead < raw.length) {
+            encData = new byte[rawBytesRead];
+            System.arraycopy(raw, 0, encData, 0, rawBytesRead);
+        } else {
+            encData = raw;
+        }
+
+        ICTRTransformer transformer = transformers.poll();
+        if (transformer == null) {
+            transformer = TransformerFactory.create(AesStream.getAesProviderType());
+            transformer.init(key, nonce);
+        }
+        byte[] data = new byte[encData.length];
+        try {
+            transformer.syncCounter(start);
+            transformer.decryptData(encData, 0, data, 0, encData.length);
+        } finally {
+            transformers.add(transformer);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,489 @@
+package com.mku.salmon.streams;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.salmon.Generator;
+import com.mku.salmon.Header;
+import com.mku.salmon.SecurityException;
+import com.mku.salmon.integrity.HMACSHA256Provider;
+import com.mku.salmon.integrity.Integrity;
+import com.mku.salmon.integrity.IntegrityException;
+import com.mku.salmon.transform.ICTRTransformer;
+import com.mku.salmon.transform.TransformerFactory;
+import com.mku.streams.MemoryStream;
+import com.mku.streams.RandomAccessStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Output stream that encrypts sequential writes in parallel. Consecutive segments of chunks
+ * are encrypted and signed on a worker pool while the segments that are ready are written
+ * in order through a single base stream. The number of segments in flight is bounded so
+ * memory use does not depend on the size of the data.
+ * <p>
+ * The output is identical to writing the same data sequentially through an {@link AesStream}.
+ * </p>
+ */
+public class AesParallelOutputStream extends OutputStream {
+    /**
+     * Default number of segments per thread that can be in flight.
+     */
+    public static final int DEFAULT_SEGMENTS_PER_THREAD = 2;
+
+    /**
+     * Writes the encrypted segments in order.
+     */
+    private interface SegmentWriter {
+        /**
+         * Write the encrypted data.
+         *
+         * @param buffer The buffer.
+         * @param offset The offset.
+         * @param count  The number of bytes.
+         * @throws IOException Thrown if there is an IO error.
+         */
+        void write(byte[] buffer, int offset, int count) throws IOException;
+
+        /**
+         * Flush the written data.
+         *
+         * @throws IOException Thrown if there is an IO error.
+         */
+        void flush() throws IOException;
+
+        /**
+         * Close the target.
+         *
+         * @throws IOException Thrown if there is an IO error.
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * The AES key.
+     */
+    private final byte[] key;
+
+    /**
+     * The nonce.
+     */
+    private final byte[] nonce;
+
+    /**
+     * The header data included in the hash of the first chunk, null for the generic format.
+     */
+    private final byte[] headerData;
+
+    /**
+     * The integrity settings.
+     */
+    private final Integrity integrity;
+
+    /**
+     * The target of the encrypted segments.
+     */
+    private final SegmentWriter writer;
+
+    /**
+     * The plain text size of each segment.
+     */
+    private final int segmentSize;
+
+    /**
+     * The maximum number of segments in flight.
+     */
+    private final int maxInFlight;
+
+    /**
+     * The encryption workers.
+     */
+    private final Executor executor;
+
+    /**
+     * True if the executor was created by this stream.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * Transformers not used by any worker, reused so the keys are not expanded for every segment.
+     */
+    private final ConcurrentLinkedQueue<ICTRTransformer> transformers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Encrypted segments in the order they should be written.
+     */
+    private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+
+    /**
+     * The segment being filled by the caller.
+     */
+    private byte[] buffer;
+
+    /**
+     * The length of the data in the buffer.
+     */
+    private int bufferLength;
+
+    /**
+     * The plain text position of the segment being filled.
+     */
+    private long position;
+
+    /**
+     * True if all data were written.
+     */
+    private boolean finished;
+
+    /**
+     * True if the stream is closed.
+     */
+    private boolean closed;
+
+    /**
+     * Construct a parallel encryption stream that writes to a base stream.
+     *
+     * @param key        The AES key.
+     * @param nonce      The nonce.
+     * @param baseStream The base stream to write the encrypted data to.
+     * @param format     The format to use, see {@link EncryptionFormat}
+     * @param integrity  True to apply integrity.
+     * @param hashKey    The hash key for integrity.
+     * @param chunkSize  The chunk size, 0 to use the default if integrity is enabled.
+     * @param threads    The number of threads to encrypt with.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesParallelOutputStream(byte[] key, byte[] nonce, RandomAccessStream baseStream,
+                                   EncryptionFormat format, boolean integrity, byte[] hashKey,
+                                   int chunkSize, int threads) throws IOException {
+        this(key, nonce, baseStream, format, integrity, hashKey, chunkSize, threads,
+                threads * DEFAULT_SEGMENTS_PER_THREAD);
+    }
+
+    /**
+     * Construct a parallel encryption stream that writes to a base stream.
+     *
+     * @param key         The AES key.
+     * @param nonce       The nonce.
+     * @param baseStream  The base stream to write the encrypted data to.
+     * @param format      The format to use, see {@link EncryptionFormat}
+     * @param integrity   True to apply integrity.
+     * @param hashKey     The hash key for integrity.
+     * @param chunkSize   The chunk size, 0 to use the default if integrity is enabled.
+     * @param threads     The number of threads to encrypt with.
+     * @param maxInFlight The maximum number of segments buffered or being encrypted.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesParallelOutputStream(byte[] key, byte[] nonce, RandomAccessStream baseStream,
+                                   EncryptionFormat format, boolean integrity, byte[] hashKey,
+                                   int chunkSize, int threads, int maxInFlight) throws IOException {
+        this(key, nonce, new SegmentWriter() {
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                baseStream.write(buffer, offset, count);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                baseStream.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                baseStream.close();
+            }
+        }, format, integrity, hashKey, chunkSize, Executors.newFixedThreadPool(Math.max(1, threads)),
+                true, maxInFlight);
+    }
+
+    /**
+     * Construct a parallel encryption stream that writes to an output stream.
+     *
+     * @param key          The AES key.
+     * @param nonce        The nonce.
+     * @param outputStream The output stream to write the encrypted data to.
+     * @param format       The format to use, see {@link EncryptionFormat}
+     * @param integrity    True to apply integrity.
+     * @param hashKey      The hash key for integrity.
+     * @param chunkSize    The chunk size, 0 to use the default if integrity is enabled.
+     * @param executor     The executor to encrypt with, it is not shut down when the stream is closed.
+     * @param maxInFlight  The maximum number of segments buffered or being encrypted.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesParallelOutputStream(byte[] key, byte[] nonce, OutputStream outputStream,
+                                   EncryptionFormat format, boolean integrity, byte[] hashKey,
+                                   int chunkSize, Executor executor, int maxInFlight) throws IOException {
+        this(key, nonce, new SegmentWriter() {
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                outputStream.write(buffer, offset, count);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                outputStream.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                outputStream.close();
+            }
+        }, format, integrity, hashKey, chunkSize, executor, false, maxInFlight);
+    }
+
+    /**
+     * Construct a parallel encryption stream.
+     *
+     * @param key          The AES key.
+     * @param nonce        The nonce.
+     * @param writer       The target of the encrypted segments.
+     * @param format       The format to use, see {@link EncryptionFormat}
+     * @param integrity    True to apply integrity.
+     * @param hashKey      The hash key for integrity.
+     * @param chunkSize    The chunk size, 0 to use the default if integrity is enabled.
+     * @param executor     The executor to encrypt with.
+     * @param ownsExecutor True to shut down the executor when the stream is closed.
+     * @param maxInFlight  The maximum number of segments buffered or being encrypted.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private AesParallelOutputStream(byte[] key, byte[] nonce, SegmentWriter writer,
+                                    EncryptionFormat format, boolean integrity, byte[] hashKey,
+                                    int chunkSize, Executor executor, boolean ownsExecutor,
+                                    int maxInFlight) throws IOException {
+        if (key == null)
+            throw new SecurityException("Key is missing");
+        if (nonce == null)
+            throw new SecurityException("Nonce is missing");
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
+        if (format == EncryptionFormat.Generic) {
+            integrity = false;
+            hashKey = null;
+        }
+        if (integrity)
+            chunkSize = chunkSize <= 0 ? Integrity.DEFAULT_CHUNK_SIZE : chunkSize;
+        else
+            chunkSize = 0;
+
+        this.key = key;
+        this.nonce = nonce;
+        this.writer = writer;
+        this.integrity = new Integrity(integrity, hashKey, chunkSize,
+                new HMACSHA256Provider(), Generator.HASH_RESULT_LENGTH);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+
+        // each segment holds whole chunks so the hashes can be calculated independently
+        int segmentSize = Integrity.DEFAULT_CHUNK_SIZE;
+        if (chunkSize > 0)
+            segmentSize = Math.max(1, segmentSize / chunkSize) * chunkSize;
+        this.segmentSize = segmentSize;
+
+        if (format == EncryptionFormat.Salmon) {
+            MemoryStream ms = new MemoryStream();
+            Header header = Header.writeHeader(ms, nonce, chunkSize);
+            ms.close();
+            headerData = header.getHeaderData();
+            writer.write(headerData, 0, headerData.length);
+        } else {
+            headerData = null;
+        }
+    }
+
+    /**
+     * Write a byte to the stream.
+     *
+     * @param b The byte.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * Write data to the stream. Data are buffered until a full segment is available.
+     *
+     * @param b   The buffer with the data.
+     * @param off The offset in the buffer.
+     * @param len The number of bytes to write.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished)
+            throw new IOException("Stream is finished");
+        while (len > 0) {
+            if (buffer == null)
+                buffer = new byte[segmentSize];
+            int count = Math.min(len, segmentSize - bufferLength);
+            System.arraycopy(b, off, buffer, bufferLength, count);
+            bufferLength += count;
+            off += count;
+            len -= count;
+            if (bufferLength == segmentSize)
+                submitSegment();
+        }
+    }
+
+    /**
+     * Write all segments that are encrypted so far. Data that do not fill a segment
+     * remain buffered until more data are written or the stream is closed.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty())
+            writeNextSegment();
+        writer.flush();
+    }
+
+    /**
+     * Encrypt the remaining data and write all segments without closing the base stream.
+     * No more data can be written afterwards.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        try {
+            if (bufferLength > 0)
+                submitSegment();
+            flush();
+        } finally {
+            finished = true;
+            pending.clear();
+        }
+    }
+
+    /**
+     * Encrypt the remaining data, write all segments, and close the base stream.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            finish();
+        } finally {
+            closed = true;
+            if (ownsExecutor)
+                ((ExecutorService) executor).shutdownNow();
+            writer.close();
+        }
+    }
+
+    /**
+     * Submit the buffered segment for encryption, waiting for the oldest segment to be
+     * written first if the maximum number of segments is in flight.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void submitSegment() throws IOException {
+        while (pending.size() >= maxInFlight)
+            writeNextSegment();
+        final byte[] data = buffer;
+        final int length = bufferLength;
+        final long start = position;
+        pending.add(CompletableFuture.supplyAsync(() -> encryptSegment(data, length, start), executor));
+        position += length;
+        buffer = null;
+        bufferLength = 0;
+    }
+
+    /**
+     * Wait for the oldest segment and write it to the base stream.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void writeNextSegment() throws IOException {
+        CompletableFuture<byte[]> future = pending.poll();
+        if (future == null)
+            return;
+        byte[] data;
+        try {
+            data = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encrypting");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException("Could not write to stream: ", ex.getCause());
+        }
+        writer.write(data, 0, data.length);
+    }
+
+    /**
+     * Encrypt a segment and interleave the hash signatures of its chunks.
+     *
+     * @param data   The plain text data.
+     * @param length The length of the data.
+     * @param start  The plain text position of the data.
+     * @return The encrypted segment as it will be stored.
+     * @throws IntegrityException Thrown if the hashes cannot be calculated.
+     */
+    private byte[] encryptSegment(byte[] data, int length, long start) {
+        ICTRTransformer transformer = transformers.poll();
+        if (transformer == null) {
+            transformer = TransformerFactory.create(AesStream.getAesProviderType());
+            transformer.init(key, nonce);
+        }
+        byte[] encData = new byte[length];
+        try {
+            transformer.syncCounter(start);
+            transformer.encryptData(data, 0, encData, 0, length);
+        } finally {
+            transformers.add(transformer);
+        }
+        if (!integrity.useIntegrity())
+            return encData;
+
+        int chunkSize = integrity.getChunkSize();
+        byte[][] hashes = integrity.generateHashes(encData, start == 0 ? headerData : null);
+        byte[] outData = new byte[length + hashes.length * Generator.HASH_RESULT_LENGTH];
+        int outPos = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            int count = Math.min(chunkSize, length - i * chunkSize);
+            System.arraycopy(hashes[i], 0, outData, outPos, hashes[i].length);
+            outPos += hashes[i].length;
+            System.arraycopy(encData, i * chunkSize, outData, outPos, count);
+            outPos += count;
+        }
+        return outData;
+    }
+}
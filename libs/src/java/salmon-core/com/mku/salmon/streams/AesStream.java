@@ -33,11 +33,16 @@ import com.mku.salmon.integrity.IntegrityException;
 import com.mku.salmon.transform.AesCTRTransformer;
 import com.mku.salmon.transform.ICTRTransformer;
 import com.mku.salmon.transform.TransformerFactory;
-import com.mku.streams.InputStreamWrapper;
 import com.mku.streams.RandomAccessStream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Stream wrapper provides AES-256 encryption, decryption, and integrity verification of a data stream.
@@ -85,6 +90,52 @@ public class AesStream extends RandomAccessStream {
      */
     private Integrity integrity;
 
+    /**
+     * Cached length of the base stream, -1 if it needs to be retrieved.
+     */
+    private long baseLength = -1;
+
+    /**
+     * Cached virtual length of the stream, -1 if it needs to be calculated.
+     */
+    private long length = -1;
+
+    /**
+     * Tracked position of the base stream, -1 if unknown.
+     */
+    private long basePosition = -1;
+
+    /**
+     * Tracked virtual position of the stream.
+     */
+    private long position;
+
+    /**
+     * Number of threads of the default executor for the asynchronous operations.
+     */
+    public static final int DEFAULT_ASYNC_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Default executor for the asynchronous operations, created when first needed.
+     */
+    private static Executor defaultAsyncExecutor;
+
+    /**
+     * Executor that runs the asynchronous read and write operations.
+     */
+    private Executor asyncExecutor;
+
+    /**
+     * The last submitted asynchronous operation. New operations are chained
+     * after it so they run in the order they were submitted.
+     */
+    private volatile CompletableFuture<?> pendingOperation = CompletableFuture.completedFuture(null);
+
+    /**
+     * The thread running the current asynchronous operation.
+     */
+    private volatile Thread asyncThread;
+
     /**
      * Align size for performance calculating the integrity when available.
      * @return The align size
@@ -126,6 +177,8 @@ public class AesStream extends RandomAccessStream {
      */
     public static long getOutputSize(EncryptionMode mode, long length,
                                      EncryptionFormat format, int chunkSize) {
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Output size of compressed data is not known, use AesCompressedStream");
         long size = length;
         if (format == EncryptionFormat.Salmon) {
             if (mode == EncryptionMode.Encrypt) {
@@ -251,6 +304,64 @@ public class AesStream extends RandomAccessStream {
     public AesStream(byte[] key, byte[] nonce, EncryptionMode encryptionMode,
                      RandomAccessStream baseStream, EncryptionFormat format, boolean integrity, byte[] hashKey, int chunkSize)
             throws IOException {
+        this(key, nonce, encryptionMode, baseStream, checkFormat(format), integrity, hashKey, chunkSize,
+                null, Generator.VERSION);
+    }
+
+    /**
+     * Instantiate a new decryption stream with a header that has already been read from the base stream.
+     * Use this to avoid reading the header again when it is already known, ie: cached by the caller.
+     *
+     * @param key        The AES key that is used to decrypt
+     * @param header     The header of the encrypted data, see {@link Header#readHeaderData}
+     * @param baseStream The base Stream that will be used to read the data
+     * @param integrity  True to enable integrity verification
+     * @param hashKey    Hash key to be used with integrity
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public AesStream(byte[] key, Header header, RandomAccessStream baseStream, boolean integrity, byte[] hashKey)
+            throws IOException {
+        this(key, header.getNonce(), EncryptionMode.Decrypt, baseStream, EncryptionFormat.Salmon,
+                integrity, hashKey, header.getChunkSize(), header, Generator.VERSION);
+    }
+
+    /**
+     * Check that the format is supported by this stream.
+     *
+     * @param format The format
+     * @return The format
+     * @throws SecurityException Thrown if the format is {@link EncryptionFormat#SalmonCompressed}
+     */
+    private static EncryptionFormat checkFormat(EncryptionFormat format) {
+        if (format == EncryptionFormat.SalmonCompressed)
+            throw new SecurityException("Compressed format is only supported by AesCompressedStream");
+        return format;
+    }
+
+    /**
+     * Instantiate a new encrypted stream. {@link AesCompressedStream} uses this with
+     * {@link Generator#COMPRESSED_VERSION} to store the compressed chunks.
+     *
+     * @param key            The AES key that is used to encrypt decrypt
+     * @param nonce          The nonce used for the initial counter
+     * @param encryptionMode Encryption mode Encrypt or Decrypt this cannot change later
+     * @param baseStream     The base Stream that will be used to read the data
+     * @param format         The format to use, {@link EncryptionFormat#Generic} or {@link EncryptionFormat#Salmon}
+     * @param integrity      True to enable integrity verification
+     * @param hashKey        Hash key to be used with integrity
+     * @param chunkSize      the chunk size to be used with integrity
+     * @param header         The header if already read from the base stream, or null
+     * @param version        The format version written to or expected in the header
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    AesStream(byte[] key, byte[] nonce, EncryptionMode encryptionMode,
+              RandomAccessStream baseStream, EncryptionFormat format, boolean integrity, byte[] hashKey,
+              int chunkSize, Header header, byte version)
+            throws IOException {
         if (format == EncryptionFormat.Generic) {
             integrity = false;
             hashKey = null;
@@ -258,8 +369,9 @@ public class AesStream extends RandomAccessStream {
         }
         this.encryptionMode = encryptionMode;
         this.baseStream = baseStream;
-        this.header = getOrCreateHeader(format, nonce, integrity, chunkSize);
+        this.header = header != null ? header : getOrCreateHeader(format, nonce, integrity, chunkSize, version);
         if (this.header != null) {
+            this.header.checkVersion(version);
             chunkSize = this.header.getChunkSize();
             nonce = this.header.getNonce();
         } else {
@@ -272,7 +384,8 @@ public class AesStream extends RandomAccessStream {
         initStream();
     }
 
-    private Header getOrCreateHeader(EncryptionFormat format, byte[] nonce, boolean integrity, int chunkSize) throws IOException {
+    private Header getOrCreateHeader(EncryptionFormat format, byte[] nonce, boolean integrity, int chunkSize,
+                                     byte version) throws IOException {
         if (format == EncryptionFormat.Salmon) {
             if (encryptionMode == EncryptionMode.Encrypt) {
                 if (nonce == null)
@@ -280,7 +393,7 @@ public class AesStream extends RandomAccessStream {
 
                 if (integrity && chunkSize <= 0)
                     chunkSize = Integrity.DEFAULT_CHUNK_SIZE;
-                return Header.writeHeader(baseStream, nonce, chunkSize);
+                return Header.writeHeader(baseStream, nonce, chunkSize, version);
             }
             return Header.readHeaderData(baseStream);
         }
@@ -355,10 +468,50 @@ public class AesStream extends RandomAccessStream {
      */
     @Override
     public long getLength() {
+        if (length >= 0)
+            return length;
+        long totalHashBytes;
+        int hashOffset = integrity.getChunkSize() > 0 ? Generator.HASH_RESULT_LENGTH : 0;
+        totalHashBytes = integrity.getHashDataLength(getBaseLength() - 1, hashOffset);
+        length = getBaseLength() - getHeaderLength() - totalHashBytes;
+        return length;
+    }
+
+    /**
+     * Get the length of the base stream. The value is cached so remote base streams
+     * are not queried on every call.
+     *
+     * @return The length of the base stream.
+     */
+    private long getBaseLength() {
+        if (baseLength < 0)
+            baseLength = baseStream.getLength();
+        return baseLength;
+    }
+
+    /**
+     * Refresh the cached length and position of the base stream. Use this if the base stream
+     * was modified or repositioned outside of this stream.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public void refresh() throws IOException {
+        baseLength = -1;
+        length = -1;
+        updatePosition(baseStream.getPosition());
+    }
+
+    /**
+     * Update the tracked position of the base stream and the virtual position.
+     *
+     * @param basePosition The position of the base stream.
+     */
+    private void updatePosition(long basePosition) {
         long totalHashBytes;
         int hashOffset = integrity.getChunkSize() > 0 ? Generator.HASH_RESULT_LENGTH : 0;
-        totalHashBytes = integrity.getHashDataLength(baseStream.getLength() - 1, hashOffset);
-        return baseStream.getLength() - getHeaderLength() - totalHashBytes;
+        totalHashBytes = integrity.getHashDataLength(basePosition, hashOffset);
+        this.basePosition = basePosition;
+        this.position = basePosition - getHeaderLength() - totalHashBytes;
     }
 
     /**
@@ -369,10 +522,7 @@ public class AesStream extends RandomAccessStream {
      */
     @Override
     public long getPosition() throws IOException {
-        long totalHashBytes;
-        int hashOffset = integrity.getChunkSize() > 0 ? Generator.HASH_RESULT_LENGTH : 0;
-        totalHashBytes = integrity.getHashDataLength(baseStream.getPosition(), hashOffset);
-        return baseStream.getPosition() - getHeaderLength() - totalHashBytes;
+        return position;
     }
 
     /**
@@ -383,6 +533,7 @@ public class AesStream extends RandomAccessStream {
      */
     @Override
     public void setPosition(long value) throws IOException {
+        checkNoPendingAsync();
         if (canWrite() && !allowRangeWrite && value != 0) {
             throw new IOException(
                     new SecurityException("Range Write is not allowed for security (non-reusable IVs). " +
@@ -579,7 +730,11 @@ public class AesStream extends RandomAccessStream {
         // we skip the header bytes and any hash values we have if the file has integrity set
         long totalHashBytes = integrity.getHashDataLength(value, 0);
         value += totalHashBytes + getHeaderLength();
-        baseStream.setPosition(value);
+        // avoid repositioning the base stream if it is already there, the base stream
+        // is checked since it might have been moved outside of this stream
+        if (value != baseStream.getPosition())
+            baseStream.setPosition(value);
+        updatePosition(value);
 
         transformer.resetCounter();
         transformer.syncCounter(getPosition());
@@ -606,6 +761,7 @@ public class AesStream extends RandomAccessStream {
      */
     @Override
     public int read(byte[] buffer, int offset, int count) throws IOException {
+        checkNoPendingAsync();
         if (getPosition() == getLength())
             return -1;
         int alignedOffset = getAlignedOffset();
@@ -716,6 +872,9 @@ public class AesStream extends RandomAccessStream {
      */
     @Override
     public void write(byte[] buffer, int offset, int count) throws IOException {
+        checkNoPendingAsync();
+        if (encryptionMode != EncryptionMode.Encrypt)
+            throw new IOException("Stream is not in encrypt mode");
         if (integrity.getChunkSize() > 0 && getPosition() % integrity.getChunkSize() != 0)
             throw new IOException(
                     new IntegrityException("All write operations should be aligned to the chunks size: "
@@ -822,12 +981,13 @@ public class AesStream extends RandomAccessStream {
      * @throws IOException Thrown if there is an IO error.
      */
     private byte[] readStreamData(int count) throws IOException {
-        byte[] data = new byte[(int) Math.min(count, baseStream.getLength() - baseStream.getPosition())];
+        byte[] data = new byte[(int) Math.min(count, getBaseLength() - basePosition)];
         int bytesRead;
         int totalBytesRead = 0;
         while ((bytesRead = baseStream.read(data, totalBytesRead, data.length - totalBytesRead)) > 0) {
             totalBytesRead += bytesRead;
         }
+        updatePosition(basePosition + totalBytesRead);
         return data;
     }
 
@@ -858,15 +1018,22 @@ public class AesStream extends RandomAccessStream {
         int chunk = 0;
         if (chunkSize <= 0)
             chunkSize = buffer.length;
+        long written = 0;
         while (pos < buffer.length) {
             if (hashes != null) {
                 baseStream.write(hashes[chunk], 0, hashes[chunk].length);
+                written += hashes[chunk].length;
             }
             int len = Math.min(chunkSize, buffer.length - pos);
             baseStream.write(buffer, pos, len);
             pos += len;
+            written += len;
             chunk++;
         }
+        // the base stream has grown so the cached lengths are no longer valid
+        baseLength = -1;
+        length = -1;
+        updatePosition(basePosition + written);
         return pos;
     }
 
@@ -893,6 +1060,7 @@ public class AesStream extends RandomAccessStream {
 
     /**
      * Get a native buffered stream to use with 3rd party libraries.
+     * The returned stream adapts its readahead to the access pattern, see {@link ReadAheadInputStream}.
      * @return The native read stream
      */
     @Override
@@ -900,11 +1068,7 @@ public class AesStream extends RandomAccessStream {
     {
         if (canWrite())
             throw new RuntimeException("Stream is in write mode");
-
-        // adjust for data integrity
-        int backOffset = 32768;
-        int bufferSize = 4 * 1024 * 1024;
-        return new InputStreamWrapper(this, 1, bufferSize, backOffset, getAlignSize());
+        return new ReadAheadInputStream(this);
     }
 
     /**
@@ -925,6 +1089,152 @@ public class AesStream extends RandomAccessStream {
         return encryptionMode;
     }
 
+    /**
+     * Set the executor that will run the asynchronous operations, see {@link #readAsync(byte[], int, int)}
+     * and {@link #writeAsync(byte[], int, int)}. The executor runs both the blocking base stream IO and the
+     * AES and HMAC work so you can use a dedicated IO pool or a virtual thread executor. Avoid
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()} since the base stream IO blocks.
+     * Default is {@link #getDefaultAsyncExecutor()}.
+     *
+     * @param executor The executor
+     */
+    public void setAsyncExecutor(Executor executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("Executor cannot be null");
+        this.asyncExecutor = executor;
+    }
+
+    /**
+     * Get the executor that runs the asynchronous operations.
+     *
+     * @return The executor
+     */
+    public Executor getAsyncExecutor() {
+        if (asyncExecutor == null)
+            asyncExecutor = getDefaultAsyncExecutor();
+        return asyncExecutor;
+    }
+
+    /**
+     * Get the default executor for the asynchronous operations, a shared pool of
+     * {@link #DEFAULT_ASYNC_THREADS} daemon threads for blocking stream IO. Operations
+     * submitted while all the threads are busy wait in a queue. Idle threads are released.
+     *
+     * @return The executor
+     */
+    public static synchronized Executor getDefaultAsyncExecutor() {
+        if (defaultAsyncExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_ASYNC_THREADS, DEFAULT_ASYNC_THREADS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+                Thread thread = new Thread(runnable, "AesStream-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            defaultAsyncExecutor = executor;
+        }
+        return defaultAsyncExecutor;
+    }
+
+    /**
+     * Check that no asynchronous operations are pending. Synchronous reads, writes, and seeks
+     * cannot overlap pending asynchronous operations since they share the stream position.
+     *
+     * @throws IOException Thrown if asynchronous operations are pending.
+     */
+    private void checkNoPendingAsync() throws IOException {
+        if (Thread.currentThread() != asyncThread && !pendingOperation.isDone())
+            throw new IOException("Asynchronous operations are pending, wait for them to complete first");
+    }
+
+    /**
+     * Decrypts the data from the baseStream asynchronously.
+     * Operations submitted to the same stream run in order. Synchronous reads, writes, and seeks
+     * throw an IOException until the pending operations complete.
+     * The operation blocks a thread of the async executor while the base stream is read or
+     * written, see {@link #setAsyncExecutor(Executor)}.
+     *
+     * @param buffer The buffer that the data will be stored after decryption
+     * @param offset The start position on the buffer that data will be written.
+     * @param count  The requested count of the data bytes that should be decrypted
+     * @return A future with the number of data bytes that were decrypted.
+     */
+    public CompletableFuture<Integer> readAsync(byte[] buffer, int offset, int count) {
+        return submitAsync(() -> read(buffer, offset, count));
+    }
+
+    /**
+     * Seeks to the position and decrypts the data from the baseStream asynchronously.
+     * Operations submitted to the same stream run in order. Synchronous reads, writes, and seeks
+     * throw an IOException until the pending operations complete.
+     * The operation blocks a thread of the async executor while the base stream is read or
+     * written, see {@link #setAsyncExecutor(Executor)}.
+     *
+     * @param position The position of the stream to read from
+     * @param buffer   The buffer that the data will be stored after decryption
+     * @param offset   The start position on the buffer that data will be written.
+     * @param count    The requested count of the data bytes that should be decrypted
+     * @return A future with the number of data bytes that were decrypted.
+     */
+    public CompletableFuture<Integer> readAsync(long position, byte[] buffer, int offset, int count) {
+        return submitAsync(() -> {
+            setPosition(position);
+            return read(buffer, offset, count);
+        });
+    }
+
+    /**
+     * Encrypts the data from the buffer and writes the result to the baseStream asynchronously.
+     * Operations submitted to the same stream run in order. Synchronous reads, writes, and seeks
+     * throw an IOException until the pending operations complete.
+     * The operation blocks a thread of the async executor while the base stream is read or
+     * written, see {@link #setAsyncExecutor(Executor)}.
+     *
+     * @param buffer The buffer that contains the data that will be encrypted
+     * @param offset The offset in the buffer that the bytes will be encrypted.
+     * @param count  The length of the bytes that will be encrypted.
+     * @return A future that completes when the data are written.
+     */
+    public CompletableFuture<Void> writeAsync(byte[] buffer, int offset, int count) {
+        return submitAsync(() -> {
+            write(buffer, offset, count);
+            return null;
+        });
+    }
+
+    /**
+     * Submit an operation to the async executor after any pending operation completes.
+     *
+     * @param operation The operation
+     * @param <T>       The result type
+     * @return The future result of the operation
+     */
+    private synchronized <T> CompletableFuture<T> submitAsync(AsyncOperation<T> operation) {
+        CompletableFuture<T> future = pendingOperation
+                .handle((result, ex) -> null)
+                .thenApplyAsync((ignored) -> {
+                    asyncThread = Thread.currentThread();
+                    try {
+                        return operation.run();
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    } finally {
+                        asyncThread = null;
+                    }
+                }, getAsyncExecutor());
+        pendingOperation = future;
+        return future;
+    }
+
+    /**
+     * Stream operation that can run asynchronously.
+     *
+     * @param <T> The result type
+     */
+    private interface AsyncOperation<T> {
+        T run() throws IOException;
+    }
+
     /**
      * Get the allowed range write option. This can check if you can use random access write.
      * This is generally not a good option since it prevents reusing the same nonce/counter.
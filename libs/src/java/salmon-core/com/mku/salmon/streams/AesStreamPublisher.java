@@ -0,0 +1,271 @@
+package com.mku.salmon.streams;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.salmon.integrity.Integrity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the decrypted contents of an {@link AesStream} as chunk aligned buffers for reactive pipelines.
+ * Buffers are decrypted ahead of the subscriber demand on an executor up to a bounded number of buffers
+ * so the subscriber does not wait for the IO and the decryption and the whole file is never held in memory.
+ * The publisher takes ownership of the stream and closes it when the stream is consumed or the subscription
+ * is cancelled. A publisher can only be subscribed once.
+ * <p>
+ * Example: {@code new AesStreamPublisher(aesFile.getInputStream())}
+ * </p>
+ */
+public class AesStreamPublisher implements Flow.Publisher<ByteBuffer> {
+    /**
+     * Default number of buffers that will be decrypted ahead.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    private final AesStream stream;
+    private final int bufferSize;
+    private final int maxInFlight;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    /**
+     * Instantiate a publisher for the stream with the default options.
+     *
+     * @param stream The stream to read the decrypted data from.
+     */
+    public AesStreamPublisher(AesStream stream) {
+        this(stream, 0, DEFAULT_MAX_IN_FLIGHT, null);
+    }
+
+    /**
+     * Instantiate a publisher for the stream.
+     *
+     * @param stream      The stream to read the decrypted data from.
+     * @param bufferSize  The size of each buffer, it will be aligned to the chunk size if integrity is enabled
+     *                    otherwise to the AES block size. Use 0 for default.
+     * @param maxInFlight The maximum number of buffers to decrypt ahead of the subscriber.
+     * @param executor    The executor to read, decrypt, and emit the buffers. The reads block so use an IO
+     *                    executor, use null for {@link AesStream#getDefaultAsyncExecutor()}.
+     */
+    public AesStreamPublisher(AesStream stream, int bufferSize, int maxInFlight, Executor executor) {
+        if (stream.getEncryptionMode() != EncryptionMode.Decrypt)
+            throw new IllegalArgumentException("Stream should be in decrypt mode");
+        if (bufferSize <= 0)
+            bufferSize = Integrity.DEFAULT_CHUNK_SIZE;
+        int alignSize = stream.getAlignSize();
+        if (bufferSize < alignSize)
+            bufferSize = alignSize;
+        else
+            bufferSize = bufferSize / alignSize * alignSize;
+        if (maxInFlight <= 0)
+            maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        this.stream = stream;
+        this.bufferSize = bufferSize;
+        this.maxInFlight = maxInFlight;
+        this.executor = executor != null ? executor : AesStream.getDefaultAsyncExecutor();
+    }
+
+    /**
+     * Subscribe to receive the decrypted buffers.
+     *
+     * @param subscriber The subscriber
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("Subscriber cannot be null");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher can only be subscribed once"));
+            return;
+        }
+        AesStreamSubscription subscription = new AesStreamSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Subscription that reads ahead from the stream and emits the buffers according to the demand.
+     */
+    private class AesStreamSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger buffered = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean reading = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean eof;
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        AesStreamSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Request more buffers.
+         *
+         * @param n The number of buffers
+         */
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested buffers should be a positive number");
+                eof = true;
+                buffers.clear();
+                drain();
+                return;
+            }
+            long current, next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            scheduleRead();
+            drain();
+        }
+
+        /**
+         * Cancel the subscription and close the stream.
+         */
+        @Override
+        public void cancel() {
+            cancelled = true;
+            buffers.clear();
+            if (!reading.get())
+                closeStream();
+        }
+
+        /**
+         * Start reading ahead if there is room for more buffers.
+         */
+        private void scheduleRead() {
+            if (!eof && !cancelled && buffered.get() < maxInFlight && reading.compareAndSet(false, true))
+                executor.execute(this::readAhead);
+        }
+
+        /**
+         * Read and decrypt buffers until there are maxInFlight buffers waiting.
+         */
+        private void readAhead() {
+            try {
+                while (!cancelled && !eof && buffered.get() < maxInFlight) {
+                    byte[] buffer = new byte[bufferSize];
+                    int totalBytesRead = 0;
+                    int bytesRead;
+                    while (totalBytesRead < buffer.length
+                            && (bytesRead = stream.read(buffer, totalBytesRead, buffer.length - totalBytesRead)) > 0) {
+                        totalBytesRead += bytesRead;
+                    }
+                    if (totalBytesRead > 0) {
+                        buffers.offer(ByteBuffer.wrap(buffer, 0, totalBytesRead));
+                        buffered.incrementAndGet();
+                    }
+                    if (totalBytesRead < buffer.length)
+                        eof = true;
+                    drain();
+                }
+            } catch (IOException | RuntimeException ex) {
+                error = ex;
+                eof = true;
+            } finally {
+                reading.set(false);
+            }
+            if (cancelled)
+                closeStream();
+            else
+                drain();
+        }
+
+        /**
+         * Emit the buffers that are ready while there is demand. Only one thread emits at a time.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0)
+                return;
+            int missed = 1;
+            while (true) {
+                long r = requested.get();
+                long emitted = 0;
+                while (emitted != r && !cancelled) {
+                    ByteBuffer buffer = buffers.poll();
+                    if (buffer == null)
+                        break;
+                    buffered.decrementAndGet();
+                    subscriber.onNext(buffer);
+                    emitted++;
+                }
+                if (emitted > 0 && r != Long.MAX_VALUE)
+                    requested.addAndGet(-emitted);
+                if (cancelled)
+                    return;
+                if (eof && buffers.isEmpty() && !reading.get()) {
+                    closeStream();
+                    cancelled = true;
+                    if (error != null)
+                        subscriber.onError(error);
+                    else
+                        subscriber.onComplete();
+                    return;
+                }
+                scheduleRead();
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    break;
+            }
+        }
+
+        /**
+         * Close the stream once. If the stream fails to close at the end of the data the error
+         * is sent to the subscriber.
+         */
+        private void closeStream() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                // after a cancel no more signals can be sent to the subscriber and
+                // the data are no longer needed so the error is ignored
+                if (!cancelled && error == null)
+                    error = ex;
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ SOFTWARE.
  *
  * @see #Generic
  * @see #Salmon
+ * @see #SalmonCompressed
  */
 public enum EncryptionFormat {
     /**
@@ -37,5 +38,10 @@ public enum EncryptionFormat {
     /**
      * Salmon format with header (embedded nonce and integrity support).
      */
-    Salmon
+    Salmon,
+    /**
+     * Salmon format with each chunk compressed before encryption and a chunk table for random access.
+     * Only supported by {@link AesCompressedStream}.
+     */
+    SalmonCompressed
 }
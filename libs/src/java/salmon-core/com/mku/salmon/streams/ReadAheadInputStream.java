@@ -0,0 +1,324 @@
+package com.mku.salmon.streams;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Native read stream over an {@link AesStream} with an access pattern adaptive readahead.
+ * Sequential reads double the fetch window up to the maximum size while random access
+ * shrinks it back to a single aligned chunk so seeking does not decrypt data that is never used.
+ * Callers that know their access pattern can use {@link #willNeed(long, long)} to hint the next fetch.
+ */
+public class ReadAheadInputStream extends InputStream {
+    /**
+     * Default minimum fetch size when the stream has no integrity chunks.
+     */
+    public static final int DEFAULT_MIN_WINDOW = 32768;
+
+    /**
+     * Default maximum fetch size.
+     */
+    public static final int DEFAULT_MAX_WINDOW = 4 * 1024 * 1024;
+
+    /**
+     * The stream to read from.
+     */
+    private final AesStream stream;
+
+    /**
+     * The alignment of all fetches, the chunk size if integrity is enabled.
+     */
+    private final int alignSize;
+
+    /**
+     * The window used after a random access.
+     */
+    private final int minWindow;
+
+    /**
+     * The largest window sequential reads can grow to.
+     */
+    private final int maxWindow;
+
+    /**
+     * The current fetch window.
+     */
+    private int window;
+
+    /**
+     * The cached decrypted data.
+     */
+    private byte[] buffer;
+
+    /**
+     * The stream position of the cached data.
+     */
+    private long bufferStart;
+
+    /**
+     * The length of the cached data.
+     */
+    private int bufferLength;
+
+    /**
+     * The current position of this stream.
+     */
+    private long position;
+
+    /**
+     * The marked position.
+     */
+    private long markPosition;
+
+    /**
+     * The start of the hinted range, -1 if there is no hint.
+     */
+    private long hintStart = -1;
+
+    /**
+     * The end of the hinted range.
+     */
+    private long hintEnd;
+
+    /**
+     * Construct a readahead stream with the default window sizes.
+     *
+     * @param stream The stream to read from, must be in decrypt mode.
+     */
+    public ReadAheadInputStream(AesStream stream) {
+        this(stream, 0, DEFAULT_MAX_WINDOW);
+    }
+
+    /**
+     * Construct a readahead stream.
+     *
+     * @param stream    The stream to read from, must be in decrypt mode.
+     * @param minWindow The minimum fetch size, 0 to use the alignment size of the stream.
+     * @param maxWindow The maximum fetch size sequential reads can grow to.
+     */
+    public ReadAheadInputStream(AesStream stream, int minWindow, int maxWindow) {
+        if (stream.canWrite())
+            throw new RuntimeException("Stream is in write mode");
+        this.stream = stream;
+        this.alignSize = stream.getAlignSize();
+        if (minWindow <= 0)
+            minWindow = stream.isIntegrityEnabled() ? alignSize : DEFAULT_MIN_WINDOW;
+        this.minWindow = alignUp(minWindow);
+        this.maxWindow = Math.max(this.minWindow, alignUp(maxWindow));
+        this.window = this.minWindow;
+        try {
+            this.position = stream.getPosition();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Hint that a range of the stream will be needed soon. The next fetch that
+     * covers the offset will read through the end of the range, up to the maximum window.
+     *
+     * @param offset The start position of the range.
+     * @param length The length of the range.
+     */
+    public void willNeed(long offset, long length) {
+        if (offset < 0 || length <= 0)
+            return;
+        hintStart = offset;
+        hintEnd = offset + length;
+    }
+
+    /**
+     * Get the current fetch window.
+     *
+     * @return The window size in bytes
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Read a byte from the stream.
+     *
+     * @return The byte read or -1 if the end of the stream is reached.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int bytesRead = read(b, 0, 1);
+        return bytesRead <= 0 ? -1 : (b[0] & 0xFF);
+    }
+
+    /**
+     * Read data from the stream into the buffer.
+     *
+     * @param b   The buffer to read into.
+     * @param off The offset in the buffer.
+     * @param len The maximum number of bytes to read.
+     * @return The number of bytes read or -1 if the end of the stream is reached.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        int totalBytesRead = 0;
+        while (totalBytesRead < len) {
+            if (position < bufferStart || position >= bufferStart + bufferLength) {
+                if (fill(position) <= 0)
+                    break;
+            }
+            int start = (int) (position - bufferStart);
+            int count = Math.min(len - totalBytesRead, bufferLength - start);
+            System.arraycopy(buffer, start, b, off + totalBytesRead, count);
+            totalBytesRead += count;
+            position += count;
+        }
+        return totalBytesRead > 0 ? totalBytesRead : -1;
+    }
+
+    /**
+     * Skip bytes in the stream.
+     *
+     * @param n The number of bytes to skip.
+     * @return The number of bytes skipped.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+        long newPosition = Math.min(position + n, stream.getLength());
+        long skipped = newPosition - position;
+        position = newPosition;
+        return skipped;
+    }
+
+    /**
+     * Get the number of bytes that can be read without fetching.
+     *
+     * @return The number of cached bytes available.
+     */
+    @Override
+    public int available() {
+        if (position < bufferStart || position >= bufferStart + bufferLength)
+            return 0;
+        return (int) (bufferStart + bufferLength - position);
+    }
+
+    /**
+     * Check if mark is supported.
+     *
+     * @return True
+     */
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    /**
+     * Mark the current position.
+     *
+     * @param readlimit Not used, the position can always be restored.
+     */
+    @Override
+    public synchronized void mark(int readlimit) {
+        markPosition = position;
+    }
+
+    /**
+     * Reset to the marked position.
+     */
+    @Override
+    public synchronized void reset() {
+        position = markPosition;
+    }
+
+    /**
+     * Close the stream and the underlying {@link AesStream}.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        bufferLength = 0;
+        stream.close();
+    }
+
+    /**
+     * Fetch the data at the position adapting the window to the access pattern.
+     *
+     * @param pos The position to fetch.
+     * @return The number of bytes fetched.
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private int fill(long pos) throws IOException {
+        long totalLength = stream.getLength();
+        if (pos >= totalLength)
+            return 0;
+        long lastEnd = bufferStart + bufferLength;
+        // continuing right after the last fetch, or skipping less than a window ahead, is sequential
+        if (bufferLength > 0 && pos >= lastEnd && pos < lastEnd + window)
+            window = Math.min(window * 2, maxWindow);
+        else
+            window = minWindow;
+
+        long start = pos - pos % alignSize;
+        long end = start + window;
+        if (hintStart >= 0 && pos >= hintStart && pos < hintEnd) {
+            end = Math.max(end, Math.min(start + alignUp(hintEnd - start), start + maxWindow));
+            if (hintEnd <= end)
+                hintStart = -1;
+        }
+        int length = (int) Math.min(end - start, totalLength - start);
+        if (buffer == null || buffer.length < length)
+            buffer = new byte[length];
+
+        stream.setPosition(start);
+        int bytesRead = 0;
+        while (bytesRead < length) {
+            int res = stream.read(buffer, bytesRead, length - bytesRead);
+            if (res <= 0)
+                break;
+            bytesRead += res;
+        }
+        bufferStart = start;
+        bufferLength = bytesRead;
+        return pos < start + bytesRead ? bytesRead : 0;
+    }
+
+    /**
+     * Round up a size to the alignment.
+     *
+     * @param size The size.
+     * @return The aligned size.
+     */
+    private int alignUp(long size) {
+        long aligned = (size + alignSize - 1) / alignSize * alignSize;
+        return (int) Math.min(aligned, Integer.MAX_VALUE - alignSize + 1);
+    }
+}
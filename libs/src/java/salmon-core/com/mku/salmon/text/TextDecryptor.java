@@ -25,12 +25,14 @@ SOFTWARE.
 
 import com.mku.salmon.integrity.IntegrityException;
 import com.mku.salmon.Decryptor;
+import com.mku.salmon.ParallelTasks;
 import com.mku.salmon.SecurityException;
 import com.mku.encode.Base64Utils;
 import com.mku.salmon.streams.EncryptionFormat;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Utility class that decrypts text strings.
@@ -39,6 +41,29 @@ public class TextDecryptor {
 
     private static final Decryptor decryptor = new Decryptor();
 
+    /**
+     * Minimum number of strings in a batch before it is decrypted in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 2048;
+
+    /**
+     * Number of strings each worker picks up at a time when decrypting in parallel.
+     */
+    private static final int BATCH_PART_SIZE = 256;
+
+    /**
+     * Base64 decoding table. Both '/' and '-' decode to 63 so encrypted filenames
+     * can be decoded without replacing characters first.
+     */
+    private static final byte[] BASE64_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_TABLE, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            BASE64_TABLE[alphabet.charAt(i)] = (byte) i;
+        BASE64_TABLE['-'] = 63;
+    }
 
     /**
      * Decrypts a text String using AES256 with the key using the embedded nonce.
@@ -111,4 +136,113 @@ public class TextDecryptor {
         String decString = new String(decBytes, StandardCharsets.UTF_8);
         return decString;
     }
+
+    /**
+     * Decrypts a batch of text Strings using AES256 with the key using the embedded nonces.
+     * The strings can also be encrypted filenames where '/' is replaced with '-'.
+     * Large batches are decrypted in parallel using all available processors.
+     *
+     * @param texts Texts to be decrypted.
+     * @param key   The encryption key to be used.
+     * @return The decrypted texts in the same order.
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public static String[] decryptStrings(String[] texts, byte[] key)
+            throws IOException {
+        int threads = texts.length >= DEFAULT_PARALLEL_THRESHOLD
+                ? Runtime.getRuntime().availableProcessors() : 1;
+        return decryptStrings(texts, key, threads);
+    }
+
+    /**
+     * Decrypts a batch of text Strings using AES256 with the key using the embedded nonces.
+     * The strings can also be encrypted filenames where '/' is replaced with '-'.
+     * The transformer is reused across the batch so only the nonce is reset for each string.
+     *
+     * @param texts   Texts to be decrypted.
+     * @param key     The encryption key to be used.
+     * @param threads The number of threads to use, batches smaller than
+     *                {@link #DEFAULT_PARALLEL_THRESHOLD} are always decrypted in the calling thread.
+     * @return The decrypted texts in the same order.
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IntegrityException Thrown if the data are corrupt or tampered with.
+     */
+    public static String[] decryptStrings(String[] texts, byte[] key, int threads)
+            throws IOException {
+        if (key == null)
+            throw new SecurityException("Key is missing");
+        String[] results = new String[texts.length];
+        if (threads <= 1 || texts.length < DEFAULT_PARALLEL_THRESHOLD) {
+            decryptStrings(texts, results, 0, texts.length, key);
+            return results;
+        }
+
+        int parts = (texts.length + BATCH_PART_SIZE - 1) / BATCH_PART_SIZE;
+        ParallelTasks.forEach(parts, threads, (part) -> {
+            int start = part * BATCH_PART_SIZE;
+            int end = Math.min(start + BATCH_PART_SIZE, texts.length);
+            decryptStrings(texts, results, start, end, key);
+        });
+        return results;
+    }
+
+    /**
+     * Decrypt a range of the batch in the calling thread.
+     *
+     * @param texts   The texts to decrypt.
+     * @param results The array to store the decrypted texts.
+     * @param start   The start index.
+     * @param end     The end index (exclusive).
+     * @param key     The encryption key.
+     */
+    private static void decryptStrings(String[] texts, String[] results, int start, int end, byte[] key) {
+        byte[] buffer = new byte[0];
+        byte[] outBuffer = new byte[0];
+        for (int i = start; i < end; i++) {
+            String text = texts[i];
+            int maxLength = text.length() * 3 / 4;
+            if (buffer.length < maxLength) {
+                buffer = new byte[maxLength];
+                outBuffer = new byte[maxLength];
+            }
+            int length = decodeBase64(text, buffer);
+            int decLength = decryptor.decryptInto(buffer, 0, length, outBuffer, 0,
+                    key, null, EncryptionFormat.Salmon, false, null);
+            results[i] = new String(outBuffer, 0, decLength, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Decode a base64 string into a buffer. Both '/' and '-' are accepted for the
+     * 63rd character, padding is optional.
+     *
+     * @param text   The base64 text.
+     * @param buffer The buffer to store the decoded bytes, must be at least 3/4 of the text length.
+     * @return The number of decoded bytes.
+     * @throws SecurityException Thrown if the text contains invalid characters.
+     */
+    private static int decodeBase64(String text, byte[] buffer) {
+        int length = text.length();
+        while (length > 0 && text.charAt(length - 1) == '=')
+            length--;
+        int bits = 0;
+        int nbits = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            int value = c < 128 ? BASE64_TABLE[c] : -1;
+            if (value < 0)
+                throw new SecurityException("Invalid base64 character: " + c);
+            bits = (bits << 6) | value;
+            nbits += 6;
+            if (nbits >= 8) {
+                nbits -= 8;
+                buffer[count++] = (byte) (bits >> nbits);
+            }
+        }
+        return count;
+    }
 }
@@ -31,6 +31,7 @@ import javax.crypto.spec.SecretKeySpec;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 /**
  * Salmon AES transformer based on the javax.crypto routines.
@@ -47,6 +48,12 @@ public class AesDefaultTransformer extends AesCTRTransformer {
      */
     private SecretKeySpec encSecretKey;
 
+    /**
+     * Copy of the key the cipher was created for, so re-initializing with the same key
+     * only resets the nonce.
+     */
+    private byte[] cipherKey;
+
     /**
      * Initialize the default Java AES cipher transformer.
      * @param key The AES256 key to use.
@@ -55,9 +62,12 @@ public class AesDefaultTransformer extends AesCTRTransformer {
      */
     public void init(byte[] key, byte[] nonce) {
         super.init(key, nonce);
+        if (cipher != null && Arrays.equals(key, cipherKey))
+            return;
         try {
             encSecretKey = new SecretKeySpec(key, "AES");
             cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipherKey = key.clone();
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
             throw new SecurityException("Could not init AES transformer", e);
         }
@@ -27,6 +27,8 @@ import com.mku.salmon.bridge.INativeProxy;
 import com.mku.salmon.SecurityException;
 import com.mku.salmon.bridge.NativeProxy;
 
+import java.util.Arrays;
+
 /**
  * Generic Native AES transformer. Extend this with your specific 
  * native transformer.
@@ -54,6 +56,17 @@ public class AesNativeTransformer extends AesCTRTransformer {
     }
 
     private int implType;
+
+    /**
+     * Copy of the key that was last expanded, so re-initializing with the same key
+     * only resets the nonce.
+     */
+    private byte[] expandedForKey;
+
+    /**
+     * The implementation type the key was last expanded with.
+     */
+    private int expandedForImplType;
 	
 	/**
      * Get the AES native implementation type, see enum class ProviderType
@@ -89,9 +102,14 @@ public class AesNativeTransformer extends AesCTRTransformer {
     public void init(byte[] key, byte[] nonce)
     {
         nativeProxy.salmonInit(implType);
-        byte[] expandedKey = new byte[AesCTRTransformer.EXPANDED_KEY_SIZE];
-        nativeProxy.salmonExpandKey(key, expandedKey);
-        setExpandedKey(expandedKey);
+        if (expandedForKey == null || expandedForImplType != implType
+                || !Arrays.equals(key, expandedForKey)) {
+            byte[] expandedKey = new byte[AesCTRTransformer.EXPANDED_KEY_SIZE];
+            nativeProxy.salmonExpandKey(key, expandedKey);
+            setExpandedKey(expandedKey);
+            expandedForKey = key.clone();
+            expandedForImplType = implType;
+        }
         super.init(key, nonce);
     }
 
@@ -40,12 +40,17 @@ import com.mku.salmon.streams.EncryptionFormat;
 import com.mku.salmon.streams.EncryptionMode;
 import com.mku.salmon.streams.AesStream;
 import com.mku.salmonfs.auth.AuthException;
+import com.mku.salmonfs.drive.utils.AesFileContentIndex;
+import com.mku.salmonfs.drive.utils.AesFileSearchIndex;
+import com.mku.salmonfs.file.AesDirectoryIndex;
 import com.mku.salmonfs.file.AesFile;
 import com.mku.streams.MemoryStream;
 import com.mku.streams.RandomAccessStream;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Abstract class provides an encrypted VirtualDrive that can be extended for use with
@@ -59,6 +64,9 @@ public abstract class AesDrive extends VirtualDrive {
     private static String virtualDriveDirectoryName = "fs";
     private static String shareDirectoryName = "share";
     private static String exportDirectoryName = "export";
+    private static String directoryIndexFilename = "index.slmi";
+    private static String searchIndexFilename = "search.slms";
+    private static String contentIndexFilename = "content.slmc";
 
     private int defaultFileChunkSize = Integrity.DEFAULT_CHUNK_SIZE;
     private DriveKey key = null;
@@ -69,6 +77,81 @@ public abstract class AesDrive extends VirtualDrive {
     private final IHashProvider hashProvider = new HMACSHA256Provider();
     private INonceSequencer sequencer;
 
+    /**
+     * Default maximum number of decrypted filenames kept in the cache.
+     */
+    public static final int DEFAULT_FILENAME_CACHE_SIZE = 10000;
+
+    /**
+     * Decrypted filenames keyed by the encrypted real filename, shared by all files of the drive.
+     */
+    private final LruCache<String, String> filenameCache = new LruCache<>(DEFAULT_FILENAME_CACHE_SIZE);
+
+    /**
+     * Default maximum number of virtual paths kept in the path caches.
+     */
+    public static final int DEFAULT_PATH_CACHE_SIZE = 10000;
+
+    /**
+     * Real files keyed by their virtual path.
+     */
+    private final LruCache<String, IFile> virtualPathCache = new LruCache<>(DEFAULT_PATH_CACHE_SIZE);
+
+    /**
+     * Virtual paths keyed by the real path.
+     */
+    private final LruCache<String, String> realPathCache = new LruCache<>(DEFAULT_PATH_CACHE_SIZE);
+
+    /**
+     * Default maximum number of directory indexes kept in memory.
+     */
+    public static final int DEFAULT_DIRECTORY_INDEX_CACHE_SIZE = 64;
+
+    /**
+     * True to maintain an encrypted name index in each directory.
+     */
+    private boolean directoryIndexEnabled;
+
+    /**
+     * Loaded directory indexes keyed by the real path of the directory. Evicted indexes are written first.
+     */
+    private final LruCache<String, AesDirectoryIndex> directoryIndexes =
+            new LruCache<String, AesDirectoryIndex>(DEFAULT_DIRECTORY_INDEX_CACHE_SIZE) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, AesDirectoryIndex> eldest) {
+                    boolean remove = super.removeEldestEntry(eldest);
+                    if (remove) {
+                        try {
+                            eldest.getValue().flush();
+                        } catch (IOException ex) {
+                            // an index that was not written is checked against the real
+                            // files and rebuilt when the directory is loaded again
+                        }
+                    }
+                    return remove;
+                }
+            };
+
+    /**
+     * True to maintain an encrypted filename search index for the drive.
+     */
+    private boolean searchIndexEnabled;
+
+    /**
+     * The search index if loaded.
+     */
+    private AesFileSearchIndex searchIndex;
+
+    /**
+     * The content index if loaded.
+     */
+    private AesFileContentIndex contentIndex;
+
+    /**
+     * True if we already checked for an existing content index.
+     */
+    private boolean contentIndexChecked;
+
     /**
      * Initialize a virtual drive at the directory path provided
      *
@@ -113,6 +196,60 @@ public abstract class AesDrive extends VirtualDrive {
         return new AesFile(file, this);
     }
 
+    /**
+     * Get the file name for the directory indexes.
+     *
+     * @return The file name.
+     */
+    public static String getDirectoryIndexFilename() {
+        return directoryIndexFilename;
+    }
+
+    /**
+     * Set the file name for the directory indexes.
+     *
+     * @param directoryIndexFilename The file name.
+     */
+    public static void setDirectoryIndexFilename(String directoryIndexFilename) {
+        AesDrive.directoryIndexFilename = directoryIndexFilename;
+    }
+
+    /**
+     * Get the file name for the search index.
+     *
+     * @return The file name.
+     */
+    public static String getSearchIndexFilename() {
+        return searchIndexFilename;
+    }
+
+    /**
+     * Set the file name for the search index.
+     *
+     * @param searchIndexFilename The file name.
+     */
+    public static void setSearchIndexFilename(String searchIndexFilename) {
+        AesDrive.searchIndexFilename = searchIndexFilename;
+    }
+
+    /**
+     * Get the file name for the content index.
+     *
+     * @return The file name.
+     */
+    public static String getContentIndexFilename() {
+        return contentIndexFilename;
+    }
+
+    /**
+     * Set the file name for the content index.
+     *
+     * @param contentIndexFilename The file name.
+     */
+    public static void setContentIndexFilename(String contentIndexFilename) {
+        AesDrive.contentIndexFilename = contentIndexFilename;
+    }
+
     /**
      * Get the file name for the drive configuration.
      *
@@ -617,6 +754,397 @@ public abstract class AesDrive extends VirtualDrive {
                 throw new AuthException("Wrong password");
     }
 
+    /**
+     * Get the decrypted filename from the cache.
+     *
+     * @param realName The encrypted real filename
+     * @return The decrypted filename or null if it is not cached
+     */
+    public String getCachedFilename(String realName) {
+        synchronized (filenameCache) {
+            return filenameCache.get(realName);
+        }
+    }
+
+    /**
+     * Add a decrypted filename to the cache. The least recently used entries are
+     * evicted when the cache is full.
+     *
+     * @param realName The encrypted real filename
+     * @param name     The decrypted filename
+     */
+    public void cacheFilename(String realName, String name) {
+        synchronized (filenameCache) {
+            filenameCache.put(realName, name);
+        }
+    }
+
+    /**
+     * Get the maximum number of decrypted filenames kept in the cache.
+     *
+     * @return The cache size
+     */
+    public int getFilenameCacheSize() {
+        synchronized (filenameCache) {
+            return filenameCache.getMaxEntries();
+        }
+    }
+
+    /**
+     * Set the maximum number of decrypted filenames kept in the cache. Set to 0 to disable caching.
+     *
+     * @param size The cache size
+     */
+    public void setFilenameCacheSize(int size) {
+        synchronized (filenameCache) {
+            filenameCache.setMaxEntries(size);
+        }
+    }
+
+    /**
+     * Get a file by its virtual path. Directories resolved along the way are cached
+     * so subsequent lookups under the same directories do not need to list and decrypt them again.
+     *
+     * @param path The virtual path, ie: /folder1/file1.txt
+     * @return The file or null if it does not exist
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesFile getFileByPath(String path) throws IOException {
+        if (virtualRoot == null)
+            throw new AuthException("Not authorized");
+        String[] parts = path.split("/");
+        AesFile file = virtualRoot;
+        StringBuilder virtualPath = new StringBuilder();
+        for (String part : parts) {
+            if (part.equals(""))
+                continue;
+            virtualPath.append(AesFile.Separator);
+            virtualPath.append(part);
+            String currPath = virtualPath.toString();
+            IFile realFile;
+            synchronized (virtualPathCache) {
+                realFile = virtualPathCache.get(currPath);
+            }
+            if (realFile != null) {
+                file = getVirtualFile(realFile);
+                continue;
+            }
+            file = file.getChild(part);
+            if (file == null)
+                return null;
+            cacheVirtualPath(file.getRealFile(), currPath);
+        }
+        return file;
+    }
+
+    /**
+     * Get the virtual path of a real file from the cache.
+     *
+     * @param realPath The real path, see {@link IFile#getDisplayPath()}
+     * @return The virtual path or null if it is not cached
+     */
+    public String getCachedVirtualPath(String realPath) {
+        synchronized (virtualPathCache) {
+            return realPathCache.get(realPath);
+        }
+    }
+
+    /**
+     * Add a virtual path to the path caches.
+     *
+     * @param realFile    The real file
+     * @param virtualPath The virtual path
+     */
+    public void cacheVirtualPath(IFile realFile, String virtualPath) {
+        synchronized (virtualPathCache) {
+            virtualPathCache.put(virtualPath, realFile);
+            realPathCache.put(realFile.getDisplayPath(), virtualPath);
+        }
+    }
+
+    /**
+     * Remove the cached paths of a file and its descendants. Call this when files are
+     * renamed, moved, deleted, or created.
+     *
+     * @param virtualPath The virtual path of the file or null
+     * @param realPath    The real path of the file or null, see {@link IFile#getDisplayPath()}
+     */
+    public void invalidatePaths(String virtualPath, String realPath) {
+        synchronized (virtualPathCache) {
+            virtualPathCache.entrySet().removeIf((entry) ->
+                    isPathOrDescendant(entry.getKey(), virtualPath)
+                            || isPathOrDescendant(entry.getValue().getDisplayPath(), realPath));
+            realPathCache.entrySet().removeIf((entry) ->
+                    isPathOrDescendant(entry.getKey(), realPath)
+                            || isPathOrDescendant(entry.getValue(), virtualPath));
+        }
+        if (realPath != null) {
+            synchronized (directoryIndexes) {
+                directoryIndexes.keySet().removeIf((path) -> isPathOrDescendant(path, realPath));
+            }
+        }
+    }
+
+    /**
+     * Clear the path caches. Use this if files were modified outside of the drive.
+     */
+    public void clearPathCache() {
+        synchronized (virtualPathCache) {
+            virtualPathCache.clear();
+            realPathCache.clear();
+        }
+    }
+
+    /**
+     * Check if directory indexes are enabled.
+     *
+     * @return True if enabled
+     */
+    public boolean isDirectoryIndexEnabled() {
+        return directoryIndexEnabled;
+    }
+
+    /**
+     * Enable an encrypted name index in each directory so children can be found without
+     * decrypting all the filenames in the directory. Indexes are created when a directory
+     * is first accessed and are maintained when files are created, renamed, moved, or deleted.
+     *
+     * @param enabled True to enable
+     */
+    public void setDirectoryIndexEnabled(boolean enabled) {
+        this.directoryIndexEnabled = enabled;
+    }
+
+    /**
+     * Get the index of a directory, loading or rebuilding it if needed.
+     *
+     * @param realDir The real directory
+     * @return The directory index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesDirectoryIndex getDirectoryIndex(IFile realDir) throws IOException {
+        String realPath = realDir.getDisplayPath();
+        AesDirectoryIndex index;
+        synchronized (directoryIndexes) {
+            index = directoryIndexes.get(realPath);
+        }
+        if (index != null)
+            return index;
+        index = AesDirectoryIndex.load(this, realDir);
+        synchronized (directoryIndexes) {
+            directoryIndexes.put(realPath, index);
+        }
+        return index;
+    }
+
+    /**
+     * Get the index of a directory only if it is already loaded.
+     *
+     * @param realDir The real directory
+     * @return The directory index or null if not loaded
+     */
+    public AesDirectoryIndex getLoadedDirectoryIndex(IFile realDir) {
+        if (realDir == null)
+            return null;
+        synchronized (directoryIndexes) {
+            return directoryIndexes.get(realDir.getDisplayPath());
+        }
+    }
+
+    /**
+     * Remove a directory index from memory, it will be reloaded and checked when it is next used.
+     *
+     * @param realDir The real directory
+     */
+    public void releaseDirectoryIndex(IFile realDir) {
+        synchronized (directoryIndexes) {
+            directoryIndexes.remove(realDir.getDisplayPath());
+        }
+    }
+
+    /**
+     * Remove the indexes of a directory and all its subdirectories from memory, they will be
+     * reloaded and checked when they are next used.
+     *
+     * @param realDir The real directory
+     */
+    public void releaseDirectoryIndexes(IFile realDir) {
+        String path = realDir.getDisplayPath();
+        synchronized (directoryIndexes) {
+            directoryIndexes.keySet().removeIf(dirPath -> dirPath.equals(path)
+                    || dirPath.startsWith(path) && dirPath.length() > path.length()
+                    && (dirPath.charAt(path.length()) == '/' || dirPath.charAt(path.length()) == '\\'));
+        }
+    }
+
+    /**
+     * Write all loaded directory indexes that have changes.
+     *
+     * @throws IOException Thrown if an index could not be written.
+     */
+    public void flushDirectoryIndexes() throws IOException {
+        IOException error = null;
+        synchronized (directoryIndexes) {
+            for (AesDirectoryIndex index : directoryIndexes.values()) {
+                try {
+                    index.flush();
+                } catch (IOException ex) {
+                    if (error == null)
+                        error = ex;
+                }
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Check if the search index is enabled.
+     *
+     * @return True if enabled
+     */
+    public boolean isSearchIndexEnabled() {
+        return searchIndexEnabled;
+    }
+
+    /**
+     * Enable an encrypted filename search index for the drive so files can be found by name
+     * without walking the drive and decrypting all the filenames. The index is built when it
+     * is first used and is maintained when files are created, renamed, moved, or deleted.
+     *
+     * @param enabled True to enable
+     */
+    public void setSearchIndexEnabled(boolean enabled) {
+        this.searchIndexEnabled = enabled;
+    }
+
+    /**
+     * Get the search index, loading or building it if needed.
+     *
+     * @return The search index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized AesFileSearchIndex getSearchIndex() throws IOException {
+        if (searchIndex == null)
+            searchIndex = AesFileSearchIndex.load(this);
+        return searchIndex;
+    }
+
+    /**
+     * Get the search index only if it is enabled and already loaded.
+     *
+     * @return The search index or null
+     */
+    public synchronized AesFileSearchIndex getLoadedSearchIndex() {
+        return searchIndexEnabled ? searchIndex : null;
+    }
+
+    /**
+     * Write the search index if it is loaded and has changes. If the index cannot be written
+     * it is invalidated so it is rebuilt the next time it is loaded.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized void flushSearchIndex() throws IOException {
+        if (searchIndex == null)
+            return;
+        try {
+            searchIndex.flush();
+        } catch (IOException | RuntimeException ex) {
+            invalidateSearchIndex();
+            throw ex;
+        }
+    }
+
+    /**
+     * Discard the loaded search index and remove it from the drive so it is rebuilt
+     * the next time it is loaded.
+     */
+    public synchronized void invalidateSearchIndex() {
+        searchIndex = null;
+        if (realRoot == null)
+            return;
+        IFile indexFile = realRoot.getChild(searchIndexFilename);
+        if (indexFile != null && indexFile.exists())
+            indexFile.delete();
+    }
+
+    /**
+     * Get the content index, loading it or creating an empty one if needed.
+     *
+     * @return The content index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized AesFileContentIndex getContentIndex() throws IOException {
+        if (contentIndex == null)
+            contentIndex = AesFileContentIndex.load(this);
+        contentIndexChecked = true;
+        return contentIndex;
+    }
+
+    /**
+     * Get the content index only if it is loaded or it exists in the drive.
+     *
+     * @return The content index or null if the drive has no content index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized AesFileContentIndex getExistingContentIndex() throws IOException {
+        if (contentIndex == null && !contentIndexChecked) {
+            contentIndexChecked = true;
+            IFile indexFile = realRoot.getChild(contentIndexFilename);
+            if (indexFile != null && indexFile.exists())
+                contentIndex = AesFileContentIndex.load(this);
+        }
+        return contentIndex;
+    }
+
+    /**
+     * Write the content index if it is loaded and has changes. If the index cannot be written
+     * it is invalidated so outdated contents are not searched.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized void flushContentIndex() throws IOException {
+        if (contentIndex == null)
+            return;
+        try {
+            contentIndex.flush();
+        } catch (IOException | RuntimeException ex) {
+            invalidateContentIndex();
+            throw ex;
+        }
+    }
+
+    /**
+     * Discard the loaded content index and remove it from the drive. Files that were
+     * indexed need to be imported again to be searched by their contents.
+     */
+    public synchronized void invalidateContentIndex() {
+        contentIndex = null;
+        contentIndexChecked = false;
+        if (realRoot == null)
+            return;
+        IFile indexFile = realRoot.getChild(contentIndexFilename);
+        if (indexFile != null && indexFile.exists())
+            indexFile.delete();
+    }
+
+    /**
+     * Check if a path is the same or under another path.
+     *
+     * @param path   The path to check
+     * @param parent The parent path
+     * @return True if the path is the parent or under it
+     */
+    private static boolean isPathOrDescendant(String path, String parent) {
+        if (path == null || parent == null || !path.startsWith(parent))
+            return false;
+        if (path.length() == parent.length())
+            return true;
+        char c = path.charAt(parent.length());
+        return c == '/' || c == '\\';
+    }
+
     /**
      * Get the next nonce from the sequencer. This advanced the sequencer so unique nonce are used.
      *
@@ -716,9 +1244,39 @@ public abstract class AesDrive extends VirtualDrive {
      * Lock the drive and close associated resources.
      */
     public void close() {
+        if (key != null && driveId != null && sequencer != null) {
+            try {
+                flushDirectoryIndexes();
+            } catch (IOException ex) {
+                // indexes that were not written are checked against the real
+                // files and rebuilt when the directories are loaded again
+            }
+            try {
+                flushSearchIndex();
+            } catch (IOException | RuntimeException ex) {
+                // the search index was removed so it is rebuilt when loaded again
+            }
+            try {
+                flushContentIndex();
+            } catch (IOException | RuntimeException ex) {
+                // the content index was removed so outdated contents are not searched
+            }
+        }
+        synchronized (this) {
+            searchIndex = null;
+            contentIndex = null;
+            contentIndexChecked = false;
+        }
+        synchronized (directoryIndexes) {
+            directoryIndexes.clear();
+        }
         realRoot = null;
         virtualRoot = null;
         driveId = null;
+        synchronized (filenameCache) {
+            filenameCache.clear();
+        }
+        clearPathCache();
         if (key != null)
             key.clear();
         key = null;
@@ -766,4 +1324,54 @@ public abstract class AesDrive extends VirtualDrive {
         IFile configFile = realRoot.getChild(AesDrive.getConfigFilename());
         return configFile;
     }
-}
\ No newline at end of file
+
+    /**
+     * Bounded map that evicts the least recently used entries.
+     *
+     * @param <K> The key type
+     * @param <V> The value type
+     */
+    private static class LruCache<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The maximum number of entries.
+         */
+        private int maxEntries;
+
+        /**
+         * Construct a cache.
+         *
+         * @param maxEntries The maximum number of entries
+         */
+        LruCache(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * Get the maximum number of entries.
+         *
+         * @return The maximum number of entries
+         */
+        int getMaxEntries() {
+            return maxEntries;
+        }
+
+        /**
+         * Set the maximum number of entries, evicting entries if needed.
+         *
+         * @param maxEntries The maximum number of entries
+         */
+        void setMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+            while (size() > maxEntries)
+                remove(keySet().iterator().next());
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -23,15 +23,83 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
 */
 
+import com.mku.salmon.ParallelTasks;
 import com.mku.salmonfs.file.AesFile;
 import com.mku.fs.drive.utils.FileUtils;
 
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.Comparator;
 
 /**
  * Useful comparators for AesFile.
  */
 public class AesFileComparators {
+    /**
+     * The sort types supported by {@link #sort(AesFile[], SortType, int)}.
+     */
+    public enum SortType {
+        /**
+         * Folders first, see {@link #getDefaultComparator()}.
+         */
+        Default,
+        /**
+         * Filename ascending, see {@link #getFilenameAscComparator()}.
+         */
+        FilenameAsc,
+        /**
+         * Filename descending, see {@link #getFilenameDescComparator()}.
+         */
+        FilenameDesc,
+        /**
+         * Size ascending, see {@link #getSizeAscComparator()}.
+         */
+        SizeAsc,
+        /**
+         * Size descending, see {@link #getSizeDescComparator()}.
+         */
+        SizeDesc,
+        /**
+         * File type ascending, see {@link #getTypeAscComparator()}.
+         */
+        TypeAsc,
+        /**
+         * File type descending, see {@link #getTypeDescComparator()}.
+         */
+        TypeDesc,
+        /**
+         * Date ascending, see {@link #getDateAscComparator()}.
+         */
+        DateAsc,
+        /**
+         * Date descending, see {@link #getDateDescComparator()}.
+         */
+        DateDesc,
+        /**
+         * Search relevance, see {@link #getRelevanceComparator()}.
+         */
+        Relevance
+    }
+
+    /**
+     * The sort key of a file extracted once before sorting.
+     */
+    private static class SortKey {
+        private final int index;
+        private boolean directory;
+        private String text;
+        private long value;
+
+        /**
+         * Construct a sort key.
+         *
+         * @param index The index of the file in the original array
+         */
+        private SortKey(int index) {
+            this.index = index;
+        }
+    }
+
     private static final Comparator<AesFile> defaultComparator = (AesFile c1, AesFile c2) ->
     {
         if (c1.isDirectory() && !c2.isDirectory())
@@ -68,7 +136,7 @@ public class AesFileComparators {
         else if (!c1.isDirectory() && c2.isDirectory())
             return 1;
         else
-            return (int) (tryGetSize(c1) - tryGetSize(c2));
+            return Long.compare(tryGetSize(c1), tryGetSize(c2));
     };
 
     private static final Comparator<AesFile> sizeDescComparator = (AesFile c1, AesFile c2) ->
@@ -78,7 +146,7 @@ public class AesFileComparators {
         else if (!c1.isDirectory() && c2.isDirectory())
             return -1;
         else
-            return (int) (tryGetSize(c2) - tryGetSize(c1));
+            return Long.compare(tryGetSize(c2), tryGetSize(c1));
     };
 
     private static final Comparator<AesFile> typeAscComparator = (AesFile c1, AesFile c2) ->
@@ -108,7 +176,7 @@ public class AesFileComparators {
         else if (!c1.isDirectory() && c2.isDirectory())
             return 1;
         else
-            return (int) (tryGetDate(c1) - tryGetDate(c2));
+            return Long.compare(tryGetDate(c1), tryGetDate(c2));
     };
 
     private static final Comparator<AesFile> dateDescComparator = (AesFile c1, AesFile c2) ->
@@ -118,11 +186,11 @@ public class AesFileComparators {
         else if (!c1.isDirectory() && c2.isDirectory())
             return -1;
         else
-            return (int) (tryGetDate(c2) - tryGetDate(c1));
+            return Long.compare(tryGetDate(c2), tryGetDate(c1));
     };
 
     private static final Comparator<AesFile> relevanceComparator = (AesFile c1, AesFile c2) ->
-            (int) c2.getTag() - (int) c1.getTag();
+            Integer.compare((int) c2.getTag(), (int) c1.getTag());
 
     /**
      * Get default comparator. This is the fastest sorting comparator as it simply lists folders first.
@@ -216,6 +284,119 @@ public class AesFileComparators {
         return relevanceComparator;
     }
 
+    /**
+     * Sort files with the same order as the corresponding comparator using the default number of threads,
+     * see {@link #sort(AesFile[], SortType, int)}.
+     *
+     * @param files The files to sort
+     * @param type  The sort type
+     * @return The sorted files
+     * @throws InterruptedIOException Thrown if the thread is interrupted.
+     */
+    public static AesFile[] sort(AesFile[] files, SortType type) throws InterruptedIOException {
+        return sort(files, type, AesFile.DEFAULT_METADATA_THREADS);
+    }
+
+    /**
+     * Sort files with the same order as the corresponding comparator. Unlike sorting with the
+     * comparators the name, size, type, or date of each file is retrieved only once: the names are decrypted
+     * in a single batch, the rest of the keys are retrieved concurrently, and then the keys are sorted.
+     *
+     * @param files   The files to sort
+     * @param type    The sort type
+     * @param threads The number of threads to use for retrieving the sort keys
+     * @return A new array with the sorted files
+     * @throws InterruptedIOException Thrown if the thread is interrupted.
+     */
+    public static AesFile[] sort(AesFile[] files, SortType type, int threads) throws InterruptedIOException {
+        if (type == SortType.FilenameAsc || type == SortType.FilenameDesc
+                || type == SortType.TypeAsc || type == SortType.TypeDesc)
+            AesFile.decryptNames(files);
+
+        SortKey[] keys = new SortKey[files.length];
+        ParallelTasks.forEach(files.length, threads, (i) -> keys[i] = getSortKey(files[i], i, type));
+
+        Arrays.sort(keys, getKeyComparator(type));
+        AesFile[] sorted = new AesFile[files.length];
+        for (int i = 0; i < keys.length; i++)
+            sorted[i] = files[keys[i].index];
+        return sorted;
+    }
+
+    /**
+     * Retrieve the sort key of a file.
+     *
+     * @param file  The file
+     * @param index The index of the file
+     * @param type  The sort type
+     * @return The sort key
+     */
+    private static SortKey getSortKey(AesFile file, int index, SortType type) {
+        SortKey key = new SortKey(index);
+        if (type == SortType.Relevance) {
+            key.value = (int) file.getTag();
+            return key;
+        }
+        key.directory = file.isDirectory();
+        switch (type) {
+            case FilenameAsc:
+            case FilenameDesc:
+                key.text = trygetName(file);
+                break;
+            case TypeAsc:
+            case TypeDesc:
+                key.text = tryGetType(file);
+                break;
+            case SizeAsc:
+            case SizeDesc:
+                key.value = tryGetSize(file);
+                break;
+            case DateAsc:
+            case DateDesc:
+                key.value = tryGetDate(file);
+                break;
+            default:
+                break;
+        }
+        return key;
+    }
+
+    /**
+     * Get the comparator for the sort keys that matches the file comparator of the sort type.
+     *
+     * @param type The sort type
+     * @return The comparator
+     */
+    private static Comparator<SortKey> getKeyComparator(SortType type) {
+        boolean descending = type == SortType.FilenameDesc || type == SortType.SizeDesc
+                || type == SortType.TypeDesc || type == SortType.DateDesc;
+        Comparator<SortKey> folders = (SortKey k1, SortKey k2) -> {
+            if (k1.directory && !k2.directory)
+                return descending ? 1 : -1;
+            else if (!k1.directory && k2.directory)
+                return descending ? -1 : 1;
+            return 0;
+        };
+        switch (type) {
+            case FilenameAsc:
+            case TypeAsc:
+                return folders.thenComparing((SortKey k1, SortKey k2) -> k1.text.compareTo(k2.text));
+            case FilenameDesc:
+            case TypeDesc:
+                return folders.thenComparing((SortKey k1, SortKey k2) -> k2.text.compareTo(k1.text));
+            case SizeAsc:
+            case DateAsc:
+                return folders.thenComparing((SortKey k1, SortKey k2) -> Long.compare(k1.value, k2.value));
+            case SizeDesc:
+            case DateDesc:
+                return folders.thenComparing((SortKey k1, SortKey k2) -> Long.compare(k2.value, k1.value));
+            case Relevance:
+                return (SortKey k1, SortKey k2) -> Long.compare(k2.value, k1.value);
+            default:
+                return folders;
+        }
+    }
+
     /**
      * Get the virtual file name
      *
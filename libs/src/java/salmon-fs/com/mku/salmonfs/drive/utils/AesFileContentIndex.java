@@ -0,0 +1,635 @@
+package com.mku.salmonfs.drive.utils;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.convert.BitConverter;
+import com.mku.fs.file.IFile;
+import com.mku.salmon.Decryptor;
+import com.mku.salmon.Encryptor;
+import com.mku.salmon.SecurityException;
+import com.mku.salmon.integrity.IntegrityException;
+import com.mku.salmon.streams.EncryptionFormat;
+import com.mku.salmonfs.drive.AesDrive;
+import com.mku.salmonfs.file.AesFile;
+import com.mku.streams.InputStreamWrapper;
+import com.mku.streams.MemoryStream;
+import com.mku.streams.RandomAccessStream;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encrypted full-text index of the contents of the files in a drive. Text is extracted from
+ * the files when they are imported, see {@link AesFileImporter#setContentIndexEnabled(boolean)},
+ * and split into lower case words that map to the files that contain them so files can be found
+ * without decrypting their contents. The index is stored encrypted in the drive root,
+ * see {@link AesDrive#getContentIndexFilename()}, and is updated when indexed files are
+ * renamed, moved, or deleted. Changes are kept in memory until {@link #flush()} is called.
+ */
+public class AesFileContentIndex {
+    /**
+     * The version of the index format.
+     */
+    private static final byte VERSION = 1;
+
+    /**
+     * Default maximum number of bytes read from each file.
+     */
+    public static final long DEFAULT_MAX_INDEXED_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Default file extensions that are indexed.
+     */
+    public static final String[] DEFAULT_EXTENSIONS = new String[]{
+            "txt", "text", "md", "csv", "tsv", "log", "json", "xml", "html", "htm", "yaml", "yml",
+            "ini", "conf", "properties", "java", "kt", "js", "ts", "py", "c", "h", "cpp", "cs", "go", "rs", "sql"
+    };
+
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MAX_WORD_LENGTH = 64;
+    private static final Encryptor encryptor = new Encryptor();
+    private static final Decryptor decryptor = new Decryptor();
+
+    private final AesDrive drive;
+
+    /**
+     * The real path of each document relative to the drive root or null if removed.
+     * The id of the document is the index in the list.
+     */
+    private final ArrayList<String> documents = new ArrayList<>();
+
+    /**
+     * Document ids keyed by their relative real path.
+     */
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Document ids keyed by the words they contain. Ids of removed documents are
+     * not removed from the lists, results are always checked against the documents.
+     */
+    private final HashMap<String, IntList> postings = new HashMap<>();
+
+    private final HashSet<String> extensions = new HashSet<>(Arrays.asList(DEFAULT_EXTENSIONS));
+    private long maxIndexedBytes = DEFAULT_MAX_INDEXED_BYTES;
+    private int liveDocuments;
+    private boolean dirty;
+
+    /**
+     * Construct an empty index.
+     *
+     * @param drive The drive
+     */
+    private AesFileContentIndex(AesDrive drive) {
+        this.drive = drive;
+    }
+
+    /**
+     * Load the content index of the drive. If the index does not exist or cannot be
+     * decrypted an empty index is returned.
+     *
+     * @param drive The drive
+     * @return The index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public static AesFileContentIndex load(AesDrive drive) throws IOException {
+        AesFileContentIndex index = new AesFileContentIndex(drive);
+        IFile indexFile = drive.getRealRoot().getChild(AesDrive.getContentIndexFilename());
+        if (indexFile != null && indexFile.exists()) {
+            try {
+                index.read(indexFile);
+            } catch (SecurityException | IntegrityException ex) {
+                // an index that cannot be decrypted is replaced with an empty one
+                index.clear();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Check if the contents of a file with this name will be indexed.
+     *
+     * @param filename The decrypted filename
+     * @return True if the extension is indexed
+     */
+    public synchronized boolean isIndexable(String filename) {
+        int index = filename.lastIndexOf('.');
+        if (index < 0)
+            return false;
+        return extensions.contains(filename.substring(index + 1).toLowerCase());
+    }
+
+    /**
+     * Set the file extensions that are indexed.
+     *
+     * @param extensions The extensions without the dot, ie: txt
+     */
+    public synchronized void setExtensions(String[] extensions) {
+        this.extensions.clear();
+        for (String extension : extensions)
+            this.extensions.add(extension.toLowerCase());
+    }
+
+    /**
+     * Get the maximum number of bytes read from each file.
+     *
+     * @return The number of bytes
+     */
+    public synchronized long getMaxIndexedBytes() {
+        return maxIndexedBytes;
+    }
+
+    /**
+     * Set the maximum number of bytes read from each file, the rest of the file is not indexed.
+     *
+     * @param maxIndexedBytes The number of bytes
+     */
+    public synchronized void setMaxIndexedBytes(long maxIndexedBytes) {
+        this.maxIndexedBytes = maxIndexedBytes;
+    }
+
+    /**
+     * Index the contents of a file that was imported into the drive.
+     *
+     * @param file       The encrypted file in the drive
+     * @param sourceFile The real unencrypted file that was imported
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public void addFile(AesFile file, IFile sourceFile) throws IOException {
+        RandomAccessStream stream = sourceFile.getInputStream();
+        try {
+            addFile(file, new InputStreamWrapper(stream));
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Index the contents of a file by decrypting it. Use this to index files that were
+     * added to the drive without the index.
+     *
+     * @param file The encrypted file in the drive
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public void addFile(AesFile file) throws IOException {
+        InputStream stream = new InputStreamWrapper(file.getInputStream());
+        try {
+            addFile(file, stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Index the text of a file.
+     *
+     * @param file   The encrypted file in the drive
+     * @param stream The plain text stream of the file contents
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public void addFile(AesFile file, InputStream stream) throws IOException {
+        String path = getRelativePath(file.getRealFile().getDisplayPath());
+        if (path == null)
+            throw new IOException("File is not in the drive");
+        HashSet<String> words = readWords(stream, getMaxIndexedBytes());
+        synchronized (this) {
+            removeDocument(path);
+            int id = documents.size();
+            documents.add(path);
+            ids.put(path, id);
+            for (String word : words) {
+                IntList list = postings.get(word);
+                if (list == null) {
+                    list = new IntList();
+                    postings.put(word, list);
+                }
+                list.add(id);
+            }
+            liveDocuments++;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Search for files that contain all the words in the query, case insensitive.
+     *
+     * @param query      The words to search for
+     * @param maxResults The maximum number of results, 0 for no limit
+     * @return The files that still exist in the drive
+     */
+    public List<AesFile> search(String query, int maxResults) {
+        List<String> paths = new ArrayList<>();
+        synchronized (this) {
+            List<String> words = new ArrayList<>();
+            tokenize(query, words);
+            if (words.size() == 0)
+                return new ArrayList<>();
+            IntList smallest = null;
+            for (String word : words) {
+                IntList list = postings.get(word);
+                if (list == null)
+                    return new ArrayList<>();
+                if (smallest == null || list.size < smallest.size)
+                    smallest = list;
+            }
+            for (int i = 0; i < smallest.size; i++) {
+                int id = smallest.items[i];
+                if (documents.get(id) == null)
+                    continue;
+                boolean match = true;
+                for (String word : words) {
+                    if (!postings.get(word).contains(id)) {
+                        match = false;
+                        break;
+                    }
+                }
+                if (match) {
+                    paths.add(documents.get(id));
+                    if (maxResults > 0 && paths.size() >= maxResults)
+                        break;
+                }
+            }
+        }
+        List<AesFile> files = new ArrayList<>();
+        for (String path : paths) {
+            AesFile file = getFile(path);
+            if (file != null)
+                files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Get the number of indexed files.
+     *
+     * @return The number of files
+     */
+    public synchronized int size() {
+        return liveDocuments;
+    }
+
+    /**
+     * Update the index after a file or directory is renamed or moved.
+     *
+     * @param realPath    The real path before the change, see {@link IFile#getDisplayPath()}
+     * @param newRealPath The real path after the change
+     */
+    public synchronized void move(String realPath, String newRealPath) {
+        String path = getRelativePath(realPath);
+        String newPath = getRelativePath(newRealPath);
+        if (path == null)
+            return;
+        for (int id = 0; id < documents.size(); id++) {
+            String document = documents.get(id);
+            if (document == null || !isPathOrDescendant(document, path))
+                continue;
+            ids.remove(document);
+            if (newPath == null) {
+                removeDocument(id);
+                continue;
+            }
+            String newDocument = newPath + document.substring(path.length());
+            removeDocument(newDocument);
+            documents.set(id, newDocument);
+            ids.put(newDocument, id);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Remove a file or directory and all its descendants from the index.
+     *
+     * @param realPath The real path, see {@link IFile#getDisplayPath()}
+     */
+    public synchronized void remove(String realPath) {
+        String path = getRelativePath(realPath);
+        if (path == null)
+            return;
+        for (int id = 0; id < documents.size(); id++) {
+            String document = documents.get(id);
+            if (document != null && isPathOrDescendant(document, path))
+                removeDocument(id);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Check if there are changes that have not been written.
+     *
+     * @return True if there are unwritten changes
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Write the index to the drive if there are changes.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty)
+            return;
+        int[] newIds = new int[documents.size()];
+        int count = 0;
+        for (int id = 0; id < documents.size(); id++)
+            newIds[id] = documents.get(id) != null ? count++ : -1;
+        MemoryStream ms = new MemoryStream();
+        ms.write(new byte[]{VERSION}, 0, 1);
+        ms.write(BitConverter.toBytes(count, 4), 0, 4);
+        for (String document : documents) {
+            if (document != null)
+                writeString(ms, document);
+        }
+        int words = 0;
+        for (IntList list : postings.values()) {
+            if (hasLiveDocuments(list))
+                words++;
+        }
+        ms.write(BitConverter.toBytes(words, 4), 0, 4);
+        for (Map.Entry<String, IntList> entry : postings.entrySet()) {
+            IntList list = entry.getValue();
+            if (!hasLiveDocuments(list))
+                continue;
+            writeString(ms, entry.getKey());
+            int live = 0;
+            for (int i = 0; i < list.size; i++) {
+                if (documents.get(list.items[i]) != null)
+                    live++;
+            }
+            ms.write(BitConverter.toBytes(live, 4), 0, 4);
+            // ids are ascending so we store the differences
+            int last = 0;
+            for (int i = 0; i < list.size; i++) {
+                if (documents.get(list.items[i]) == null)
+                    continue;
+                int id = newIds[list.items[i]];
+                writeVarInt(ms, id - last);
+                last = id;
+            }
+        }
+        ms.flush();
+        byte[] encData = encryptor.encrypt(ms.toArray(), drive.getKey().getDriveKey(), drive.getNextNonce(),
+                EncryptionFormat.Salmon, true, drive.getKey().getHashKey());
+        ms.close();
+
+        IFile indexFile = drive.getRealRoot().getChild(AesDrive.getContentIndexFilename());
+        if (indexFile != null && indexFile.exists())
+            indexFile.delete();
+        indexFile = drive.getRealRoot().createFile(AesDrive.getContentIndexFilename());
+        RandomAccessStream outputStream = indexFile.getOutputStream();
+        outputStream.write(encData, 0, encData.length);
+        outputStream.flush();
+        outputStream.close();
+        dirty = false;
+    }
+
+    /**
+     * Read and decrypt the index file.
+     *
+     * @param indexFile The index file
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void read(IFile indexFile) throws IOException {
+        byte[] encData = drive.getBytesFromRealFile(indexFile, 0);
+        byte[] data = decryptor.decrypt(encData, drive.getKey().getDriveKey(), null,
+                EncryptionFormat.Salmon, true, drive.getKey().getHashKey());
+        if (data.length < 9 || data[0] != VERSION)
+            throw new SecurityException("Unsupported content index version");
+        int[] pos = new int[]{1};
+        int count = readInt(data, pos);
+        for (int id = 0; id < count; id++) {
+            String document = readString(data, pos);
+            documents.add(document);
+            ids.put(document, id);
+        }
+        liveDocuments = count;
+        int words = readInt(data, pos);
+        for (int i = 0; i < words; i++) {
+            String word = readString(data, pos);
+            int size = readInt(data, pos);
+            IntList list = new IntList();
+            int id = 0;
+            for (int j = 0; j < size; j++) {
+                id += readVarInt(data, pos);
+                list.add(id);
+            }
+            postings.put(word, list);
+        }
+    }
+
+    /**
+     * Clear the index.
+     */
+    private synchronized void clear() {
+        documents.clear();
+        ids.clear();
+        postings.clear();
+        liveDocuments = 0;
+    }
+
+    /**
+     * Get the file of a document if it still exists.
+     *
+     * @param path The relative real path
+     * @return The file or null
+     */
+    private AesFile getFile(String path) {
+        IFile realFile = drive.getRoot().getRealFile();
+        for (String segment : path.split("/")) {
+            realFile = realFile.getChild(segment);
+            if (realFile == null || !realFile.exists())
+                return null;
+        }
+        return new AesFile(realFile, drive);
+    }
+
+    private void removeDocument(String path) {
+        Integer id = ids.get(path);
+        if (id != null)
+            removeDocument(id);
+    }
+
+    private void removeDocument(int id) {
+        String document = documents.get(id);
+        if (document == null)
+            return;
+        ids.remove(document);
+        documents.set(id, null);
+        liveDocuments--;
+        dirty = true;
+    }
+
+    private boolean hasLiveDocuments(IntList list) {
+        for (int i = 0; i < list.size; i++) {
+            if (documents.get(list.items[i]) != null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the real path relative to the drive root using '/' as the separator.
+     *
+     * @param realPath The real path
+     * @return The relative path or null if the path is not in the drive
+     */
+    private String getRelativePath(String realPath) {
+        String rootPath = drive.getRoot().getRealFile().getDisplayPath();
+        if (!realPath.startsWith(rootPath))
+            return null;
+        StringBuilder path = new StringBuilder();
+        for (String segment : realPath.substring(rootPath.length()).split("\\\\|/")) {
+            if (segment.equals(""))
+                continue;
+            if (path.length() > 0)
+                path.append("/");
+            path.append(segment);
+        }
+        return path.length() > 0 ? path.toString() : null;
+    }
+
+    private static boolean isPathOrDescendant(String path, String parent) {
+        return path.equals(parent) || path.startsWith(parent + "/");
+    }
+
+    /**
+     * Read the distinct words of a text stream.
+     *
+     * @param stream   The stream
+     * @param maxBytes The maximum number of bytes to read
+     * @return The words
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private static HashSet<String> readWords(InputStream stream, long maxBytes) throws IOException {
+        HashSet<String> words = new HashSet<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        StringBuilder word = new StringBuilder();
+        // chars are counted as an approximation of the bytes read
+        long read = 0;
+        int c;
+        while (read < maxBytes && (c = reader.read()) >= 0) {
+            read++;
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD_LENGTH)
+                    word.append(Character.toLowerCase((char) c));
+            } else {
+                addWord(words, word);
+            }
+        }
+        addWord(words, word);
+        return words;
+    }
+
+    private static void tokenize(String text, List<String> words) {
+        StringBuilder word = new StringBuilder();
+        HashSet<String> set = new HashSet<>();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD_LENGTH)
+                    word.append(Character.toLowerCase(c));
+            } else {
+                addWord(set, word);
+            }
+        }
+        addWord(set, word);
+        words.addAll(set);
+    }
+
+    private static void addWord(HashSet<String> words, StringBuilder word) {
+        if (word.length() >= MIN_WORD_LENGTH)
+            words.add(word.toString());
+        word.setLength(0);
+    }
+
+    private static void writeString(MemoryStream ms, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ms.write(BitConverter.toBytes(bytes.length, 2), 0, 2);
+        ms.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] data, int[] pos) {
+        int length = (int) BitConverter.toLong(data, pos[0], 2);
+        pos[0] += 2;
+        String value = new String(data, pos[0], length, StandardCharsets.UTF_8);
+        pos[0] += length;
+        return value;
+    }
+
+    private static int readInt(byte[] data, int[] pos) {
+        int value = (int) BitConverter.toLong(data, pos[0], 4);
+        pos[0] += 4;
+        return value;
+    }
+
+    private static void writeVarInt(MemoryStream ms, int value) throws IOException {
+        byte[] buffer = new byte[5];
+        int length = 0;
+        while ((value & ~0x7F) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+        ms.write(buffer, 0, length);
+    }
+
+    private static int readVarInt(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Growable list of ascending document ids.
+     */
+    private static class IntList {
+        private int[] items = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == items.length)
+                items = Arrays.copyOf(items, size * 2);
+            items[size++] = value;
+        }
+
+        private boolean contains(int value) {
+            return Arrays.binarySearch(items, 0, size, value) >= 0;
+        }
+    }
+}
@@ -34,7 +34,7 @@ import java.io.IOException;
  * Imports files into an encrypted virtual drive.
  */
 public class AesFileImporter extends FileImporter {
-
+    private boolean contentIndexEnabled;
 
     /**
      * Instantiates a file importer for encrypted files.
@@ -62,6 +62,26 @@ public class AesFileImporter extends FileImporter {
         super.initialize(bufferSize, threads);
     }
 
+    /**
+     * Check if the contents of imported files are added to the content index of the drive.
+     *
+     * @return True if enabled
+     */
+    public boolean isContentIndexEnabled() {
+        return contentIndexEnabled;
+    }
+
+    /**
+     * Add the text of imported files to the encrypted content index of the drive so they
+     * can be found with {@link AesFileContentIndex#search(String, int)}. Only files with
+     * extensions accepted by {@link AesFileContentIndex#isIndexable(String)} are indexed.
+     *
+     * @param enabled True to enable
+     */
+    public void setContentIndexEnabled(boolean enabled) {
+        this.contentIndexEnabled = enabled;
+    }
+
     /**
      * Runs before import
      *
@@ -106,9 +126,26 @@ public class AesFileImporter extends FileImporter {
      * @param dir          The target directory in the drive that the file will be imported
      * @param options      The options
      * @return The imported file
-     * @throws Exception Thrown if error occurs during import
+     * @throws Exception Thrown if error occurs during import or if the contents of the
+     *                   imported file could not be indexed
      */
     public AesFile importFile(IFile fileToImport, IVirtualFile dir, FileImportOptions options) throws Exception {
-        return (AesFile) super.importFile(fileToImport, dir, options);
+        AesFile file = (AesFile) super.importFile(fileToImport, dir, options);
+        if (file != null && contentIndexEnabled && file.getDrive() != null)
+            indexContent(file, fileToImport);
+        return file;
+    }
+
+    /**
+     * Add the text of an imported file to the content index.
+     *
+     * @param file         The imported file
+     * @param fileToImport The source file
+     * @throws IOException Thrown if there is an IO error, the file remains imported.
+     */
+    private void indexContent(AesFile file, IFile fileToImport) throws IOException {
+        AesFileContentIndex index = file.getDrive().getContentIndex();
+        if (index.isIndexable(fileToImport.getName()))
+            index.addFile(file, fileToImport);
     }
 }
\ No newline at end of file
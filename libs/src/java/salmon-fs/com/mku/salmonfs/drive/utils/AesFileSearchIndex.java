@@ -0,0 +1,673 @@
+package com.mku.salmonfs.drive.utils;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.convert.BitConverter;
+import com.mku.fs.file.IFile;
+import com.mku.salmon.Decryptor;
+import com.mku.salmon.Encryptor;
+import com.mku.salmon.SecurityException;
+import com.mku.salmon.integrity.IntegrityException;
+import com.mku.salmon.streams.EncryptionFormat;
+import com.mku.salmonfs.drive.AesDrive;
+import com.mku.salmonfs.file.AesFile;
+import com.mku.streams.MemoryStream;
+import com.mku.streams.RandomAccessStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Encrypted filename search index for a drive. The index keeps the decrypted names of all
+ * the files in the drive along with a trigram index so substring searches do not need to
+ * walk the tree and decrypt the filenames. The index is stored encrypted in the drive
+ * root, see {@link AesDrive#getSearchIndexFilename()}, and is maintained by the
+ * drive when files are created, renamed, moved, or deleted.
+ * Changes are kept in memory until {@link #flush()} is called.
+ */
+public class AesFileSearchIndex {
+    /**
+     * The version of the index format.
+     */
+    private static final byte VERSION = 1;
+    private static final Encryptor encryptor = new Encryptor();
+    private static final Decryptor decryptor = new Decryptor();
+    private static final int NO_PARENT = -1;
+
+    private final AesDrive drive;
+
+    /**
+     * The parent id of each entry, the id is the index in the list.
+     */
+    private final IntList parents = new IntList();
+
+    /**
+     * The real encrypted name of each entry or null if the entry is removed.
+     */
+    private final ArrayList<String> realNames = new ArrayList<>();
+
+    /**
+     * The decrypted name of each entry.
+     */
+    private final ArrayList<String> names = new ArrayList<>();
+
+    /**
+     * The lower case decrypted name of each entry used for matching.
+     */
+    private final ArrayList<String> searchNames = new ArrayList<>();
+
+    /**
+     * Entry ids keyed by the parent id and the real name.
+     */
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Entry ids keyed by the trigrams of their names. Ids of removed or renamed entries
+     * are not removed from the lists, results are always checked against the current names.
+     */
+    private final HashMap<Long, IntList> trigrams = new HashMap<>();
+
+    private int liveEntries;
+    private int staleUpdates;
+    private boolean dirty;
+
+    /**
+     * A search result.
+     */
+    public class Result {
+        private final int id;
+
+        /**
+         * Construct a result.
+         *
+         * @param id The entry id
+         */
+        private Result(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Get the decrypted name.
+         *
+         * @return The name
+         */
+        public String getName() {
+            synchronized (AesFileSearchIndex.this) {
+                return names.get(id);
+            }
+        }
+
+        /**
+         * Get the virtual path.
+         *
+         * @return The virtual path, ie: /folder1/file1.txt
+         */
+        public String getPath() {
+            synchronized (AesFileSearchIndex.this) {
+                return buildPath(id, names);
+            }
+        }
+
+        /**
+         * Get the file. The real file is resolved from the real names without decrypting any filenames.
+         *
+         * @return The file or null if it no longer exists
+         */
+        public AesFile getFile() {
+            String[] segments;
+            synchronized (AesFileSearchIndex.this) {
+                if (realNames.get(id) == null)
+                    return null;
+                segments = buildPath(id, realNames).substring(1).split("/");
+            }
+            IFile realFile = drive.getRoot().getRealFile();
+            for (String segment : segments) {
+                realFile = realFile.getChild(segment);
+                if (realFile == null || !realFile.exists())
+                    return null;
+            }
+            return new AesFile(realFile, drive);
+        }
+    }
+
+    /**
+     * Construct an empty index.
+     *
+     * @param drive The drive
+     */
+    private AesFileSearchIndex(AesDrive drive) {
+        this.drive = drive;
+    }
+
+    /**
+     * Load the search index of the drive. If the index does not exist or cannot be
+     * decrypted it is rebuilt by walking the drive.
+     *
+     * @param drive The drive
+     * @return The index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public static AesFileSearchIndex load(AesDrive drive) throws IOException {
+        AesFileSearchIndex index = new AesFileSearchIndex(drive);
+        IFile indexFile = drive.getRealRoot().getChild(AesDrive.getSearchIndexFilename());
+        boolean valid = false;
+        if (indexFile != null && indexFile.exists()) {
+            try {
+                index.read(indexFile);
+                valid = true;
+            } catch (SecurityException | IntegrityException ex) {
+                // an index that cannot be decrypted is rebuilt below
+            }
+        }
+        if (!valid)
+            index.rebuild();
+        return index;
+    }
+
+    /**
+     * Search for files with names containing the query, case insensitive.
+     *
+     * @param query      The text to search for
+     * @param maxResults The maximum number of results, 0 for no limit
+     * @return The results
+     */
+    public synchronized List<Result> search(String query, int maxResults) {
+        String q = query.toLowerCase();
+        List<Result> results = new ArrayList<>();
+        if (q.length() < 3) {
+            for (int id = 0; id < searchNames.size(); id++) {
+                if (matches(id, q)) {
+                    results.add(new Result(id));
+                    if (maxResults > 0 && results.size() >= maxResults)
+                        break;
+                }
+            }
+            return results;
+        }
+
+        // the candidates are the entries of the least common trigram
+        IntList candidates = null;
+        for (int i = 0; i + 3 <= q.length(); i++) {
+            IntList list = trigrams.get(getTrigram(q, i));
+            if (list == null)
+                return results;
+            if (candidates == null || list.size < candidates.size)
+                candidates = list;
+        }
+        boolean[] seen = new boolean[searchNames.size()];
+        for (int i = 0; i < candidates.size; i++) {
+            int id = candidates.items[i];
+            if (seen[id])
+                continue;
+            seen[id] = true;
+            if (matches(id, q)) {
+                results.add(new Result(id));
+                if (maxResults > 0 && results.size() >= maxResults)
+                    break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get the number of files in the index.
+     *
+     * @return The number of files
+     */
+    public synchronized int size() {
+        return liveEntries;
+    }
+
+    /**
+     * Add a file to the index.
+     *
+     * @param realFile The real file
+     * @param name     The decrypted name
+     */
+    public synchronized void add(IFile realFile, String name) {
+        int parent = getId(getParentPath(realFile.getDisplayPath()));
+        if (parent == NO_PARENT && !isRootPath(getParentPath(realFile.getDisplayPath())))
+            return;
+        addEntry(parent, realFile.getName(), name);
+        dirty = true;
+    }
+
+    /**
+     * Update the index after a file is renamed.
+     *
+     * @param realPath    The real path before the file was renamed, see {@link IFile#getDisplayPath()}
+     * @param newRealName The new real name
+     * @param newName     The new decrypted name
+     */
+    public synchronized void rename(String realPath, String newRealName, String newName) {
+        int id = getId(realPath);
+        if (id == NO_PARENT)
+            return;
+        ids.remove(getKey(parents.items[id], realNames.get(id)));
+        realNames.set(id, newRealName);
+        names.set(id, newName);
+        searchNames.set(id, newName.toLowerCase());
+        ids.put(getKey(parents.items[id], newRealName), id);
+        addTrigrams(id);
+        staleUpdates++;
+        dirty = true;
+        compactIfNeeded();
+    }
+
+    /**
+     * Update the index after a file is moved to another directory. The file and its
+     * descendants are added again with new ids so entries are still after their parents
+     * even if the target directory was added after the file.
+     *
+     * @param realPath    The real path before the file was moved, see {@link IFile#getDisplayPath()}
+     * @param newRealFile The moved real file
+     */
+    public synchronized void move(String realPath, IFile newRealFile) {
+        int id = getId(realPath);
+        if (id == NO_PARENT)
+            return;
+        String newParentPath = getParentPath(newRealFile.getDisplayPath());
+        int newParent = getId(newParentPath);
+        if (newParent == NO_PARENT && !isRootPath(newParentPath)) {
+            remove(realPath);
+            return;
+        }
+        boolean[] subtree = getSubtree(id);
+        int[] newIds = new int[subtree.length];
+        for (int i = id; i < subtree.length; i++) {
+            if (!subtree[i])
+                continue;
+            String realName = i == id ? newRealFile.getName() : realNames.get(i);
+            String name = names.get(i);
+            int parent = i == id ? newParent : newIds[parents.items[i]];
+            removeEntry(i);
+            newIds[i] = addEntry(parent, realName, name);
+        }
+        dirty = true;
+        compactIfNeeded();
+    }
+
+    /**
+     * Remove a file and all its descendants from the index.
+     *
+     * @param realPath The real path of the file, see {@link IFile#getDisplayPath()}
+     */
+    public synchronized void remove(String realPath) {
+        int id = getId(realPath);
+        if (id == NO_PARENT)
+            return;
+        boolean[] removed = getSubtree(id);
+        for (int i = id; i < removed.length; i++) {
+            if (removed[i])
+                removeEntry(i);
+        }
+        dirty = true;
+        compactIfNeeded();
+    }
+
+    /**
+     * Get the live entries of a subtree. Entries are always added after their parents so
+     * only the entries after the root of the subtree are checked.
+     *
+     * @param id The entry id of the root of the subtree
+     * @return The entries of the subtree indexed by id
+     */
+    private boolean[] getSubtree(int id) {
+        boolean[] subtree = new boolean[realNames.size()];
+        subtree[id] = true;
+        for (int i = id + 1; i < realNames.size(); i++) {
+            int parent = parents.items[i];
+            if (realNames.get(i) != null && parent != NO_PARENT && subtree[parent])
+                subtree[i] = true;
+        }
+        return subtree;
+    }
+
+    /**
+     * Add a directory and all its descendants to the index.
+     *
+     * @param dir The directory
+     * @throws IOException Thrown if the name of the directory cannot be decrypted.
+     */
+    public synchronized void addTree(AesFile dir) throws IOException {
+        int parent = getId(getParentPath(dir.getRealFile().getDisplayPath()));
+        if (parent == NO_PARENT && !isRootPath(getParentPath(dir.getRealFile().getDisplayPath())))
+            return;
+        int id = addEntry(parent, dir.getRealFile().getName(), dir.getName());
+        if (dir.isDirectory())
+            addChildren(dir, id);
+        dirty = true;
+    }
+
+    /**
+     * Rebuild the index by walking the drive and decrypting all the filenames.
+     */
+    public synchronized void rebuild() {
+        parents.size = 0;
+        realNames.clear();
+        names.clear();
+        searchNames.clear();
+        ids.clear();
+        trigrams.clear();
+        liveEntries = 0;
+        staleUpdates = 0;
+        addChildren(drive.getRoot(), NO_PARENT);
+        dirty = true;
+    }
+
+    /**
+     * Check if there are changes that have not been written.
+     *
+     * @return True if there are unwritten changes
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Write the index to the drive if there are changes.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty)
+            return;
+        // write only the live entries, renumbered so parents are still before their children
+        int[] newIds = new int[realNames.size()];
+        int count = 0;
+        for (int id = 0; id < realNames.size(); id++)
+            newIds[id] = realNames.get(id) != null ? count++ : NO_PARENT;
+        MemoryStream ms = new MemoryStream();
+        ms.write(new byte[]{VERSION}, 0, 1);
+        ms.write(BitConverter.toBytes(count, 4), 0, 4);
+        for (int id = 0; id < realNames.size(); id++) {
+            if (realNames.get(id) == null)
+                continue;
+            int parent = parents.items[id];
+            ms.write(BitConverter.toBytes(parent == NO_PARENT ? NO_PARENT : newIds[parent], 4), 0, 4);
+            writeString(ms, realNames.get(id));
+            writeString(ms, names.get(id));
+        }
+        ms.flush();
+        byte[] encData = encryptor.encrypt(ms.toArray(), drive.getKey().getDriveKey(), drive.getNextNonce(),
+                EncryptionFormat.Salmon, true, drive.getKey().getHashKey());
+        ms.close();
+
+        IFile indexFile = drive.getRealRoot().getChild(AesDrive.getSearchIndexFilename());
+        if (indexFile != null && indexFile.exists())
+            indexFile.delete();
+        indexFile = drive.getRealRoot().createFile(AesDrive.getSearchIndexFilename());
+        RandomAccessStream outputStream = indexFile.getOutputStream();
+        outputStream.write(encData, 0, encData.length);
+        outputStream.flush();
+        outputStream.close();
+        dirty = false;
+    }
+
+    /**
+     * Read and decrypt the index file.
+     *
+     * @param indexFile The index file
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void read(IFile indexFile) throws IOException {
+        byte[] encData = drive.getBytesFromRealFile(indexFile, 0);
+        byte[] data = decryptor.decrypt(encData, drive.getKey().getDriveKey(), null,
+                EncryptionFormat.Salmon, true, drive.getKey().getHashKey());
+        if (data.length < 5 || data[0] != VERSION)
+            throw new SecurityException("Unsupported search index version");
+        int count = (int) BitConverter.toLong(data, 1, 4);
+        int[] pos = new int[]{5};
+        for (int i = 0; i < count; i++) {
+            int parent = (int) BitConverter.toLong(data, pos[0], 4);
+            pos[0] += 4;
+            String realName = readString(data, pos);
+            String name = readString(data, pos);
+            addEntry(parent, realName, name);
+        }
+    }
+
+    /**
+     * Add the children of a directory recursively.
+     *
+     * @param dir The directory
+     * @param id  The entry id of the directory
+     */
+    private void addChildren(AesFile dir, int id) {
+        AesFile[] files = dir.listFiles();
+        AesFile.decryptNames(files);
+        for (AesFile file : files) {
+            String name;
+            try {
+                name = file.getName();
+            } catch (Exception ex) {
+                // skip files that cannot be decrypted
+                continue;
+            }
+            int childId = addEntry(id, file.getRealFile().getName(), name);
+            if (file.isDirectory())
+                addChildren(file, childId);
+        }
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param parent   The parent entry id
+     * @param realName The real name
+     * @param name     The decrypted name
+     * @return The entry id
+     */
+    private int addEntry(int parent, String realName, String name) {
+        Integer existing = ids.get(getKey(parent, realName));
+        if (existing != null)
+            removeEntry(existing);
+        int id = realNames.size();
+        parents.add(parent);
+        realNames.add(realName);
+        names.add(name);
+        searchNames.add(name.toLowerCase());
+        ids.put(getKey(parent, realName), id);
+        addTrigrams(id);
+        liveEntries++;
+        return id;
+    }
+
+    /**
+     * Remove an entry, the id is not reused until the index is compacted.
+     *
+     * @param id The entry id
+     */
+    private void removeEntry(int id) {
+        if (realNames.get(id) == null)
+            return;
+        ids.remove(getKey(parents.items[id], realNames.get(id)));
+        realNames.set(id, null);
+        names.set(id, null);
+        searchNames.set(id, null);
+        liveEntries--;
+        staleUpdates++;
+    }
+
+    /**
+     * Rebuild the in-memory structures without the removed entries if there are too many stale updates.
+     */
+    private void compactIfNeeded() {
+        if (staleUpdates <= Math.max(1024, liveEntries))
+            return;
+        int[] oldParents = Arrays.copyOf(parents.items, parents.size);
+        ArrayList<String> oldRealNames = new ArrayList<>(realNames);
+        ArrayList<String> oldNames = new ArrayList<>(names);
+        int[] newIds = new int[oldRealNames.size()];
+        parents.size = 0;
+        realNames.clear();
+        names.clear();
+        searchNames.clear();
+        ids.clear();
+        trigrams.clear();
+        liveEntries = 0;
+        staleUpdates = 0;
+        for (int id = 0; id < oldRealNames.size(); id++) {
+            if (oldRealNames.get(id) == null) {
+                newIds[id] = NO_PARENT;
+                continue;
+            }
+            int parent = oldParents[id];
+            newIds[id] = addEntry(parent == NO_PARENT ? NO_PARENT : newIds[parent],
+                    oldRealNames.get(id), oldNames.get(id));
+        }
+    }
+
+    /**
+     * Add the trigrams of an entry name.
+     *
+     * @param id The entry id
+     */
+    private void addTrigrams(int id) {
+        String name = searchNames.get(id);
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            long trigram = getTrigram(name, i);
+            IntList list = trigrams.get(trigram);
+            if (list == null) {
+                list = new IntList();
+                trigrams.put(trigram, list);
+            }
+            if (list.size == 0 || list.items[list.size - 1] != id)
+                list.add(id);
+        }
+    }
+
+    /**
+     * Check if a live entry matches the query.
+     *
+     * @param id    The entry id
+     * @param query The lower case query
+     * @return True if it matches
+     */
+    private boolean matches(int id, String query) {
+        String name = searchNames.get(id);
+        return name != null && name.contains(query);
+    }
+
+    /**
+     * Get the entry id of a real path.
+     *
+     * @param realPath The real path
+     * @return The entry id or NO_PARENT if not found
+     */
+    private int getId(String realPath) {
+        String rootPath = drive.getRoot().getRealFile().getDisplayPath();
+        if (!realPath.startsWith(rootPath))
+            return NO_PARENT;
+        int id = NO_PARENT;
+        for (String segment : realPath.substring(rootPath.length()).split("\\\\|/")) {
+            if (segment.equals(""))
+                continue;
+            Integer child = ids.get(getKey(id, segment));
+            if (child == null)
+                return NO_PARENT;
+            id = child;
+        }
+        return id;
+    }
+
+    /**
+     * Check if the real path is the root of the drive.
+     *
+     * @param realPath The real path
+     * @return True if it is the root
+     */
+    private boolean isRootPath(String realPath) {
+        String rootPath = drive.getRoot().getRealFile().getDisplayPath();
+        return realPath.equals(rootPath) || realPath.equals(rootPath + "/") || realPath.equals(rootPath + "\\");
+    }
+
+    /**
+     * Get the parent of a real path.
+     *
+     * @param realPath The real path
+     * @return The parent path
+     */
+    private static String getParentPath(String realPath) {
+        int index = Math.max(realPath.lastIndexOf('/'), realPath.lastIndexOf('\\'));
+        return index >= 0 ? realPath.substring(0, index) : "";
+    }
+
+    /**
+     * Build a path from an entry and its ancestors.
+     *
+     * @param id       The entry id
+     * @param segments The names to use for each entry
+     * @return The path
+     */
+    private String buildPath(int id, List<String> segments) {
+        StringBuilder path = new StringBuilder();
+        while (id != NO_PARENT) {
+            path.insert(0, segments.get(id));
+            path.insert(0, AesFile.Separator);
+            id = parents.items[id];
+        }
+        return path.toString();
+    }
+
+    private static String getKey(int parent, String realName) {
+        return parent + ":" + realName;
+    }
+
+    private static long getTrigram(String text, int index) {
+        return ((long) text.charAt(index) << 32) | ((long) text.charAt(index + 1) << 16) | text.charAt(index + 2);
+    }
+
+    private static void writeString(MemoryStream ms, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ms.write(BitConverter.toBytes(bytes.length, 2), 0, 2);
+        ms.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] data, int[] pos) {
+        int length = (int) BitConverter.toLong(data, pos[0], 2);
+        pos[0] += 2;
+        String value = new String(data, pos[0], length, StandardCharsets.UTF_8);
+        pos[0] += length;
+        return value;
+    }
+
+    /**
+     * Growable list of primitive ints.
+     */
+    private static class IntList {
+        private int[] items = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == items.length)
+                items = Arrays.copyOf(items, size * 2);
+            items[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.mku.salmonfs.drive.utils;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.salmonfs.file.AesFile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Walks the files of an encrypted directory tree listing the real directories and
+ * decrypting the filenames in parallel. This is useful for remote drives where each
+ * directory listing is a round trip.
+ */
+public class AesFileWalker {
+    /**
+     * Visitor for the walked files.
+     */
+    public interface Visitor {
+        /**
+         * Called for each file and directory. In unordered walks this can be called from multiple
+         * threads concurrently so implementations need to be thread safe.
+         *
+         * @param file The file, the name is already decrypted
+         * @return True to continue, for directories false will skip the directory contents
+         * @throws Exception Any exception will stop the walk
+         */
+        boolean visit(AesFile file) throws Exception;
+    }
+
+    /**
+     * Walk all files and directories under a directory, the directory itself is not visited.
+     * Files are visited as soon as their directory is listed in no particular order.
+     *
+     * @param root        The root directory
+     * @param visitor     The visitor
+     * @param parallelism The number of directories to list concurrently
+     * @throws IOException Thrown if there is an IO error or the visitor throws.
+     */
+    public static void walk(AesFile root, Visitor visitor, int parallelism) throws IOException {
+        walk(root, visitor, parallelism, false);
+    }
+
+    /**
+     * Walk all files and directories under a directory, the directory itself is not visited.
+     *
+     * @param root        The root directory
+     * @param visitor     The visitor
+     * @param parallelism The number of directories to list concurrently
+     * @param ordered     True to visit the files from the calling thread in depth first order
+     *                    while the subdirectories are listed ahead in parallel. False to visit
+     *                    the files from the worker threads as soon as they are listed.
+     * @throws IOException Thrown if there is an IO error or the visitor throws.
+     */
+    public static void walk(AesFile root, Visitor visitor, int parallelism, boolean ordered) throws IOException {
+        if (parallelism < 1)
+            parallelism = 1;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            if (ordered)
+                walkOrdered(root, visitor, executor);
+            else
+                walkUnordered(root, visitor, executor);
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Wait for the workers to finish so the visitor is not called after the walk returns.
+     *
+     * @param executor The executor that was shut down
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // the workers were interrupted, wait for the current visits to return
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Visit the files in depth first order listing the subdirectories of each directory ahead.
+     *
+     * @param dir      The directory
+     * @param visitor  The visitor
+     * @param executor The executor for the listings
+     * @throws IOException Thrown if there is an IO error or the visitor throws.
+     */
+    private static void walkOrdered(AesFile dir, Visitor visitor, ExecutorService executor) throws IOException {
+        AesFile[] files = list(dir);
+        visitOrdered(files, visitor, executor);
+    }
+
+    private static void visitOrdered(AesFile[] files, Visitor visitor, ExecutorService executor) throws IOException {
+        // list all the subdirectories before visiting them so siblings are fetched concurrently
+        List<Future<AesFile[]>> listings = new ArrayList<>(files.length);
+        for (AesFile file : files)
+            listings.add(file.isDirectory() ? executor.submit(() -> list(file)) : null);
+        try {
+            for (int i = 0; i < files.length; i++) {
+                boolean descend = visit(visitor, files[i]);
+                Future<AesFile[]> listing = listings.get(i);
+                if (listing == null)
+                    continue;
+                if (!descend) {
+                    listing.cancel(true);
+                    continue;
+                }
+                visitOrdered(getListing(listing), visitor, executor);
+            }
+        } finally {
+            for (Future<AesFile[]> listing : listings) {
+                if (listing != null)
+                    listing.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Visit the files from the worker threads as soon as each directory is listed.
+     *
+     * @param root     The root directory
+     * @param visitor  The visitor
+     * @param executor The executor
+     * @throws IOException Thrown if there is an IO error or the visitor throws.
+     */
+    private static void walkUnordered(AesFile root, Visitor visitor, ExecutorService executor) throws IOException {
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        submitDirectory(root, visitor, executor, pending, error, done);
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Walk was interrupted");
+        }
+        Exception ex = error.get();
+        if (ex instanceof IOException)
+            throw (IOException) ex;
+        if (ex != null)
+            throw new IOException("Could not walk directory", ex);
+    }
+
+    private static void submitDirectory(AesFile dir, Visitor visitor, ExecutorService executor,
+                                        AtomicInteger pending, AtomicReference<Exception> error,
+                                        CountDownLatch done) {
+        executor.submit(() -> {
+            try {
+                if (error.get() == null) {
+                    for (AesFile file : list(dir)) {
+                        if (error.get() != null)
+                            break;
+                        if (visit(visitor, file) && file.isDirectory()) {
+                            pending.incrementAndGet();
+                            submitDirectory(file, visitor, executor, pending, error, done);
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                error.compareAndSet(null, ex);
+            } finally {
+                if (pending.decrementAndGet() == 0 || error.get() != null)
+                    done.countDown();
+            }
+        });
+    }
+
+    /**
+     * List a directory and decrypt the filenames in a batch.
+     *
+     * @param dir The directory
+     * @return The files
+     */
+    private static AesFile[] list(AesFile dir) {
+        AesFile[] files = dir.listFiles();
+        AesFile.decryptNames(files);
+        return files;
+    }
+
+    private static boolean visit(Visitor visitor, AesFile file) throws IOException {
+        try {
+            return visitor.visit(file);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Could not visit file", ex);
+        }
+    }
+
+    private static AesFile[] getListing(Future<AesFile[]> listing) throws IOException {
+        try {
+            return listing.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Walk was interrupted");
+        } catch (ExecutionException ex) {
+            throw new IOException("Could not list directory", ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.mku.salmonfs.file;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.convert.BitConverter;
+import com.mku.fs.file.IFile;
+import com.mku.salmon.Decryptor;
+import com.mku.salmon.Encryptor;
+import com.mku.salmon.Generator;
+import com.mku.salmon.SecurityException;
+import com.mku.salmon.integrity.HMACSHA256Provider;
+import com.mku.salmon.integrity.IHashProvider;
+import com.mku.salmon.integrity.Integrity;
+import com.mku.salmon.integrity.IntegrityException;
+import com.mku.salmon.streams.EncryptionFormat;
+import com.mku.salmonfs.drive.AesDrive;
+import com.mku.streams.MemoryStream;
+import com.mku.streams.RandomAccessStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encrypted index of the children of a directory. The index maps a keyed hash of each
+ * plaintext name to the real encrypted filename so a child can be found without decrypting
+ * all the filenames in the directory. The index is stored encrypted in the directory
+ * itself, see {@link AesDrive#getDirectoryIndexFilename()}.
+ * Changes are kept in memory until {@link #flush()} is called. When the index is loaded
+ * it is checked against the real files in the directory and rebuilt if it is stale.
+ */
+public class AesDirectoryIndex {
+    /**
+     * The version of the index format.
+     */
+    private static final byte VERSION = 2;
+    private static final IHashProvider hashProvider = new HMACSHA256Provider();
+    private static final Encryptor encryptor = new Encryptor();
+    private static final Decryptor decryptor = new Decryptor();
+
+    private final AesDrive drive;
+    private final IFile realDir;
+
+    /**
+     * Entries keyed by the hex keyed hash of the plaintext name.
+     */
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * True if there are changes that have not been written.
+     */
+    private boolean dirty;
+
+    /**
+     * An entry of the index.
+     */
+    public static class Entry {
+        private final String realName;
+
+        /**
+         * Construct an entry.
+         *
+         * @param realName The real encrypted filename.
+         */
+        public Entry(String realName) {
+            this.realName = realName;
+        }
+
+        /**
+         * Get the real encrypted filename.
+         *
+         * @return The real filename
+         */
+        public String getRealName() {
+            return realName;
+        }
+    }
+
+    /**
+     * Construct an empty index for a directory.
+     *
+     * @param drive   The drive
+     * @param realDir The real directory
+     */
+    private AesDirectoryIndex(AesDrive drive, IFile realDir) {
+        this.drive = drive;
+        this.realDir = realDir;
+    }
+
+    /**
+     * Load the index of a directory. If the index does not exist, cannot be decrypted,
+     * or does not match the real files in the directory it is rebuilt.
+     *
+     * @param drive   The drive
+     * @param realDir The real directory
+     * @return The index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public static AesDirectoryIndex load(AesDrive drive, IFile realDir) throws IOException {
+        AesDirectoryIndex index = new AesDirectoryIndex(drive, realDir);
+        IFile indexFile = realDir.getChild(AesDrive.getDirectoryIndexFilename());
+        boolean valid = false;
+        if (indexFile != null && indexFile.exists()) {
+            try {
+                index.read(indexFile);
+                valid = index.matches(realDir.listFiles());
+            } catch (SecurityException | IntegrityException ex) {
+                // an index that cannot be decrypted is rebuilt below
+            }
+        }
+        if (!valid)
+            index.rebuild();
+        return index;
+    }
+
+    /**
+     * Get the real directory of this index.
+     *
+     * @return The real directory
+     */
+    public IFile getRealDir() {
+        return realDir;
+    }
+
+    /**
+     * Get the entry for a plaintext name.
+     *
+     * @param name The plaintext name
+     * @return The entry or null if not found
+     */
+    public synchronized Entry get(String name) {
+        return entries.get(getKey(name));
+    }
+
+    /**
+     * Add or replace the entry for a plaintext name.
+     *
+     * @param name     The plaintext name
+     * @param realName The real encrypted filename
+     */
+    public synchronized void put(String name, String realName) {
+        entries.put(getKey(name), new Entry(realName));
+        dirty = true;
+    }
+
+    /**
+     * Remove the entry with this real encrypted filename.
+     *
+     * @param realName The real encrypted filename
+     */
+    public synchronized void removeRealName(String realName) {
+        if (entries.values().removeIf((entry) -> entry.realName.equals(realName)))
+            dirty = true;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Check if there are changes that have not been written.
+     *
+     * @return True if there are unwritten changes
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Rebuild the index by decrypting the names of all the files in the directory.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized void rebuild() throws IOException {
+        entries.clear();
+        AesFile dir = new AesFile(realDir, drive);
+        AesFile[] files = dir.listFiles();
+        AesFile.decryptNames(files);
+        for (AesFile file : files) {
+            String name;
+            try {
+                name = file.getName();
+            } catch (Exception ex) {
+                // skip files that cannot be decrypted
+                continue;
+            }
+            entries.put(getKey(name), new Entry(file.getRealFile().getName()));
+        }
+        dirty = true;
+    }
+
+    /**
+     * Write the index to the directory if there are changes.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty)
+            return;
+        MemoryStream ms = new MemoryStream();
+        ms.write(new byte[]{VERSION}, 0, 1);
+        ms.write(BitConverter.toBytes(entries.size(), 4), 0, 4);
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            byte[] key = BitConverter.toBytes(mapEntry.getKey());
+            byte[] realName = mapEntry.getValue().realName.getBytes(StandardCharsets.UTF_8);
+            ms.write(key, 0, key.length);
+            ms.write(BitConverter.toBytes(realName.length, 2), 0, 2);
+            ms.write(realName, 0, realName.length);
+        }
+        ms.flush();
+        byte[] encData = encryptor.encrypt(ms.toArray(), drive.getKey().getDriveKey(), drive.getNextNonce(),
+                EncryptionFormat.Salmon, true, drive.getKey().getHashKey());
+        ms.close();
+
+        IFile indexFile = realDir.getChild(AesDrive.getDirectoryIndexFilename());
+        if (indexFile != null && indexFile.exists())
+            indexFile.delete();
+        indexFile = realDir.createFile(AesDrive.getDirectoryIndexFilename());
+        RandomAccessStream outputStream = indexFile.getOutputStream();
+        outputStream.write(encData, 0, encData.length);
+        outputStream.flush();
+        outputStream.close();
+        dirty = false;
+    }
+
+    /**
+     * Read and decrypt the index file.
+     *
+     * @param indexFile The index file
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void read(IFile indexFile) throws IOException {
+        byte[] encData = drive.getBytesFromRealFile(indexFile, 0);
+        byte[] data = decryptor.decrypt(encData, drive.getKey().getDriveKey(), null,
+                EncryptionFormat.Salmon, true, drive.getKey().getHashKey());
+        if (data.length < 5 || data[0] != VERSION)
+            throw new SecurityException("Unsupported directory index version");
+        int count = (int) BitConverter.toLong(data, 1, 4);
+        int pos = 5;
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[Generator.HASH_RESULT_LENGTH];
+            System.arraycopy(data, pos, key, 0, key.length);
+            pos += key.length;
+            int nameLength = (int) BitConverter.toLong(data, pos, 2);
+            pos += 2;
+            String realName = new String(data, pos, nameLength, StandardCharsets.UTF_8);
+            pos += nameLength;
+            entries.put(BitConverter.toHex(key), new Entry(realName));
+        }
+    }
+
+    /**
+     * Check if the entries match the real files in the directory.
+     *
+     * @param files The real files
+     * @return True if the index is up to date
+     */
+    private boolean matches(IFile[] files) {
+        Set<String> realNames = new HashSet<>();
+        for (Entry entry : entries.values())
+            realNames.add(entry.realName);
+        int count = 0;
+        for (IFile file : files) {
+            if (file.getName().equals(AesDrive.getDirectoryIndexFilename()))
+                continue;
+            if (!realNames.contains(file.getName()))
+                return false;
+            count++;
+        }
+        return count == realNames.size();
+    }
+
+    /**
+     * Get the keyed hash of a plaintext name.
+     *
+     * @param name The plaintext name
+     * @return The hash as a hex string
+     */
+    private String getKey(String name) {
+        byte[] data = name.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = Integrity.calculateHash(hashProvider, data, 0, data.length,
+                drive.getKey().getHashKey(), null);
+        return BitConverter.toHex(hash);
+    }
+}
@@ -0,0 +1,276 @@
+package com.mku.salmonfs.file;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.fs.file.IFile;
+import com.mku.salmon.text.TextDecryptor;
+import com.mku.salmonfs.drive.AesDrive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy stream of the entries of an encrypted directory, see {@link AesFile#openDirectoryStream(int)}.
+ * Entries are lightweight and are created as the stream is iterated. The names are decrypted
+ * in batches of one page only when the name of an entry in the page is requested and the
+ * full {@link AesFile} is only created when requested.
+ * The stream can be iterated only once.
+ */
+public class AesDirectoryStream implements Iterable<AesDirectoryStream.Entry>, Closeable {
+    /**
+     * Default number of entries decrypted in each batch.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 256;
+
+    private final AesFile dir;
+    private final int pageSize;
+    private IFile[] realFiles;
+    private boolean iterated;
+    private boolean closed;
+
+    /**
+     * An entry of the directory.
+     */
+    public static class Entry {
+        private final Page page;
+        private final int offset;
+        private final IFile realFile;
+        private AesFile file;
+
+        /**
+         * Construct an entry.
+         *
+         * @param page     The page of the entry
+         * @param offset   The offset of the entry in the page
+         * @param realFile The real file
+         */
+        private Entry(Page page, int offset, IFile realFile) {
+            this.page = page;
+            this.offset = offset;
+            this.realFile = realFile;
+        }
+
+        /**
+         * Get the real file.
+         *
+         * @return The real file
+         */
+        public IFile getRealFile() {
+            return realFile;
+        }
+
+        /**
+         * Check if the entry is a directory.
+         *
+         * @return True if directory
+         */
+        public boolean isDirectory() {
+            return realFile.isDirectory();
+        }
+
+        /**
+         * Get the decrypted name. The first call for an entry of a page decrypts the names of the whole page.
+         *
+         * @return The decrypted name
+         * @throws IOException Thrown if there is an IO error.
+         */
+        public String getName() throws IOException {
+            String name = page.getName(offset);
+            if (name == null)
+                name = getFile().getName();
+            return name;
+        }
+
+        /**
+         * Get the encrypted file.
+         *
+         * @return The file
+         */
+        public AesFile getFile() {
+            if (file == null)
+                file = new AesFile(realFile, page.drive);
+            return file;
+        }
+    }
+
+    /**
+     * A page of entries sharing a batch of decrypted names.
+     */
+    private static class Page {
+        private final AesDrive drive;
+        private final byte[] key;
+        private final String[] realNames;
+        private String[] names;
+
+        /**
+         * Construct a page.
+         *
+         * @param drive     The drive
+         * @param key       The key to decrypt the names
+         * @param realNames The real names, null for hidden files
+         */
+        private Page(AesDrive drive, byte[] key, String[] realNames) {
+            this.drive = drive;
+            this.key = key;
+            this.realNames = realNames;
+        }
+
+        /**
+         * Get a decrypted name of the page.
+         *
+         * @param offset The offset in the page
+         * @return The name or null if it could not be decrypted in the batch
+         */
+        private synchronized String getName(int offset) {
+            if (names == null)
+                names = decryptNames();
+            return names[offset];
+        }
+
+        private String[] decryptNames() {
+            String[] decNames = new String[realNames.length];
+            if (key == null)
+                return decNames;
+            int pending = 0;
+            for (int i = 0; i < realNames.length; i++) {
+                if (realNames[i] == null)
+                    continue;
+                decNames[i] = drive != null ? drive.getCachedFilename(realNames[i]) : null;
+                if (decNames[i] == null)
+                    pending++;
+            }
+            if (pending == 0)
+                return decNames;
+            String[] texts = new String[pending];
+            int[] indexes = new int[pending];
+            for (int i = 0, j = 0; i < realNames.length; i++) {
+                if (decNames[i] == null && realNames[i] != null) {
+                    texts[j] = realNames[i];
+                    indexes[j++] = i;
+                }
+            }
+            try {
+                String[] results = TextDecryptor.decryptStrings(texts, key);
+                for (int j = 0; j < results.length; j++) {
+                    decNames[indexes[j]] = results[j];
+                    if (drive != null)
+                        drive.cacheFilename(texts[j], results[j]);
+                }
+            } catch (Exception ignored) {
+                // names will be decrypted individually
+            }
+            return decNames;
+        }
+    }
+
+    /**
+     * Construct a stream for a directory.
+     *
+     * @param dir      The directory
+     * @param pageSize The number of entries decrypted in each batch
+     */
+    AesDirectoryStream(AesFile dir, int pageSize) {
+        this.dir = dir;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * Get the iterator of the entries. The real directory is listed when the iterator is requested.
+     *
+     * @return The iterator
+     */
+    @Override
+    public synchronized Iterator<Entry> iterator() {
+        if (closed)
+            throw new IllegalStateException("Directory stream is closed");
+        if (iterated)
+            throw new IllegalStateException("Directory stream can only be iterated once");
+        iterated = true;
+        realFiles = dir.getRealFile().listFiles();
+        return new Iterator<Entry>() {
+            private int index;
+            private int pageStart = -1;
+            private Page page;
+            private Entry next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null)
+                    next = advance();
+                return next != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Entry entry = next;
+                next = null;
+                return entry;
+            }
+
+            private Entry advance() {
+                IFile[] files = realFiles;
+                while (files != null && index < files.length) {
+                    int i = index++;
+                    if (pageStart < 0 || i >= pageStart + pageSize) {
+                        pageStart = i;
+                        page = createPage(files, i);
+                    }
+                    IFile realFile = files[i];
+                    if (isHidden(realFile))
+                        continue;
+                    // release the real file so memory does not grow with the entries consumed
+                    files[i] = null;
+                    return new Entry(page, i - pageStart, realFile);
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Close the stream and release the listing.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        realFiles = null;
+    }
+
+    private Page createPage(IFile[] files, int start) {
+        int end = Math.min(files.length, start + pageSize);
+        String[] realNames = new String[end - start];
+        // hidden files are left out of the batch since their names are not encrypted
+        for (int i = start; i < end; i++)
+            realNames[i - start] = isHidden(files[i]) ? null : files[i].getName();
+        return new Page(dir.getDrive(), dir.getEncryptionKey(), realNames);
+    }
+
+    private boolean isHidden(IFile realFile) {
+        return dir.getDrive() != null && realFile.getName().equals(AesDrive.getDirectoryIndexFilename());
+    }
+}
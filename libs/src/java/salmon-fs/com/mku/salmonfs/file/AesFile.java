@@ -30,21 +30,28 @@ import com.mku.func.Function;
 import com.mku.func.TriConsumer;
 import com.mku.salmon.Generator;
 import com.mku.salmon.Header;
+import com.mku.salmon.ParallelTasks;
 import com.mku.salmon.SecurityException;
 import com.mku.salmon.streams.EncryptionFormat;
 import com.mku.salmonfs.auth.AuthException;
 import com.mku.salmonfs.drive.AesDrive;
+import com.mku.salmonfs.drive.utils.AesFileContentIndex;
+import com.mku.salmonfs.drive.utils.AesFileSearchIndex;
 import com.mku.streams.RandomAccessStream;
-import com.mku.convert.BitConverter;
 import com.mku.salmon.integrity.Integrity;
 import com.mku.salmon.integrity.IntegrityException;
 import com.mku.salmon.streams.EncryptionMode;
+import com.mku.salmon.streams.AesAppendStream;
 import com.mku.salmon.streams.AesStream;
+import com.mku.salmon.streams.AesParallelInputStream;
+import com.mku.salmon.streams.AesParallelOutputStream;
 import com.mku.salmon.text.TextDecryptor;
 import com.mku.salmon.text.TextEncryptor;
 import com.mku.salmon.sequence.SequenceException;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -59,6 +66,11 @@ public class AesFile implements IVirtualFile {
      */
     public static final String Separator = "/";
 
+    /**
+     * Default number of concurrent requests when listing files with metadata.
+     */
+    public static final int DEFAULT_METADATA_THREADS = 4;
+
     private final AesDrive drive;
     private final EncryptionFormat format;
     private final IFile realFile;
@@ -186,32 +198,53 @@ public class AesFile implements IVirtualFile {
             throw new IOException("File does not exist");
 
         RandomAccessStream realStream = realFile.getInputStream();
-        realStream.seek(Generator.MAGIC_LENGTH + Generator.VERSION_LENGTH,
-                RandomAccessStream.SeekOrigin.Begin);
-
-        byte[] fileChunkSizeBytes = new byte[getChunkSizeLength()];
-        int bytesRead = realStream.read(fileChunkSizeBytes, 0, fileChunkSizeBytes.length);
-        if (bytesRead == 0)
-            throw new IOException("Could not parse chunks size from file header");
-        int chunkSize = (int) BitConverter.toLong(fileChunkSizeBytes, 0, 4);
-        if (integrity && chunkSize == 0)
+        if (format == EncryptionFormat.Generic)
+            return new AesStream(getEncryptionKey(), requestedNonce, EncryptionMode.Decrypt,
+                    realStream, format);
+        Header header = _header;
+        if (header == null) {
+            header = Header.readHeaderData(realStream);
+            if (header == null) {
+                realStream.close();
+                throw new IOException("Could not parse file header");
+            }
+            _header = header;
+        }
+        if (header.getVersion() != Generator.VERSION) {
+            realStream.close();
+            throw new SecurityException("Unsupported format version: " + header.getVersion());
+        }
+        if (integrity && header.getChunkSize() == 0) {
+            realStream.close();
             throw new SecurityException("Cannot check integrity if file doesn't support it");
+        }
 
-        byte[] nonceBytes = new byte[Generator.NONCE_LENGTH];
-        int ivBytesRead = realStream.read(nonceBytes, 0, nonceBytes.length);
-        if (ivBytesRead == 0)
-            throw new IOException("Could not parse nonce from file header");
-
-        realStream.setPosition(0);
-        byte[] headerData = new byte[getHeaderLength()];
-        realStream.read(headerData, 0, headerData.length);
-
-        AesStream stream = new AesStream(getEncryptionKey(),
-                nonceBytes, EncryptionMode.Decrypt, realStream, format,
+        AesStream stream = new AesStream(getEncryptionKey(), header, realStream,
                 integrity, getHashKey());
         return stream;
     }
 
+    /**
+     * Get an input stream for sequential reading that decrypts and verifies the chunks ahead
+     * of the reader on a worker pool. Use this for exports and backups where the reader
+     * should only copy the decrypted data.
+     *
+     * @param threads The number of threads to decrypt with.
+     * @return The input stream
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws SecurityException  Thrown if there is a security exception
+     */
+    public InputStream getParallelInputStream(int threads) throws IOException {
+        if (!exists())
+            throw new IOException("File does not exist");
+        byte[] key = this.getEncryptionKey();
+        if (key == null)
+            throw new IOException("Set an encryption key to the file first");
+        RandomAccessStream realStream = realFile.getInputStream();
+        return new AesParallelInputStream(key, null, realStream, format,
+                integrity, getHashKey(), threads);
+    }
+
     /**
      * Get a {@link AesStream} for encrypting/writing contents using the nonce in the header.
      *
@@ -234,7 +267,108 @@ public class AesFile implements IVirtualFile {
      * @throws IOException       If there is a problem creating the stream.
      */
     public synchronized RandomAccessStream getOutputStream(byte[] nonce) throws IOException {
+        byte[] nonceBytes = getOutputNonce(nonce);
+
+        // create a stream with the file chunk size specified which will be used to host the integrity hash
+        // we also specify if stream ranges can be overwritten which is generally dangerous if the file is existing
+        // but practical if the file is brand new and multithreaded writes for performance need to be used.
+        RandomAccessStream realStream = realFile.getOutputStream();
+        // the header is written again with the nonce and chunk size of the new stream
+        _header = null;
+
+        byte[] key = this.getEncryptionKey();
+        if (key == null)
+            throw new IOException("Set an encryption key to the file first");
+        if (nonceBytes == null)
+            throw new IOException("No nonce provided and no nonce found in file");
+
+        AesStream stream = new AesStream(getEncryptionKey(), nonceBytes,
+                EncryptionMode.Encrypt, realStream, format,
+                integrity, getHashKey(), getRequestedChunkSize());
+        stream.setAllowRangeWrite(overwrite);
+        return stream;
+    }
+
+    /**
+     * Get a stream that appends to the end of this file. Only the trailing partial chunk is
+     * decrypted, verified, and encrypted again so appending takes time proportional to the
+     * appended data, and the keystream is never reused for different data.
+     * Unlike {@link #getOutputStream()} this does not need {@link #setAllowOverwrite(boolean)}.
+     * If the file is new or empty a regular output stream is returned.
+     *
+     * @return The append stream
+     * @throws SecurityException  Thrown if there is a security exception
+     * @throws IntegrityException Thrown if the last chunk is corrupt or tampered with.
+     * @throws IOException        If there is a problem creating the stream.
+     */
+    public synchronized RandomAccessStream getAppendStream() throws IOException {
+        Header header = getHeader();
+        if (header == null)
+            return getOutputStream();
+        byte[] key = getEncryptionKey();
+        if (key == null)
+            throw new IOException("Set an encryption key to the file first");
+        boolean hasIntegrity = header.getChunkSize() > 0;
+        byte[] fileHashKey = getHashKey();
+        if (hasIntegrity && fileHashKey == null && drive != null)
+            fileHashKey = drive.getKey().getHashKey();
+        if (hasIntegrity && fileHashKey == null)
+            throw new SecurityException("Integrity needs a hashKey");
+        RandomAccessStream inputStream = realFile.getInputStream();
+        RandomAccessStream outputStream = realFile.getOutputStream();
+        return new AesAppendStream(key, inputStream, outputStream, hasIntegrity, fileHashKey);
+    }
+
+    /**
+     * Get an output stream that encrypts and signs consecutive chunks in parallel while
+     * writing them in order to this file. Use this for large sequential writes from a
+     * single producer.
+     *
+     * @param threads The number of threads to encrypt with.
+     * @return The output stream.
+     * @throws SecurityException If overwriting existing files. See SetAllowOverwrite().
+     * @throws IOException       If there is a problem creating the stream.
+     */
+    public synchronized OutputStream getParallelOutputStream(int threads) throws IOException {
+        return getParallelOutputStream(null, threads);
+    }
+
+    /**
+     * Get an output stream that encrypts and signs consecutive chunks in parallel while
+     * writing them in order to this file. Use this for large sequential writes from a
+     * single producer.
+     *
+     * @param nonce   Nonce to be used for encryption. Note that each file should have
+     *                a unique nonce see {@link AesDrive#getNextNonce()}.
+     * @param threads The number of threads to encrypt with.
+     * @return The output stream.
+     * @throws SecurityException If overwriting existing files. See SetAllowOverwrite().
+     * @throws IOException       If there is a problem creating the stream.
+     */
+    public synchronized OutputStream getParallelOutputStream(byte[] nonce, int threads) throws IOException {
+        byte[] nonceBytes = getOutputNonce(nonce);
+        byte[] key = this.getEncryptionKey();
+        if (key == null)
+            throw new IOException("Set an encryption key to the file first");
+        if (nonceBytes == null)
+            throw new IOException("No nonce provided and no nonce found in file");
+
+        RandomAccessStream realStream = realFile.getOutputStream();
+        // the header is written again with the nonce and chunk size of the new stream
+        _header = null;
+        return new AesParallelOutputStream(key, nonceBytes, realStream, format,
+                integrity, getHashKey(), getRequestedChunkSize(), threads);
+    }
 
+    /**
+     * Get the nonce to encrypt the file with, either the one in the existing header
+     * or the requested one or the next nonce from the drive.
+     *
+     * @param nonce The requested nonce or null.
+     * @return The nonce
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private byte[] getOutputNonce(byte[] nonce) throws IOException {
         // check if we have an existing iv in the header
         Header header = getHeader();
         byte[] nonceBytes = null;
@@ -262,23 +396,7 @@ public class AesFile implements IVirtualFile {
 
             nonceBytes = requestedNonce;
         }
-
-        // create a stream with the file chunk size specified which will be used to host the integrity hash
-        // we also specify if stream ranges can be overwritten which is generally dangerous if the file is existing
-        // but practical if the file is brand new and multithreaded writes for performance need to be used.
-        RandomAccessStream realStream = realFile.getOutputStream();
-
-        byte[] key = this.getEncryptionKey();
-        if (key == null)
-            throw new IOException("Set an encryption key to the file first");
-        if (nonceBytes == null)
-            throw new IOException("No nonce provided and no nonce found in file");
-
-        AesStream stream = new AesStream(getEncryptionKey(), nonceBytes,
-                EncryptionMode.Encrypt, realStream, format,
-                integrity, getHashKey(), getRequestedChunkSize());
-        stream.setAllowRangeWrite(overwrite);
-        return stream;
+        return nonceBytes;
     }
 
     /**
@@ -478,7 +596,13 @@ public class AesFile implements IVirtualFile {
      * @return The children count
      */
     public int getChildrenCount() {
-        return realFile.getChildrenCount();
+        int count = realFile.getChildrenCount();
+        if (drive != null && count > 0) {
+            IFile indexFile = realFile.getChild(AesDrive.getDirectoryIndexFilename());
+            if (indexFile != null && indexFile.exists())
+                count--;
+        }
+        return count;
     }
 
     /**
@@ -488,12 +612,95 @@ public class AesFile implements IVirtualFile {
         IFile[] files = realFile.listFiles();
         List<AesFile> aesFiles = new ArrayList<>();
         for (IFile iRealFile : files) {
+            if (drive != null && iRealFile.getName().equals(AesDrive.getDirectoryIndexFilename()))
+                continue;
             AesFile file = new AesFile(iRealFile, drive);
             aesFiles.add(file);
         }
         return aesFiles.toArray(new AesFile[0]);
     }
 
+    /**
+     * Open a lazy stream of the files and directories under this directory,
+     * see {@link #openDirectoryStream(int)}.
+     *
+     * @return The directory stream
+     */
+    public AesDirectoryStream openDirectoryStream() {
+        return openDirectoryStream(AesDirectoryStream.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Open a lazy stream of the files and directories under this directory. Unlike
+     * {@link #listFiles()} the entries are created as the stream is iterated and
+     * the names are decrypted in pages only when requested.
+     *
+     * @param pageSize The number of names decrypted in each batch
+     * @return The directory stream
+     */
+    public AesDirectoryStream openDirectoryStream(int pageSize) {
+        return new AesDirectoryStream(this, pageSize);
+    }
+
+    /**
+     * Lists files and directories under this directory and fetches their metadata
+     * concurrently, see {@link #listFilesWithMetadata(int)}.
+     *
+     * @return The metadata of the files
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesFileMetadata[] listFilesWithMetadata() throws IOException {
+        return listFilesWithMetadata(DEFAULT_METADATA_THREADS);
+    }
+
+    /**
+     * Lists files and directories under this directory and fetches their names, sizes,
+     * and dates concurrently. The names are decrypted in a single batch and the headers
+     * are read on a pool of threads so the latency of remote drives overlaps.
+     * The headers and names are also cached in the returned files.
+     *
+     * @param threads The maximum number of concurrent requests.
+     * @return The metadata of the files in the same order as {@link #listFiles()}
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesFileMetadata[] listFilesWithMetadata(int threads) throws IOException {
+        AesFile[] files = listFiles();
+        decryptNames(files);
+        AesFileMetadata[] metadata = new AesFileMetadata[files.length];
+        ParallelTasks.forEach(files.length, threads, (i) -> metadata[i] = files[i].fetchMetadata());
+        return metadata;
+    }
+
+    /**
+     * Fetch the metadata of this file. Errors are recorded in the metadata instead of thrown,
+     * see {@link AesFileMetadata#getError()}.
+     *
+     * @return The metadata
+     */
+    private AesFileMetadata fetchMetadata() {
+        String name = null;
+        Exception error = null;
+        try {
+            name = getName();
+        } catch (Exception ex) {
+            error = ex;
+        }
+        boolean directory = isDirectory();
+        long length = 0;
+        if (!directory) {
+            try {
+                length = getLength();
+            } catch (Exception ex) {
+                length = -1;
+                if (error == null)
+                    error = ex;
+                else
+                    error.addSuppressed(ex);
+            }
+        }
+        return new AesFileMetadata(this, name, directory, length, getLastDateModified(), error);
+    }
+
     /**
      * Get a child with this filename.
      *
@@ -505,7 +712,10 @@ public class AesFile implements IVirtualFile {
      * @throws AuthException      Thrown if there is an Authorization error
      */
     public AesFile getChild(String filename) throws IOException {
+        if (drive != null && drive.isDirectoryIndexEnabled())
+            return getIndexedChild(filename);
         AesFile[] files = listFiles();
+        decryptNames(files);
         for (AesFile file : files) {
             if (file.getName().equals(filename))
                 return file;
@@ -513,6 +723,92 @@ public class AesFile implements IVirtualFile {
         return null;
     }
 
+    /**
+     * Get a child with this filename using the directory index. The index is checked
+     * against the real files when it is loaded so a name that is not in the index does not exist.
+     * If the indexed file no longer exists the index is rebuilt and the lookup is retried.
+     *
+     * @param filename The filename to search for
+     * @return The child file or null if not found
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private AesFile getIndexedChild(String filename) throws IOException {
+        AesDirectoryIndex index = drive.getDirectoryIndex(realFile);
+        for (int i = 0; i < 2; i++) {
+            AesDirectoryIndex.Entry entry = index.get(filename);
+            if (entry == null)
+                return null;
+            IFile child = realFile.getChild(entry.getRealName());
+            if (child != null && child.exists()) {
+                AesFile file = new AesFile(child, drive);
+                file._name = filename;
+                return file;
+            }
+            index.rebuild();
+        }
+        return null;
+    }
+
+    /**
+     * Get the index of this directory if indexes are enabled.
+     *
+     * @return The directory index or null if not enabled
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private AesDirectoryIndex getDirectoryIndex() throws IOException {
+        if (drive == null || !drive.isDirectoryIndexEnabled())
+            return null;
+        return drive.getDirectoryIndex(realFile);
+    }
+
+    /**
+     * Remove a file from the index of its parent directory if it is loaded.
+     *
+     * @param realParent The real parent directory
+     * @param realName   The real filename
+     */
+    private void removeFromParentIndex(IFile realParent, String realName) {
+        if (drive == null)
+            return;
+        AesDirectoryIndex index = drive.getLoadedDirectoryIndex(realParent);
+        if (index != null)
+            index.removeRealName(realName);
+    }
+
+    /**
+     * Get the search index of the drive if it is enabled.
+     *
+     * @return The search index or null if not enabled or it could not be loaded
+     */
+    private AesFileSearchIndex getSearchIndex() {
+        if (drive == null || !drive.isSearchIndexEnabled())
+            return null;
+        try {
+            return drive.getSearchIndex();
+        } catch (Exception ex) {
+            // remove the index so it is rebuilt instead of serving stale results
+            drive.invalidateSearchIndex();
+            return null;
+        }
+    }
+
+    /**
+     * Get the content index of the drive if it exists.
+     *
+     * @return The content index or null if the drive has none or it could not be loaded
+     */
+    private AesFileContentIndex getContentIndex() {
+        if (drive == null)
+            return null;
+        try {
+            return drive.getExistingContentIndex();
+        } catch (Exception ex) {
+            // remove the index so it does not keep entries for files that changed
+            drive.invalidateContentIndex();
+            return null;
+        }
+    }
+
     /**
      * Creates a directory under this directory
      *
@@ -535,7 +831,15 @@ public class AesFile implements IVirtualFile {
      */
     public AesFile createDirectory(String dirName, byte[] key, byte[] dirNameNonce) throws IOException {
         String encryptedDirName = getEncryptedFilename(dirName, key, dirNameNonce);
+        AesDirectoryIndex index = getDirectoryIndex();
         IFile realDir = realFile.createDirectory(encryptedDirName);
+        if (index != null)
+            index.put(dirName, encryptedDirName);
+        if (drive != null)
+            drive.invalidatePaths(getChildPath(dirName), null);
+        AesFileSearchIndex searchIndex = getSearchIndex();
+        if (searchIndex != null)
+            searchIndex.add(realDir, dirName);
         return new AesFile(realDir, drive);
     }
 
@@ -573,7 +877,14 @@ public class AesFile implements IVirtualFile {
      */
     public String getPath() throws IOException {
         String realPath = realFile.getDisplayPath();
-        return getPath(realPath);
+        if (drive == null)
+            return getPath(realPath);
+        String path = drive.getCachedVirtualPath(realPath);
+        if (path == null) {
+            path = getPath(realPath);
+            drive.cacheVirtualPath(realFile, path);
+        }
+        return path;
     }
 
     /**
@@ -594,6 +905,18 @@ public class AesFile implements IVirtualFile {
         return path.toString();
     }
 
+    /**
+     * Get the virtual path of a child of this directory.
+     *
+     * @param name The name of the child
+     * @return The virtual path of the child
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private String getChildPath(String name) throws IOException {
+        String path = getPath();
+        return path + Separator + name;
+    }
+
     /**
      * Return the path of the real file.
      *
@@ -634,6 +957,49 @@ public class AesFile implements IVirtualFile {
         return _name;
     }
 
+    /**
+     * Decrypt the names of the files in a single batch so subsequent calls to
+     * {@link #getName()} do not need to decrypt them one by one. Files with names that
+     * cannot be decrypted are left to fail when {@link #getName()} is called.
+     *
+     * @param files The files, typically the result of {@link #listFiles()}.
+     */
+    public static void decryptNames(AesFile[] files) {
+        List<AesFile> pending = new ArrayList<>();
+        List<String> realNames = new ArrayList<>();
+        byte[] key = null;
+        for (AesFile file : files) {
+            if (file._name != null)
+                continue;
+            if (file.drive != null) {
+                file._name = file.drive.getCachedFilename(file.realFile.getName());
+                if (file._name != null)
+                    continue;
+            }
+            byte[] fileKey = file.encryptionKey;
+            if (fileKey == null && file.drive != null)
+                fileKey = file.drive.getKey().getDriveKey();
+            if (fileKey == null || (key != null && key != fileKey))
+                continue;
+            key = fileKey;
+            pending.add(file);
+            realNames.add(file.realFile.getName());
+        }
+        if (pending.size() == 0)
+            return;
+        try {
+            String[] names = TextDecryptor.decryptStrings(realNames.toArray(new String[0]), key);
+            for (int i = 0; i < names.length; i++) {
+                AesFile file = pending.get(i);
+                file._name = names[i];
+                if (file.drive != null)
+                    file.drive.cacheFilename(realNames.get(i), names[i]);
+            }
+        } catch (Exception ignored) {
+            // names will be decrypted individually
+        }
+    }
+
     /**
      * Returns the virtual parent directory.
      *
@@ -656,7 +1022,20 @@ public class AesFile implements IVirtualFile {
      * Delete this file.
      */
     public void delete() {
+        String realPath = realFile.getDisplayPath();
+        String realName = realFile.getName();
+        IFile realParent = realFile.getParent();
         realFile.delete();
+        if (drive != null) {
+            removeFromParentIndex(realParent, realName);
+            drive.invalidatePaths(null, realPath);
+            AesFileSearchIndex searchIndex = getSearchIndex();
+            if (searchIndex != null)
+                searchIndex.remove(realPath);
+            AesFileContentIndex contentIndex = getContentIndex();
+            if (contentIndex != null)
+                contentIndex.remove(realPath);
+        }
     }
 
     /**
@@ -732,7 +1111,15 @@ public class AesFile implements IVirtualFile {
     public AesFile createFile(String filename, byte[] key, byte[] fileNameNonce, byte[] fileNonce)
             throws IOException {
         String encryptedFilename = getEncryptedFilename(filename, key, fileNameNonce);
+        AesDirectoryIndex index = getDirectoryIndex();
         IFile file = realFile.createFile(encryptedFilename);
+        if (index != null)
+            index.put(filename, encryptedFilename);
+        if (drive != null)
+            drive.invalidatePaths(getChildPath(filename), null);
+        AesFileSearchIndex searchIndex = getSearchIndex();
+        if (searchIndex != null)
+            searchIndex.add(file, filename);
         AesFile aesFile = new AesFile(file, drive);
         aesFile.setEncryptionKey(key);
         aesFile.integrity = integrity;
@@ -764,8 +1151,27 @@ public class AesFile implements IVirtualFile {
      */
     public void rename(String newFilename, byte[] nonce) throws IOException {
         String newEncryptedFilename = getEncryptedFilename(newFilename, null, nonce);
+        String realPath = realFile.getDisplayPath();
+        String realName = realFile.getName();
+        IFile realParent = realFile.getParent();
+        if (drive != null && isDirectory())
+            drive.flushDirectoryIndexes();
         realFile.renameTo(newEncryptedFilename);
         _name = null;
+        if (drive != null) {
+            AesDirectoryIndex index = drive.getLoadedDirectoryIndex(realParent);
+            if (index != null) {
+                index.removeRealName(realName);
+                index.put(newFilename, newEncryptedFilename);
+            }
+            drive.invalidatePaths(null, realPath);
+            AesFileSearchIndex searchIndex = getSearchIndex();
+            if (searchIndex != null)
+                searchIndex.rename(realPath, newEncryptedFilename, newFilename);
+            AesFileContentIndex contentIndex = getContentIndex();
+            if (contentIndex != null)
+                contentIndex.move(realPath, realFile.getDisplayPath());
+        }
     }
 
     /**
@@ -787,7 +1193,15 @@ public class AesFile implements IVirtualFile {
     private String getDecryptedFilename(String filename) throws IOException {
         if (drive == null && (encryptionKey == null || requestedNonce == null))
             throw new SecurityException("Need to use a drive or pass key and nonce");
-        return getDecryptedFilename(filename, null, null);
+        if (drive != null) {
+            String name = drive.getCachedFilename(filename);
+            if (name != null)
+                return name;
+        }
+        String name = getDecryptedFilename(filename, null, null);
+        if (drive != null)
+            drive.cacheFilename(filename, name);
+        return name;
     }
 
     /**
@@ -801,7 +1215,7 @@ public class AesFile implements IVirtualFile {
      */
     protected String getDecryptedFilename(String filename, byte[] key, byte[] nonce)
             throws IOException {
-        String rfilename = filename.replaceAll("-", "/");
+        String rfilename = filename.replace('-', '/');
         if (drive != null && nonce != null)
             throw new SecurityException("Filename nonce is already set by the drive");
         if (drive != null && key != null)
@@ -835,7 +1249,9 @@ public class AesFile implements IVirtualFile {
         if (drive != null)
             key = drive.getKey().getDriveKey();
         String encryptedPath = TextEncryptor.encryptString(filename, key, nonce);
-        encryptedPath = encryptedPath.replaceAll("/", "-");
+        encryptedPath = encryptedPath.replace('/', '-');
+        if (drive != null)
+            drive.cacheFilename(encryptedPath, filename);
         return encryptedPath;
     }
 
@@ -887,7 +1303,24 @@ public class AesFile implements IVirtualFile {
      * @throws IOException Thrown if there is an IO error.
      */
     public AesFile move(IVirtualFile dir, IFile.MoveOptions options) throws IOException {
+        String realPath = realFile.getDisplayPath();
+        String realName = realFile.getName();
+        IFile realParent = realFile.getParent();
+        if (drive != null && isDirectory())
+            drive.flushDirectoryIndexes();
         IFile newRealFile = realFile.move(dir.getRealFile(), options);
+        if (drive != null) {
+            removeFromParentIndex(realParent, realName);
+            drive.invalidatePaths(null, realPath);
+            // the target index will be checked when it is next loaded
+            drive.releaseDirectoryIndex(dir.getRealFile());
+            AesFileSearchIndex searchIndex = getSearchIndex();
+            if (searchIndex != null)
+                searchIndex.move(realPath, newRealFile);
+            AesFileContentIndex contentIndex = getContentIndex();
+            if (contentIndex != null)
+                contentIndex.move(realPath, newRealFile.getDisplayPath());
+        }
         return new AesFile(newRealFile, drive);
     }
 
@@ -914,7 +1347,128 @@ public class AesFile implements IVirtualFile {
     public AesFile copy(IVirtualFile dir, IFile.CopyOptions options)
             throws IOException {
         IFile newRealFile = realFile.copy(dir.getRealFile(), options);
-        return new AesFile(newRealFile, drive);
+        AesFile newFile = new AesFile(newRealFile, drive);
+        if (drive != null) {
+            // the target index will be checked when it is next loaded
+            drive.releaseDirectoryIndex(dir.getRealFile());
+        }
+        AesFileSearchIndex searchIndex = getSearchIndex();
+        if (searchIndex != null)
+            searchIndex.add(newRealFile, getName());
+        return newFile;
+    }
+
+    /**
+     * Re-encrypt this file or directory into a directory of another drive,
+     * see {@link #transcodeTo(AesFile, int)}.
+     *
+     * @param targetDir The target directory
+     * @return The new file
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesFile transcodeTo(AesFile targetDir) throws IOException {
+        return transcodeTo(targetDir, 1);
+    }
+
+    /**
+     * Re-encrypt this file or directory into a directory of another drive. The contents are
+     * decrypted with the key of this file and encrypted with the key, a new nonce, and the
+     * chunk size of the target drive in memory so no plain text is written to disk.
+     * Files with integrity are verified while reading and the target files are signed.
+     * Directories are transcoded recursively, if a file fails the new directory is deleted.
+     *
+     * @param targetDir The target directory, cannot be this directory or one of its descendants
+     * @param threads   The number of threads to decrypt and encrypt the chunks with
+     * @return The new file
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public AesFile transcodeTo(AesFile targetDir, int threads) throws IOException {
+        if (isDirectory()) {
+            for (IFile dir = targetDir.getRealFile(); dir != null; dir = dir.getParent()) {
+                if (dir.getPath().equals(realFile.getPath()))
+                    throw new IOException("Cannot transcode a directory into itself");
+            }
+            AesFile[] files = listFiles();
+            AesFile dir = targetDir.createDirectory(getName());
+            try {
+                for (AesFile file : files)
+                    file.transcodeTo(dir, threads);
+            } catch (IOException | RuntimeException ex) {
+                dir.deleteRecursively();
+                throw ex;
+            }
+            return dir;
+        }
+
+        // verify the source with a local setting so the state of this file is not changed
+        boolean prevIntegrity = integrity;
+        byte[] prevHashKey = hashKey;
+        int prevReqChunkSize = reqChunkSize;
+        boolean sourceIntegrity = getFileChunkSize() > 0;
+        AesFile target = null;
+        try {
+            if (sourceIntegrity && !integrity && (hashKey != null || drive != null))
+                setVerifyIntegrity(true, hashKey);
+            target = targetDir.createFile(getName());
+            if (sourceIntegrity && target.getDrive() != null)
+                target.setApplyIntegrity(true);
+            if (threads > 1)
+                transcodeParallel(target, threads);
+            else
+                transcodeSequential(target);
+        } catch (IOException | RuntimeException ex) {
+            if (target != null)
+                target.delete();
+            throw ex;
+        } finally {
+            integrity = prevIntegrity;
+            hashKey = prevHashKey;
+            reqChunkSize = prevReqChunkSize;
+        }
+        return target;
+    }
+
+    /**
+     * Decrypt and encrypt on the calling thread.
+     *
+     * @param target The target file
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void transcodeSequential(AesFile target) throws IOException {
+        AesStream inputStream = getInputStream();
+        RandomAccessStream outputStream = null;
+        try {
+            outputStream = target.getOutputStream();
+            inputStream.copyTo(outputStream);
+        } finally {
+            inputStream.close();
+            if (outputStream != null)
+                outputStream.close();
+        }
+    }
+
+    /**
+     * Decrypt and encrypt the chunks in parallel.
+     *
+     * @param target  The target file
+     * @param threads The number of threads for each side
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void transcodeParallel(AesFile target, int threads) throws IOException {
+        InputStream inputStream = getParallelInputStream(threads);
+        OutputStream outputStream = null;
+        try {
+            outputStream = target.getParallelOutputStream(threads);
+            byte[] buffer = new byte[RandomAccessStream.DEFAULT_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer, 0, buffer.length)) > 0)
+                outputStream.write(buffer, 0, bytesRead);
+            outputStream.flush();
+        } finally {
+            inputStream.close();
+            if (outputStream != null)
+                outputStream.close();
+        }
     }
 
     /**
@@ -962,7 +1516,14 @@ public class AesFile implements IVirtualFile {
             if (finalOptions.onProgressChanged != null)
                 finalOptions.onProgressChanged.accept(new AesFile(file, drive), position, length);
         };
-        this.realFile.copyRecursively(dest.getRealFile(), copyOptions);
+        try {
+            this.realFile.copyRecursively(dest.getRealFile(), copyOptions);
+        } finally {
+            // files can be merged into existing directories of the target
+            if (drive != null)
+                drive.releaseDirectoryIndexes(dest.getRealFile());
+            reindexSearchTarget(dest, this.realFile.getName());
+        }
     }
 
     /**
@@ -1012,7 +1573,50 @@ public class AesFile implements IVirtualFile {
             if (finalOptions.onProgressChanged != null)
                 finalOptions.onProgressChanged.accept(new AesFile(file, drive), position, length);
         };
-        this.realFile.moveRecursively(dest.getRealFile(), moveOptions);
+        String realPath = this.realFile.getDisplayPath();
+        String realName = this.realFile.getName();
+        IFile realParent = this.realFile.getParent();
+        if (drive != null)
+            drive.flushDirectoryIndexes();
+        try {
+            this.realFile.moveRecursively(dest.getRealFile(), moveOptions);
+        } finally {
+            if (drive != null) {
+                removeFromParentIndex(realParent, realName);
+                drive.invalidatePaths(null, realPath);
+                drive.invalidatePaths(null, dest.getRealFile().getDisplayPath());
+                drive.releaseDirectoryIndexes(dest.getRealFile());
+                AesFileSearchIndex searchIndex = getSearchIndex();
+                if (searchIndex != null)
+                    searchIndex.remove(realPath);
+                reindexSearchTarget(dest, realName);
+                AesFileContentIndex contentIndex = getContentIndex();
+                if (contentIndex != null)
+                    contentIndex.move(realPath, dest.getRealFile().getDisplayPath() + "/" + realName);
+            }
+        }
+    }
+
+    /**
+     * Update the search index for a file that was copied or moved recursively to a directory.
+     * Files that were merged into an existing directory are re-indexed with the directory.
+     *
+     * @param dest     The destination directory
+     * @param realName The real name of the file
+     */
+    private void reindexSearchTarget(IVirtualFile dest, String realName) {
+        AesFileSearchIndex searchIndex = getSearchIndex();
+        if (searchIndex == null)
+            return;
+        IFile target = dest.getRealFile().getChild(realName);
+        if (target == null || !target.exists())
+            return;
+        searchIndex.remove(target.getDisplayPath());
+        try {
+            searchIndex.addTree(new AesFile(target, drive));
+        } catch (IOException ex) {
+            drive.invalidateSearchIndex();
+        }
     }
 
     /**
@@ -1046,7 +1650,23 @@ public class AesFile implements IVirtualFile {
             if (finalOptions.onProgressChanged != null)
                 finalOptions.onProgressChanged.accept(new AesFile(file, drive), position, length);
         };
-        this.getRealFile().deleteRecursively(deleteOptions);
+        String realPath = this.realFile.getDisplayPath();
+        String realName = this.realFile.getName();
+        IFile realParent = this.realFile.getParent();
+        try {
+            this.getRealFile().deleteRecursively(deleteOptions);
+        } finally {
+            if (drive != null) {
+                removeFromParentIndex(realParent, realName);
+                drive.invalidatePaths(null, realPath);
+                AesFileSearchIndex searchIndex = getSearchIndex();
+                if (searchIndex != null)
+                    searchIndex.remove(realPath);
+                AesFileContentIndex contentIndex = getContentIndex();
+                if (contentIndex != null)
+                    contentIndex.remove(realPath);
+            }
+        }
     }
 
 
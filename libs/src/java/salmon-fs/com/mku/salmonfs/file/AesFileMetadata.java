@@ -0,0 +1,125 @@
+package com.mku.salmonfs.file;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+/**
+ * Metadata of an {@link AesFile} fetched ahead of time, see {@link AesFile#listFilesWithMetadata(int)}.
+ */
+public class AesFileMetadata {
+    private final AesFile file;
+    private final String name;
+    private final boolean directory;
+    private final long length;
+    private final long lastDateModified;
+    private final Exception error;
+
+    /**
+     * Construct the metadata.
+     *
+     * @param file             The file
+     * @param name             The decrypted name or null if it could not be decrypted
+     * @param directory        True if the file is a directory
+     * @param length           The virtual size of the file or -1 if not available
+     * @param lastDateModified The last date modified in milliseconds
+     */
+    public AesFileMetadata(AesFile file, String name, boolean directory, long length, long lastDateModified) {
+        this(file, name, directory, length, lastDateModified, null);
+    }
+
+    /**
+     * Construct the metadata.
+     *
+     * @param file             The file
+     * @param name             The decrypted name or null if it could not be decrypted
+     * @param directory        True if the file is a directory
+     * @param length           The virtual size of the file or -1 if not available
+     * @param lastDateModified The last date modified in milliseconds
+     * @param error            The error if the name or the size could not be fetched, or null
+     */
+    public AesFileMetadata(AesFile file, String name, boolean directory, long length, long lastDateModified,
+                           Exception error) {
+        this.file = file;
+        this.name = name;
+        this.directory = directory;
+        this.length = length;
+        this.lastDateModified = lastDateModified;
+        this.error = error;
+    }
+
+    /**
+     * Get the file.
+     *
+     * @return The file
+     */
+    public AesFile getFile() {
+        return file;
+    }
+
+    /**
+     * Get the decrypted name.
+     *
+     * @return The name or null if it could not be decrypted, see {@link #getError()}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Check if the file is a directory.
+     *
+     * @return True if it is a directory
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the virtual size of the file excluding the header and hash signatures.
+     *
+     * @return The size in bytes, 0 for directories, or -1 if the header could not be read, see {@link #getError()}
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Get the last date modified.
+     *
+     * @return The last date modified in milliseconds
+     */
+    public long getLastDateModified() {
+        return lastDateModified;
+    }
+
+    /**
+     * Get the error that occurred while fetching the metadata. If both the name and the size
+     * failed the error of the size is added as suppressed to the error of the name.
+     *
+     * @return The error, for example an {@link java.io.IOException} if the file could not be read or a
+     * {@link com.mku.salmon.SecurityException} if the name or the header is tampered with, or null if there was no error
+     */
+    public Exception getError() {
+        return error;
+    }
+}
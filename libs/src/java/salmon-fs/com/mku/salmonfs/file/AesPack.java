@@ -0,0 +1,470 @@
+package com.mku.salmonfs.file;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import com.mku.convert.BitConverter;
+import com.mku.salmon.integrity.IntegrityException;
+import com.mku.salmon.streams.AesStream;
+import com.mku.streams.MemoryStream;
+import com.mku.streams.RandomAccessStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Encrypted container that stores many small files in a single {@link AesFile}. Small files stored
+ * as separate files each need a real file, a header, a nonce from the sequencer, an encrypted
+ * filename, and a signature for their chunk. In a pack all entries share the nonce, the header,
+ * and the integrity chunks of the pack file and the names are kept in an encrypted index.
+ * <p>
+ * New entries are kept in memory and appended to the pack along with a new index when the pack is
+ * flushed, see {@link AesFile#getAppendStream()}, so the keystream is never reused. Deleted and
+ * renamed entries and older indexes leave unused space that is reclaimed with {@link #compact()}.
+ * </p>
+ * Layout of the decrypted pack: the data of the entries and the indexes followed by a trailer
+ * with the offset and the length of the current index.
+ */
+public class AesPack {
+    /**
+     * Default number of bytes of new entries kept in memory before they are written.
+     */
+    public static final int DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private static final byte VERSION = 1;
+    private static final byte[] MAGIC = "SLMP".getBytes(StandardCharsets.US_ASCII);
+    private static final int TRAILER_LENGTH = 8 + 4 + 4;
+
+    private AesFile file;
+    private final LinkedHashMap<String, AesPackEntry> entries = new LinkedHashMap<>();
+    private int maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+    private long pendingBytes;
+    private long liveBytes;
+    private long indexLength;
+    private boolean dirty;
+
+    /**
+     * Construct a pack.
+     *
+     * @param file The pack file
+     */
+    private AesPack(AesFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Create a new pack in a directory.
+     *
+     * @param dir  The directory
+     * @param name The name of the pack file
+     * @return The pack
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public static AesPack create(AesFile dir, String name) throws IOException {
+        AesFile file = dir.createFile(name);
+        if (file.getDrive() != null)
+            file.setApplyIntegrity(true);
+        return new AesPack(file);
+    }
+
+    /**
+     * Open an existing pack.
+     *
+     * @param file The pack file
+     * @return The pack
+     * @throws IOException        Thrown if there is an IO error.
+     * @throws IntegrityException Thrown if the pack is corrupt or tampered with.
+     */
+    public static AesPack open(AesFile file) throws IOException {
+        if (file.getFileChunkSize() > 0 && file.getDrive() != null)
+            file.setVerifyIntegrity(true);
+        AesPack pack = new AesPack(file);
+        pack.readIndex();
+        return pack;
+    }
+
+    /**
+     * Get the pack file.
+     *
+     * @return The file
+     */
+    public AesFile getFile() {
+        return file;
+    }
+
+    /**
+     * Set the number of bytes of new entries kept in memory before they are written.
+     *
+     * @param maxPendingBytes The number of bytes
+     */
+    public synchronized void setMaxPendingBytes(int maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * List the entries in the order they were added.
+     *
+     * @return The entries
+     */
+    public synchronized AesPackEntry[] listEntries() {
+        return entries.values().toArray(new AesPackEntry[0]);
+    }
+
+    /**
+     * Get an entry.
+     *
+     * @param name The name
+     * @return The entry or null if not found
+     */
+    public synchronized AesPackEntry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Add an entry. Existing entries with the same name are replaced.
+     *
+     * @param name The name
+     * @param data The contents
+     * @return The entry
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized AesPackEntry addEntry(String name, byte[] data) throws IOException {
+        AesPackEntry existing = entries.remove(name);
+        if (existing != null)
+            removeEntry(existing);
+        AesPackEntry entry = new AesPackEntry(this, name, -1, data.length,
+                System.currentTimeMillis(), data.clone());
+        entries.put(name, entry);
+        liveBytes += data.length;
+        pendingBytes += data.length;
+        dirty = true;
+        if (pendingBytes >= maxPendingBytes)
+            flush();
+        return entry;
+    }
+
+    /**
+     * Get the number of bytes in the pack that are no longer used.
+     *
+     * @return The number of bytes
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized long getUnusedSpace() throws IOException {
+        if (!file.exists())
+            return 0;
+        long length = file.getLength();
+        if (length == 0)
+            return 0;
+        return length - (liveBytes - pendingBytes) - indexLength - TRAILER_LENGTH;
+    }
+
+    /**
+     * Write the new entries and the index if there are changes.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty)
+            return;
+        long[] offsets = getOffsets();
+        long newIndexLength;
+        RandomAccessStream stream = file.getLength() == 0 ? file.getOutputStream() : file.getAppendStream();
+        try {
+            long position = stream.getLength();
+            int i = 0;
+            for (AesPackEntry entry : entries.values()) {
+                byte[] data = entry.getPendingData();
+                if (data != null) {
+                    stream.write(data, 0, data.length);
+                    offsets[i] = position;
+                    position += data.length;
+                }
+                i++;
+            }
+            newIndexLength = writeIndex(stream, position, offsets);
+        } finally {
+            stream.close();
+        }
+        // keep the pending data until the data and the index are written
+        int i = 0;
+        for (AesPackEntry entry : entries.values()) {
+            if (entry.getPendingData() != null) {
+                entry.setOffset(offsets[i]);
+                entry.clearPendingData();
+            }
+            i++;
+        }
+        indexLength = newIndexLength;
+        pendingBytes = 0;
+        dirty = false;
+    }
+
+    /**
+     * Write the entries and the index to a new pack file and replace this pack file with it.
+     * Unused space is reclaimed and a new nonce is used. The old pack file is renamed and
+     * deleted only after the new pack file is written and renamed so one of them is always
+     * complete.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public synchronized void compact() throws IOException {
+        String name = file.getName();
+        AesFile dir = file.getParent();
+        if (dir == null)
+            throw new IOException("Pack has no parent directory");
+        AesFile newFile = dir.createFile(getUnusedName(dir, name + ".compact"));
+        long[] offsets = new long[entries.size()];
+        long newIndexLength;
+        try {
+            if (newFile.getDrive() != null)
+                newFile.setApplyIntegrity(true);
+            RandomAccessStream stream = newFile.getOutputStream();
+            try {
+                long position = 0;
+                int i = 0;
+                for (AesPackEntry entry : entries.values()) {
+                    byte[] data = readEntry(entry);
+                    stream.write(data, 0, data.length);
+                    offsets[i++] = position;
+                    position += data.length;
+                }
+                newIndexLength = writeIndex(stream, position, offsets);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException | RuntimeException ex) {
+            newFile.delete();
+            throw ex;
+        }
+
+        // keep the old pack until the new one has its name
+        file.rename(getUnusedName(dir, name + ".old"));
+        try {
+            newFile.rename(name);
+        } catch (IOException | RuntimeException ex) {
+            file.rename(name);
+            newFile.delete();
+            throw ex;
+        }
+        AesFile oldFile = file;
+        file = newFile;
+        int i = 0;
+        for (AesPackEntry entry : entries.values()) {
+            entry.setOffset(offsets[i++]);
+            entry.clearPendingData();
+        }
+        indexLength = newIndexLength;
+        pendingBytes = 0;
+        dirty = false;
+        oldFile.delete();
+    }
+
+    /**
+     * Get a name that is not used by another file in a directory.
+     *
+     * @param dir  The directory
+     * @param name The preferred name
+     * @return The name or the name with a number appended
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private static String getUnusedName(AesFile dir, String name) throws IOException {
+        String candidate = name;
+        for (int i = 1; dir.getChild(candidate) != null; i++)
+            candidate = name + "." + i;
+        return candidate;
+    }
+
+    /**
+     * Get the offsets of the entries in the order they were added.
+     *
+     * @return The offsets
+     */
+    private long[] getOffsets() {
+        long[] offsets = new long[entries.size()];
+        int i = 0;
+        for (AesPackEntry entry : entries.values())
+            offsets[i++] = entry.getOffset();
+        return offsets;
+    }
+
+    /**
+     * Write any changes.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public void close() throws IOException {
+        flush();
+    }
+
+    synchronized byte[] readEntry(AesPackEntry entry) throws IOException {
+        if (entry.getPendingData() != null)
+            return entry.getPendingData().clone();
+        if (entries.get(entry.getName()) != entry)
+            throw new IOException("Entry is deleted");
+        byte[] data = new byte[(int) entry.getLength()];
+        AesStream stream = file.getInputStream();
+        try {
+            readFully(stream, entry.getOffset(), data);
+        } finally {
+            stream.close();
+        }
+        return data;
+    }
+
+    synchronized void renameEntry(AesPackEntry entry, String newName) throws IOException {
+        if (entries.get(entry.getName()) != entry)
+            throw new IOException("Entry is deleted");
+        if (entries.containsKey(newName))
+            throw new IOException("Entry already exists: " + newName);
+        // keep the order of the entries
+        LinkedHashMap<String, AesPackEntry> renamed = new LinkedHashMap<>();
+        for (AesPackEntry e : entries.values())
+            renamed.put(e == entry ? newName : e.getName(), e);
+        entries.clear();
+        entries.putAll(renamed);
+        entry.setName(newName);
+        dirty = true;
+    }
+
+    synchronized void deleteEntry(AesPackEntry entry) {
+        if (entries.get(entry.getName()) != entry)
+            return;
+        entries.remove(entry.getName());
+        removeEntry(entry);
+        dirty = true;
+    }
+
+    private void removeEntry(AesPackEntry entry) {
+        liveBytes -= entry.getLength();
+        if (entry.getPendingData() != null) {
+            pendingBytes -= entry.getLength();
+            entry.clearPendingData();
+        }
+    }
+
+    /**
+     * Write the index and the trailer.
+     *
+     * @param stream   The stream positioned at the end of the data
+     * @param position The position of the index
+     * @param offsets  The offsets of the entries in the order they were added
+     * @return The length of the index
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private long writeIndex(RandomAccessStream stream, long position, long[] offsets) throws IOException {
+        MemoryStream ms = new MemoryStream();
+        ms.write(new byte[]{VERSION}, 0, 1);
+        ms.write(BitConverter.toBytes(entries.size(), 4), 0, 4);
+        int i = 0;
+        for (AesPackEntry entry : entries.values()) {
+            byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            ms.write(BitConverter.toBytes(name.length, 2), 0, 2);
+            ms.write(name, 0, name.length);
+            ms.write(BitConverter.toBytes(offsets[i++], 8), 0, 8);
+            ms.write(BitConverter.toBytes(entry.getLength(), 8), 0, 8);
+            ms.write(BitConverter.toBytes(entry.getLastDateModified(), 8), 0, 8);
+        }
+        byte[] index = ms.toArray();
+        ms.close();
+        stream.write(index, 0, index.length);
+        byte[] trailer = new byte[TRAILER_LENGTH];
+        System.arraycopy(BitConverter.toBytes(position, 8), 0, trailer, 0, 8);
+        System.arraycopy(BitConverter.toBytes(index.length, 4), 0, trailer, 8, 4);
+        System.arraycopy(MAGIC, 0, trailer, 12, MAGIC.length);
+        stream.write(trailer, 0, trailer.length);
+        stream.flush();
+        return index.length;
+    }
+
+    /**
+     * Read the current index.
+     *
+     * @throws IOException Thrown if there is an IO error.
+     */
+    private void readIndex() throws IOException {
+        if (!file.exists() || file.getLength() == 0)
+            return;
+        AesStream stream = file.getInputStream();
+        try {
+            long length = stream.getLength();
+            if (length < TRAILER_LENGTH)
+                throw new IntegrityException("Pack is truncated");
+            byte[] trailer = new byte[TRAILER_LENGTH];
+            readFully(stream, length - TRAILER_LENGTH, trailer);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (trailer[12 + i] != MAGIC[i])
+                    throw new IntegrityException("Not a pack file");
+            }
+            long position = BitConverter.toLong(trailer, 0, 8);
+            int size = (int) BitConverter.toLong(trailer, 8, 4);
+            if (position < 0 || size < 5 || position + size > length - TRAILER_LENGTH)
+                throw new IntegrityException("Pack index is corrupt");
+            byte[] index = new byte[size];
+            readFully(stream, position, index);
+            if (index[0] != VERSION)
+                throw new IntegrityException("Unsupported pack version: " + index[0]);
+            int count = (int) BitConverter.toLong(index, 1, 4);
+            int pos = 5;
+            for (int i = 0; i < count; i++) {
+                int nameLength = (int) BitConverter.toLong(index, pos, 2);
+                pos += 2;
+                String name = new String(index, pos, nameLength, StandardCharsets.UTF_8);
+                pos += nameLength;
+                long offset = BitConverter.toLong(index, pos, 8);
+                long entryLength = BitConverter.toLong(index, pos + 8, 8);
+                long date = BitConverter.toLong(index, pos + 16, 8);
+                pos += 24;
+                entries.put(name, new AesPackEntry(this, name, offset, entryLength, date, null));
+                liveBytes += entryLength;
+            }
+            indexLength = size;
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IntegrityException("Pack index is corrupt", ex);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void readFully(AesStream stream, long position, byte[] buffer) throws IOException {
+        stream.setPosition(position);
+        int bytesRead = 0;
+        while (bytesRead < buffer.length) {
+            int n = stream.read(buffer, bytesRead, buffer.length - bytesRead);
+            if (n <= 0)
+                throw new IntegrityException("Pack is truncated");
+            bytesRead += n;
+        }
+    }
+}
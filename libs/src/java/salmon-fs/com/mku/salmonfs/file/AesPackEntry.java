@@ -0,0 +1,149 @@
+package com.mku.salmonfs.file;
+/*
+MIT License
+
+Copyright (c) 2025 Max Kas
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.IOException;
+
+/**
+ * A file stored in an {@link AesPack}.
+ */
+public class AesPackEntry {
+    private final AesPack pack;
+    private String name;
+    private long offset;
+    private final long length;
+    private final long lastDateModified;
+    private byte[] pendingData;
+
+    /**
+     * Construct an entry.
+     *
+     * @param pack             The pack
+     * @param name             The name
+     * @param offset           The offset of the data in the pack or -1 if not written yet
+     * @param length           The length of the data
+     * @param lastDateModified The last date modified in milliseconds
+     * @param pendingData      The data if not written yet
+     */
+    AesPackEntry(AesPack pack, String name, long offset, long length, long lastDateModified, byte[] pendingData) {
+        this.pack = pack;
+        this.name = name;
+        this.offset = offset;
+        this.length = length;
+        this.lastDateModified = lastDateModified;
+        this.pendingData = pendingData;
+    }
+
+    /**
+     * Get the pack that contains this entry.
+     *
+     * @return The pack
+     */
+    public AesPack getPack() {
+        return pack;
+    }
+
+    /**
+     * Get the name.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the length of the data.
+     *
+     * @return The length
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Get the last date modified.
+     *
+     * @return The last date modified in milliseconds
+     */
+    public long getLastDateModified() {
+        return lastDateModified;
+    }
+
+    /**
+     * This is always a file.
+     *
+     * @return True
+     */
+    public boolean isFile() {
+        return true;
+    }
+
+    /**
+     * Read and decrypt the contents.
+     *
+     * @return The contents
+     * @throws IOException Thrown if there is an IO error.
+     */
+    public byte[] getBytes() throws IOException {
+        return pack.readEntry(this);
+    }
+
+    /**
+     * Rename the entry.
+     *
+     * @param newName The new name
+     * @throws IOException Thrown if an entry with the same name exists.
+     */
+    public void rename(String newName) throws IOException {
+        pack.renameEntry(this, newName);
+    }
+
+    /**
+     * Delete the entry. The space is reclaimed when the pack is compacted, see {@link AesPack#compact()}.
+     */
+    public void delete() {
+        pack.deleteEntry(this);
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    byte[] getPendingData() {
+        return pendingData;
+    }
+
+    void clearPendingData() {
+        this.pendingData = null;
+    }
+}
@@ -25,15 +25,25 @@ SOFTWARE.
 */
 
 import com.mku.convert.BitConverter;
+import com.mku.salmon.Decryptor;
+import com.mku.salmon.Encryptor;
 import com.mku.salmon.Generator;
+import com.mku.salmon.Header;
+import com.mku.salmon.ParallelTasks;
 import com.mku.salmon.RangeExceededException;
 import com.mku.salmon.SecurityException;
 import com.mku.salmon.integrity.Integrity;
 import com.mku.salmon.integrity.IntegrityException;
+import com.mku.salmon.streams.AesAppendStream;
+import com.mku.salmon.streams.AesCompressedStream;
+import com.mku.salmon.streams.AesParallelInputStream;
+import com.mku.salmon.streams.AesParallelOutputStream;
 import com.mku.salmon.streams.AesStream;
+import com.mku.salmon.streams.AesStreamPublisher;
 import com.mku.salmon.streams.EncryptionFormat;
 import com.mku.salmon.streams.EncryptionMode;
 import com.mku.salmon.streams.ProviderType;
+import com.mku.salmon.streams.ReadAheadInputStream;
 import com.mku.salmon.text.TextDecryptor;
 import com.mku.salmon.text.TextEncryptor;
 import com.mku.streams.MemoryStream;
@@ -41,8 +51,21 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -97,6 +120,50 @@ public class SalmonCoreTests {
         assertEquals(plainText, decText);
     }
 
+    @Test
+    public void shouldDecryptStringsInBatch() throws Exception {
+        int count = TextDecryptor.DEFAULT_PARALLEL_THRESHOLD + 100;
+        String[] plainTexts = new String[count];
+        String[] encTexts = new String[count];
+        for (int i = 0; i < count; i++) {
+            plainTexts[i] = "file_" + i + "_" + SalmonCoreTestHelper.TEST_TINY_TEXT;
+            byte[] nonce = Generator.getSecureRandomBytes(Generator.NONCE_LENGTH);
+            encTexts[i] = TextEncryptor.encryptString(plainTexts[i],
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, nonce);
+            // filename style encoding
+            if (i % 2 == 0)
+                encTexts[i] = encTexts[i].replace("/", "-");
+        }
+
+        String[] decTexts = TextDecryptor.decryptStrings(encTexts, SalmonCoreTestHelper.TEST_KEY_BYTES, 4);
+        assertArrayEquals(plainTexts, decTexts);
+
+        String[] small = Arrays.copyOf(encTexts, 10);
+        String[] decSmall = TextDecryptor.decryptStrings(small, SalmonCoreTestHelper.TEST_KEY_BYTES);
+        assertArrayEquals(Arrays.copyOf(plainTexts, 10), decSmall);
+        for (int i = 1; i < 10; i += 2)
+            assertEquals(TextDecryptor.decryptString(small[i], SalmonCoreTestHelper.TEST_KEY_BYTES), decSmall[i]);
+    }
+
+    @Test
+    public void shouldRunParallelTasks() throws Exception {
+        int[] results = new int[1000];
+        ParallelTasks.forEach(results.length, 4, (i) -> results[i] = i * 2);
+        for (int i = 0; i < results.length; i++)
+            assertEquals(i * 2, results[i]);
+
+        boolean caught = false;
+        try {
+            ParallelTasks.forEach(results.length, 4, (i) -> {
+                if (i == 500)
+                    throw new IOException("Task failed");
+            });
+        } catch (IOException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+    }
+
     @Test
     public void shouldEncryptCatchNoKey() throws Exception {
         String plainText = SalmonCoreTestHelper.TEST_TINY_TEXT;
@@ -695,4 +762,642 @@ public class SalmonCoreTests {
                 true, 128 * 1024, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES,
                 32768);
     }
+
+    @Test
+    public void shouldEncryptAndDecryptStreamAsync() throws Exception {
+        byte[] data = SalmonCoreTestHelper.getRandArray(1 * 1024 * 1024 + 3);
+        MemoryStream ms = new MemoryStream();
+        AesStream encStream = new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionMode.Encrypt, ms, EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+        int half = data.length / 2 / encStream.getAlignSize() * encStream.getAlignSize();
+        encStream.writeAsync(data, 0, half);
+        encStream.writeAsync(data, half, data.length - half).get();
+        encStream.flush();
+        byte[] encData = ms.toArray();
+        encStream.close();
+
+        AesStream decStream = new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                EncryptionMode.Decrypt, new MemoryStream(encData), EncryptionFormat.Salmon,
+                true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+        byte[] decData = new byte[data.length];
+        int bytesRead = decStream.readAsync(0, decData, 0, half).get();
+        bytesRead += decStream.readAsync(decData, bytesRead, decData.length - bytesRead).get();
+        decStream.close();
+
+        assertEquals(data.length, bytesRead);
+        assertArrayEquals(data, decData);
+    }
+
+    @Test
+    public void shouldNotOverlapSyncAndAsyncOperations() throws Exception {
+        byte[] data = SalmonCoreTestHelper.getRandArray(64 * 1024);
+        byte[] encData = new Encryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, false, null);
+        AesStream decStream = new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                EncryptionMode.Decrypt, new MemoryStream(encData), EncryptionFormat.Salmon);
+        CountDownLatch started = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        decStream.setAsyncExecutor((task) -> executor.execute(() -> {
+            try {
+                started.await();
+            } catch (InterruptedException ignored) {
+            }
+            task.run();
+        }));
+        byte[] decData = new byte[data.length];
+        CompletableFuture<Integer> future = decStream.readAsync(decData, 0, decData.length);
+        boolean caught = false;
+        try {
+            decStream.read(new byte[16], 0, 16);
+        } catch (IOException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+        started.countDown();
+        assertEquals(data.length, (int) future.get());
+        assertArrayEquals(data, decData);
+        decStream.setPosition(0);
+        decStream.close();
+        executor.shutdown();
+
+        // the default executor has a bounded number of threads
+        ThreadPoolExecutor defaultExecutor = (ThreadPoolExecutor) AesStream.getDefaultAsyncExecutor();
+        assertEquals(AesStream.DEFAULT_ASYNC_THREADS, defaultExecutor.getMaximumPoolSize());
+    }
+
+    @Test
+    public void shouldPublishDecryptedBuffers() throws Exception {
+        byte[] data = SalmonCoreTestHelper.getRandArray(1 * 1024 * 1024 + 5);
+        byte[] encData = SalmonCoreTestHelper.getEncryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+        AesStream decStream = new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                EncryptionMode.Decrypt, new MemoryStream(encData), EncryptionFormat.Salmon,
+                true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+        AesStreamPublisher publisher = new AesStreamPublisher(decStream, 64 * 1024, 2, null);
+
+        ByteArrayOutputStream decData = new ByteArrayOutputStream();
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                decData.write(item.array(), item.position(), item.remaining());
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertArrayEquals(data, decData.toByteArray());
+    }
+
+    @Test
+    public void shouldReadAheadAdaptively() throws Exception {
+        int chunkSize = 32 * 1024;
+        byte[] data = SalmonCoreTestHelper.getRandArray(1 * 1024 * 1024 + 7);
+        byte[] encData = SalmonCoreTestHelper.getEncryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        AesStream decStream = new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                EncryptionMode.Decrypt, new MemoryStream(encData), EncryptionFormat.Salmon,
+                true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        ReadAheadInputStream stream = new ReadAheadInputStream(decStream, 0, 256 * 1024);
+
+        // sequential reads grow the window
+        byte[] buff = new byte[10000];
+        ByteArrayOutputStream seqData = new ByteArrayOutputStream();
+        for (int i = 0; i < 30; i++) {
+            int bytesRead = stream.read(buff, 0, buff.length);
+            seqData.write(buff, 0, bytesRead);
+        }
+        assertEquals(256 * 1024, stream.getWindow());
+        assertArrayEquals(Arrays.copyOfRange(data, 0, seqData.size()), seqData.toByteArray());
+
+        // random access shrinks it back to a chunk
+        long pos = seqData.size() + 600 * 1024;
+        stream.skip(600 * 1024);
+        stream.mark(0);
+        assertEquals(data[(int) pos] & 0xFF, stream.read());
+        assertEquals(chunkSize, stream.getWindow());
+        stream.reset();
+        byte[] rest = new byte[data.length];
+        int total = 0;
+        int bytesRead;
+        while ((bytesRead = stream.read(rest, total, rest.length - total)) > 0)
+            total += bytesRead;
+        assertArrayEquals(Arrays.copyOfRange(data, (int) pos, data.length),
+                Arrays.copyOfRange(rest, 0, total));
+        stream.close();
+
+        // a hinted range is fetched at once
+        decStream = new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                EncryptionMode.Decrypt, new MemoryStream(encData), EncryptionFormat.Salmon,
+                true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        stream = new ReadAheadInputStream(decStream, 0, 256 * 1024);
+        long hintPos = 100 * 1024 + 3;
+        stream.willNeed(hintPos, 100 * 1024);
+        stream.skip(hintPos);
+        bytesRead = stream.read(buff, 0, buff.length);
+        assertTrue(stream.available() >= 100 * 1024 - bytesRead);
+        assertArrayEquals(Arrays.copyOfRange(data, (int) hintPos, (int) hintPos + bytesRead),
+                Arrays.copyOfRange(buff, 0, bytesRead));
+        stream.close();
+    }
+
+    @Test
+    public void shouldEncryptWithParallelOutputStream() throws Exception {
+        int chunkSize = 32 * 1024;
+        byte[] data = SalmonCoreTestHelper.getRandArray(1 * 1024 * 1024 + 17);
+        byte[] encData = SalmonCoreTestHelper.getEncryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+
+        MemoryStream outs = new MemoryStream();
+        AesParallelOutputStream stream = new AesParallelOutputStream(SalmonCoreTestHelper.TEST_KEY_BYTES,
+                SalmonCoreTestHelper.TEST_NONCE_BYTES, outs, EncryptionFormat.Salmon,
+                true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize, 3, 2);
+        int pos = 0;
+        while (pos < data.length) {
+            int count = Math.min(10001, data.length - pos);
+            stream.write(data, pos, count);
+            pos += count;
+        }
+        stream.close();
+        assertArrayEquals(encData, outs.toArray());
+
+        byte[] encGenericData = SalmonCoreTestHelper.getEncryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Generic);
+        outs = new MemoryStream();
+        stream = new AesParallelOutputStream(SalmonCoreTestHelper.TEST_KEY_BYTES,
+                SalmonCoreTestHelper.TEST_NONCE_BYTES, outs, EncryptionFormat.Generic,
+                false, null, 0, 2);
+        stream.write(data, 0, data.length);
+        stream.close();
+        assertArrayEquals(encGenericData, outs.toArray());
+    }
+
+    @Test
+    public void shouldDecryptWithParallelInputStream() throws Exception {
+        int chunkSize = 32 * 1024;
+        byte[] data = SalmonCoreTestHelper.getRandArray(1 * 1024 * 1024 + 17);
+        byte[] encData = SalmonCoreTestHelper.getEncryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+
+        AesParallelInputStream stream = new AesParallelInputStream(SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                new MemoryStream(encData), EncryptionFormat.Salmon,
+                true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, 3, 2);
+        ByteArrayOutputStream decData = new ByteArrayOutputStream();
+        byte[] buff = new byte[10001];
+        int bytesRead;
+        while ((bytesRead = stream.read(buff, 0, buff.length)) > 0)
+            decData.write(buff, 0, bytesRead);
+        stream.close();
+        assertArrayEquals(data, decData.toByteArray());
+
+        encData[encData.length / 2] ^= 1;
+        AesParallelInputStream tamperedStream = new AesParallelInputStream(SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                new MemoryStream(encData), EncryptionFormat.Salmon,
+                true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, 3, 2);
+        boolean caught = false;
+        try {
+            while (tamperedStream.read(buff, 0, buff.length) > 0) ;
+        } catch (IOException ex) {
+            if (ex.getCause() instanceof IntegrityException)
+                caught = true;
+        } finally {
+            tamperedStream.close();
+        }
+        assertTrue(caught);
+    }
+
+    @Test
+    public void shouldEncryptAndDecryptStreams() throws Exception {
+        int chunkSize = 32 * 1024;
+        byte[] data = SalmonCoreTestHelper.getRandArray(1 * 1024 * 1024 + 17);
+        byte[] encData = SalmonCoreTestHelper.getEncryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+
+        for (int threads : new int[]{1, 3}) {
+            Encryptor encryptor = new Encryptor(threads);
+            ByteArrayOutputStream encOuts = new ByteArrayOutputStream();
+            long encBytes = encryptor.encrypt(new ByteArrayInputStream(data), encOuts,
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                    EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+            encryptor.close();
+            assertEquals(data.length, encBytes);
+            assertArrayEquals(encData, encOuts.toByteArray());
+
+            Decryptor decryptor = new Decryptor(threads);
+            ByteArrayOutputStream decOuts = new ByteArrayOutputStream();
+            long decBytes = decryptor.decrypt(Channels.newChannel(new ByteArrayInputStream(encData)),
+                    Channels.newChannel(decOuts), SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                    EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+            decryptor.close();
+            assertEquals(data.length, decBytes);
+            assertArrayEquals(data, decOuts.toByteArray());
+        }
+    }
+
+    @Test
+    public void shouldEncryptAndDecryptWithSharedExecutor() throws Exception {
+        int chunkSize = 32 * 1024;
+        byte[] data = SalmonCoreTestHelper.getRandArray(1 * 1024 * 1024 + 17);
+        Encryptor seqEncryptor = new Encryptor();
+        byte[] encData = seqEncryptor.encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        seqEncryptor.close();
+
+        ExecutorService sharedExecutor = Executors.newFixedThreadPool(2);
+        Encryptor encryptor = new Encryptor(sharedExecutor, 4);
+        encryptor.setParallelThreshold(0);
+        Decryptor decryptor = new Decryptor(sharedExecutor, 4);
+        decryptor.setParallelThreshold(0);
+        byte[] parEncData = encryptor.encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        assertArrayEquals(encData, parEncData);
+        byte[] decData = decryptor.decrypt(parEncData, SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        assertArrayEquals(data, decData);
+
+        // closing does not shut down a shared executor
+        encryptor.close();
+        decryptor.close();
+        assertFalse(sharedExecutor.isShutdown());
+        sharedExecutor.shutdown();
+    }
+
+    @Test
+    public void shouldEncryptAndDecryptWithBusyExecutor() throws Exception {
+        int chunkSize = 32 * 1024;
+        byte[] data = SalmonCoreTestHelper.getRandArray(1 * 1024 * 1024 + 17);
+        ExecutorService busyExecutor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        busyExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        // the calling thread takes all the parts and does not wait for the queued tasks
+        Encryptor encryptor = new Encryptor(busyExecutor, 4);
+        encryptor.setParallelThreshold(0);
+        Decryptor decryptor = new Decryptor(busyExecutor, 4);
+        decryptor.setParallelThreshold(0);
+        byte[] encData = encryptor.encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        byte[] decData = decryptor.decrypt(encData, SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        assertArrayEquals(data, decData);
+        release.countDown();
+        busyExecutor.shutdown();
+    }
+
+    @Test
+    public void shouldEncryptAndDecryptIntoBuffers() throws Exception {
+        int chunkSize = 32 * 1024;
+        byte[] data = SalmonCoreTestHelper.getRandArray(100 * 1024 + 3);
+        Encryptor encryptor = new Encryptor();
+        Decryptor decryptor = new Decryptor();
+        byte[] encData = encryptor.encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+
+        byte[] encBuffer = new byte[encData.length + 10];
+        int encBytes = encryptor.encryptInto(data, 0, data.length, encBuffer, 5,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, chunkSize);
+        assertEquals(encData.length, encBytes);
+        assertArrayEquals(encData, Arrays.copyOfRange(encBuffer, 5, 5 + encBytes));
+
+        ByteBuffer decBuffer = ByteBuffer.allocateDirect(data.length);
+        int decBytes = decryptor.decryptInto(ByteBuffer.wrap(encData), decBuffer,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+        assertEquals(data.length, decBytes);
+        assertEquals(data.length, decBuffer.position());
+        byte[] decData = new byte[data.length];
+        decBuffer.flip();
+        decBuffer.get(decData);
+        assertArrayEquals(data, decData);
+
+        // generic format can be transformed in place
+        byte[] genericData = encryptor.encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Generic);
+        byte[] buffer = data.clone();
+        encryptor.encryptInto(buffer, 0, buffer.length, buffer, 0,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Generic, false, null, 0);
+        assertArrayEquals(genericData, buffer);
+        decryptor.decryptInto(buffer, 0, buffer.length, buffer, 0,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Generic, false, null);
+        assertArrayEquals(data, buffer);
+
+        // overlapping buffers with different offsets are rejected
+        boolean caughtOverlap = false;
+        try {
+            encryptor.encryptInto(buffer, 0, buffer.length - 16, buffer, 16,
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                    EncryptionFormat.Generic, false, null, 0);
+        } catch (IllegalArgumentException ex) {
+            caughtOverlap = true;
+        }
+        assertTrue(caughtOverlap);
+        boolean caughtDecOverlap = false;
+        try {
+            decryptor.decryptInto(buffer, 16, buffer.length - 16, buffer, 0,
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                    EncryptionFormat.Generic, false, null);
+        } catch (IllegalArgumentException ex) {
+            caughtDecOverlap = true;
+        }
+        assertTrue(caughtDecOverlap);
+        assertArrayEquals(data, buffer);
+
+        encData[encData.length - 1] ^= 1;
+        boolean caught = false;
+        try {
+            decryptor.decryptInto(encData, 0, encData.length, new byte[data.length], 0,
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                    EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+        } catch (IntegrityException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+
+        boolean caught2 = false;
+        try {
+            decryptor.decryptInto(encData, 0, encData.length, new byte[data.length - 1], 0,
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                    EncryptionFormat.Salmon, false, null);
+        } catch (IllegalArgumentException ex) {
+            caught2 = true;
+        }
+        assertTrue(caught2);
+    }
+
+    @Test
+    public void shouldCacheLengthAndPosition() throws Exception {
+        byte[] data = SalmonCoreTestHelper.getRandArray(100 * 1024 + 3);
+        byte[] encData = new Encryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, 32 * 1024);
+        MemoryStream ms = new MemoryStream(encData);
+        AesStream stream = new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionMode.Decrypt, ms, EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+        assertEquals(data.length, stream.getLength());
+        assertEquals(data.length, stream.getLength());
+
+        byte[] buffer = new byte[40 * 1024];
+        int bytesRead = stream.read(buffer, 0, buffer.length);
+        assertEquals(buffer.length, bytesRead);
+        assertEquals(buffer.length, stream.getPosition());
+
+        // move the base stream and seek back to the same position
+        ms.setPosition(0);
+        stream.setPosition(buffer.length);
+        assertEquals(buffer.length, stream.getPosition());
+        bytesRead = stream.read(buffer, 0, buffer.length);
+        assertEquals(buffer.length, bytesRead);
+        assertArrayEquals(Arrays.copyOfRange(data, buffer.length, buffer.length * 2), buffer);
+        assertEquals(buffer.length * 2, stream.getPosition());
+        assertEquals(data.length, stream.getLength());
+        stream.close();
+    }
+
+    @Test
+    public void shouldDecryptStreamWithCachedHeader() throws Exception {
+        byte[] data = SalmonCoreTestHelper.getRandArray(100 * 1024 + 3);
+        byte[] encData = new Encryptor().encrypt(data,
+                SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, 32 * 1024);
+        MemoryStream ms = new MemoryStream(encData);
+        Header header = Header.readHeaderData(ms);
+        assertNotNull(header);
+        assertEquals(32 * 1024, header.getChunkSize());
+
+        AesStream stream = new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, header, ms,
+                true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+        assertEquals(data.length, stream.getLength());
+        MemoryStream outputStream = new MemoryStream();
+        stream.copyTo(outputStream);
+        stream.close();
+        assertArrayEquals(data, outputStream.toArray());
+    }
+
+    @Test
+    public void shouldCompressChunksAndSeek() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 300 * 1024; i++)
+            sb.append("{\"id\": ").append(i).append(", \"message\": \"request completed\"}\n");
+        byte[] text = sb.toString().getBytes(Charset.defaultCharset());
+        byte[] random = SalmonCoreTestHelper.getRandArray(100 * 1024 + 5);
+        for (byte[] data : new byte[][]{text, random}) {
+            MemoryStream ms = new MemoryStream();
+            AesCompressedStream encStream = new AesCompressedStream(SalmonCoreTestHelper.TEST_KEY_BYTES,
+                    SalmonCoreTestHelper.TEST_NONCE_BYTES, ms, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES,
+                    64 * 1024);
+            for (int pos = 0; pos < data.length; pos += 10000)
+                encStream.write(data, pos, Math.min(10000, data.length - pos));
+            encStream.close();
+            byte[] encData = ms.toArray();
+            Header header = Header.readHeaderData(new MemoryStream(encData));
+            assertEquals(Generator.COMPRESSED_VERSION, header.getVersion());
+            if (data == text)
+                assertTrue(encData.length < data.length / 4);
+
+            AesCompressedStream decStream = new AesCompressedStream(SalmonCoreTestHelper.TEST_KEY_BYTES,
+                    new MemoryStream(encData), true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+            assertEquals(data.length, decStream.getLength());
+            MemoryStream outputStream = new MemoryStream();
+            decStream.copyTo(outputStream);
+            assertArrayEquals(data, outputStream.toArray());
+
+            // random access decompresses only the chunk with the position
+            for (long pos : new long[]{data.length - 1, 64 * 1024 - 3, 5, 100 * 1024}) {
+                decStream.setPosition(pos);
+                byte[] buffer = new byte[10];
+                int bytesRead = decStream.read(buffer, 0, buffer.length);
+                assertEquals(Math.min(10, data.length - pos), bytesRead);
+                assertArrayEquals(Arrays.copyOfRange(data, (int) pos, (int) pos + bytesRead),
+                        Arrays.copyOf(buffer, bytesRead));
+            }
+            decStream.close();
+
+            encData[encData.length / 2] ^= 1;
+            boolean caught = false;
+            try {
+                AesCompressedStream stream = new AesCompressedStream(SalmonCoreTestHelper.TEST_KEY_BYTES,
+                        new MemoryStream(encData), true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+                stream.copyTo(new MemoryStream());
+            } catch (IntegrityException | IOException ex) {
+                caught = true;
+            }
+            assertTrue(caught);
+        }
+    }
+
+    @Test
+    public void shouldNotUseCompressedFormatOutsideCompressedStream() throws Exception {
+        byte[] data = SalmonCoreTestHelper.getRandArray(10 * 1024 + 3);
+        MemoryStream ms = new MemoryStream();
+        AesCompressedStream encStream = new AesCompressedStream(SalmonCoreTestHelper.TEST_KEY_BYTES,
+                SalmonCoreTestHelper.TEST_NONCE_BYTES, ms, false, null, 0);
+        encStream.write(data, 0, data.length);
+        encStream.close();
+        byte[] encData = ms.toArray();
+
+        // compressed data are not read as plain data
+        boolean caught = false;
+        try {
+            new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, null, EncryptionMode.Decrypt,
+                    new MemoryStream(encData), EncryptionFormat.Salmon);
+        } catch (SecurityException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+
+        caught = false;
+        try {
+            new Decryptor().decrypt(encData, SalmonCoreTestHelper.TEST_KEY_BYTES);
+        } catch (SecurityException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+
+        // the compressed format is only written by the compressed stream
+        caught = false;
+        try {
+            new AesStream(SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                    EncryptionMode.Encrypt, new MemoryStream(), EncryptionFormat.SalmonCompressed);
+        } catch (SecurityException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+
+        caught = false;
+        try {
+            new Encryptor().encrypt(data, SalmonCoreTestHelper.TEST_KEY_BYTES,
+                    SalmonCoreTestHelper.TEST_NONCE_BYTES, EncryptionFormat.SalmonCompressed);
+        } catch (SecurityException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+    }
+
+    @Test
+    public void shouldAppendToEncryptedStream() throws Exception {
+        for (boolean integrity : new boolean[]{false, true}) {
+            byte[] data = SalmonCoreTestHelper.getRandArray(10 * 1024 + 7);
+            byte[] appended = SalmonCoreTestHelper.getRandArray(5 * 1024 + 3);
+            byte[] encData = new Encryptor().encrypt(data,
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                    EncryptionFormat.Salmon, integrity, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, 4 * 1024);
+
+            MemoryStream ms = new MemoryStream();
+            ms.write(encData, 0, encData.length);
+            ms.setPosition(0);
+            AesAppendStream stream = new AesAppendStream(SalmonCoreTestHelper.TEST_KEY_BYTES,
+                    new MemoryStream(encData.clone()), ms, integrity, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+            assertEquals(data.length, stream.getLength());
+            stream.write(appended, 0, 1000);
+            stream.flush();
+            stream.write(appended, 1000, appended.length - 1000);
+            stream.close();
+            assertEquals(data.length + appended.length, stream.getLength());
+
+            // the existing full chunks are not written again
+            byte[] newEncData = ms.toArray();
+            int unchanged = integrity ? 2 * (4 * 1024 + Generator.HASH_RESULT_LENGTH) : 10 * 1024;
+            assertArrayEquals(Arrays.copyOf(encData, (int) Header.HEADER_LENGTH + unchanged),
+                    Arrays.copyOf(newEncData, (int) Header.HEADER_LENGTH + unchanged));
+
+            byte[] decData = new Decryptor().decrypt(newEncData,
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                    EncryptionFormat.Salmon, integrity, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+            byte[] expected = Arrays.copyOf(data, data.length + appended.length);
+            System.arraycopy(appended, 0, expected, data.length, appended.length);
+            assertArrayEquals(expected, decData);
+
+            // appending the same data to a fresh copy produces the same output since the keystream continues
+            byte[] fullEncData = new Encryptor().encrypt(expected,
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                    EncryptionFormat.Salmon, integrity, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, 4 * 1024);
+            assertArrayEquals(fullEncData, newEncData);
+        }
+    }
+
+    @Test
+    public void shouldEncryptAndDecryptSmallPayloads() throws Exception {
+        Encryptor encryptor = new Encryptor();
+        Decryptor decryptor = new Decryptor();
+        int[] sizes = new int[]{0, 1, 15, 16, 17, 1000, Integrity.DEFAULT_CHUNK_SIZE};
+        for (int size : sizes) {
+            byte[] data = SalmonCoreTestHelper.getRandArray(size);
+            for (boolean integrity : new boolean[]{false, true}) {
+                byte[] encData = encryptor.encrypt(data,
+                        SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                        EncryptionFormat.Salmon, integrity, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+
+                // the stream path must produce the same output
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                encryptor.encrypt(new ByteArrayInputStream(data), outputStream,
+                        SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                        EncryptionFormat.Salmon, integrity, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES, 0);
+                assertArrayEquals(outputStream.toByteArray(), encData);
+
+                byte[] decData = decryptor.decrypt(encData,
+                        SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                        EncryptionFormat.Salmon, integrity, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+                assertArrayEquals(data, decData);
+            }
+        }
+
+        // small and large payloads fail with the same exceptions
+        for (int size : new int[]{100, 3 * Integrity.DEFAULT_CHUNK_SIZE}) {
+            byte[] encData = encryptor.encrypt(SalmonCoreTestHelper.getRandArray(size),
+                    SalmonCoreTestHelper.TEST_KEY_BYTES, SalmonCoreTestHelper.TEST_NONCE_BYTES,
+                    EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+            encData[encData.length - 1] ^= 1;
+            boolean caught = false;
+            try {
+                decryptor.decrypt(encData,
+                        SalmonCoreTestHelper.TEST_KEY_BYTES, null,
+                        EncryptionFormat.Salmon, true, SalmonCoreTestHelper.TEST_HMAC_KEY_BYTES);
+            } catch (SecurityException ex) {
+                if (ex.getCause() instanceof IOException
+                        && ex.getCause().getCause() instanceof IntegrityException)
+                    caught = true;
+            }
+            assertTrue(caught);
+        }
+    }
 }
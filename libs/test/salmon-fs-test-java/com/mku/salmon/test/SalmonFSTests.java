@@ -35,9 +35,20 @@ import com.mku.salmonfs.auth.AuthException;
 import com.mku.salmonfs.drive.AesDrive;
 import com.mku.salmonfs.drive.Drive;
 import com.mku.salmonfs.drive.utils.AesFileCommander;
+import com.mku.salmonfs.drive.utils.AesFileComparators;
+import com.mku.salmonfs.drive.utils.AesFileContentIndex;
+import com.mku.salmonfs.drive.utils.AesFileImporter;
+import com.mku.salmonfs.drive.utils.AesFileSearchIndex;
+import com.mku.salmonfs.drive.utils.AesFileWalker;
+import com.mku.salmonfs.file.AesDirectoryStream;
 import com.mku.salmonfs.file.AesFile;
+import com.mku.salmonfs.file.AesFileMetadata;
+import com.mku.salmonfs.file.AesPack;
+import com.mku.salmonfs.file.AesPackEntry;
 import com.mku.salmonfs.sequence.FileSequencer;
 import com.mku.salmonfs.streams.AesFileInputStream;
+import com.mku.streams.MemoryStream;
+import com.mku.streams.RandomAccessStream;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -48,6 +59,11 @@ import java.nio.charset.Charset;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -455,6 +471,609 @@ public class SalmonFSTests {
         assertFalse(wrongPassword);
     }
 
+    @Test
+    public void shouldCacheDecryptedFilenames() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesFile rootDir = drive.getRoot();
+        AesFile dir = rootDir.createDirectory("folder1");
+        AesFile file = dir.createFile("file1.txt");
+        String realName = file.getRealFile().getName();
+        assertEquals("file1.txt", drive.getCachedFilename(realName));
+
+        // new instances are resolved from the drive cache
+        AesFile child = dir.getChild("file1.txt");
+        assertNotNull(child);
+        assertEquals("/folder1/file1.txt", child.getPath());
+
+        drive.setFilenameCacheSize(0);
+        assertNull(drive.getCachedFilename(realName));
+        assertEquals("file1.txt", new AesFile(file.getRealFile(), drive).getName());
+        drive.close();
+    }
+
+    @Test
+    public void shouldResolveCachedVirtualPaths() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesFile rootDir = drive.getRoot();
+        AesFile dir = rootDir.createDirectory("folder1");
+        AesFile subdir = dir.createDirectory("folder2");
+        AesFile file = subdir.createFile("file1.txt");
+
+        AesFile resolved = drive.getFileByPath("/folder1/folder2/file1.txt");
+        assertNotNull(resolved);
+        assertEquals(file.getRealFile().getDisplayPath(), resolved.getRealFile().getDisplayPath());
+        assertEquals("/folder1/folder2/file1.txt",
+                drive.getCachedVirtualPath(resolved.getRealFile().getDisplayPath()));
+        assertNull(drive.getFileByPath("/folder1/missing.txt"));
+
+        // renaming a directory invalidates the paths under it
+        dir.rename("folder3");
+        assertNull(drive.getFileByPath("/folder1/folder2/file1.txt"));
+        resolved = drive.getFileByPath("/folder3/folder2/file1.txt");
+        assertNotNull(resolved);
+        assertEquals("/folder3/folder2/file1.txt", resolved.getPath());
+
+        // a new file with the same virtual name replaces the cached one
+        resolved.delete();
+        assertNull(drive.getFileByPath("/folder3/folder2/file1.txt"));
+        AesFile newFile = drive.getFileByPath("/folder3/folder2").createFile("file1.txt");
+        resolved = drive.getFileByPath("/folder3/folder2/file1.txt");
+        assertEquals(newFile.getRealFile().getDisplayPath(), resolved.getRealFile().getDisplayPath());
+        drive.close();
+    }
+
+    @Test
+    public void shouldLookupChildrenWithDirectoryIndex() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        drive.setDirectoryIndexEnabled(true);
+        AesFile rootDir = drive.getRoot();
+        AesFile dir = rootDir.createDirectory("folder1");
+        for (int i = 0; i < 10; i++)
+            dir.createFile("file" + i + ".txt");
+        assertEquals(10, dir.listFiles().length);
+        assertEquals(10, dir.getChildrenCount());
+
+        AesFile file = dir.getChild("file5.txt");
+        assertNotNull(file);
+        assertEquals("file5.txt", file.getName());
+
+        // a missing name is answered from the index without rebuilding it
+        drive.flushDirectoryIndexes();
+        assertNull(dir.getChild("missing.txt"));
+        assertFalse(drive.getDirectoryIndex(dir.getRealFile()).isDirty());
+
+        file.rename("renamed.txt");
+        assertNull(dir.getChild("file5.txt"));
+        assertNotNull(dir.getChild("renamed.txt"));
+        dir.getChild("file6.txt").delete();
+        assertNull(dir.getChild("file6.txt"));
+
+        // files copied into a directory with a loaded index are found
+        AesFile copyDir = rootDir.createDirectory("folder2");
+        assertNull(copyDir.getChild("file7.txt"));
+        dir.getChild("file7.txt").copy(copyDir);
+        assertNotNull(copyDir.getChild("file7.txt"));
+
+        // the index is written and reloaded when the drive is reopened
+        drive.close();
+        drive = SalmonFSTestHelper.openDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        drive.setDirectoryIndexEnabled(true);
+        dir = drive.getRoot().getChild("folder1");
+        assertNotNull(dir.getChild("renamed.txt"));
+        assertNotNull(dir.getChild("file9.txt"));
+        assertEquals(9, drive.getDirectoryIndex(dir.getRealFile()).size());
+
+        // files added without the index are picked up when the index is rebuilt
+        drive.setDirectoryIndexEnabled(false);
+        dir.createFile("unindexed.txt");
+        drive.close();
+        drive = SalmonFSTestHelper.openDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        drive.setDirectoryIndexEnabled(true);
+        dir = drive.getRoot().getChild("folder1");
+        assertNotNull(dir.getChild("unindexed.txt"));
+        drive.close();
+    }
+
+    @Test
+    public void shouldListFilesWithMetadata() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesFile dir = drive.getRoot().createDirectory("folder1");
+        dir.createDirectory("subfolder");
+        for (int i = 0; i < 20; i++) {
+            AesFile file = dir.createFile("file" + i + ".txt");
+            byte[] data = SalmonCoreTestHelper.getRandArray(i * 100);
+            RandomAccessStream stream = file.getOutputStream();
+            stream.write(data, 0, data.length);
+            stream.flush();
+            stream.close();
+        }
+
+        dir.getRealFile().createFile("tampered");
+
+        AesFileMetadata[] entries = dir.listFilesWithMetadata(8);
+        assertEquals(22, entries.length);
+        for (AesFileMetadata entry : entries) {
+            if (entry.getFile().getRealFile().getName().equals("tampered")) {
+                assertNull(entry.getName());
+                assertNotNull(entry.getError());
+                continue;
+            }
+            assertNull(entry.getError());
+            assertNotNull(entry.getName());
+            assertEquals(entry.getFile().getName(), entry.getName());
+            assertEquals(entry.getFile().getLastDateModified(), entry.getLastDateModified());
+            if (entry.getName().equals("subfolder")) {
+                assertTrue(entry.isDirectory());
+            } else {
+                assertFalse(entry.isDirectory());
+                int i = Integer.parseInt(entry.getName().replace("file", "").replace(".txt", ""));
+                assertEquals(i * 100, entry.getLength());
+                assertEquals(entry.getFile().getLength(), entry.getLength());
+            }
+        }
+        drive.close();
+    }
+
+    @Test
+    public void shouldSortFilesWithPrecomputedKeys() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesFile dir = drive.getRoot().createDirectory("folder1");
+        dir.createDirectory("subfolder");
+        for (int i = 0; i < 20; i++) {
+            AesFile file = dir.createFile("file" + ((i * 7) % 20) + ".txt");
+            byte[] data = SalmonCoreTestHelper.getRandArray(((i * 3) % 20) * 100);
+            RandomAccessStream stream = file.getOutputStream();
+            stream.write(data, 0, data.length);
+            stream.flush();
+            stream.close();
+        }
+
+        AesFile[] files = dir.listFiles();
+        for (AesFileComparators.SortType type : AesFileComparators.SortType.values()) {
+            if (type == AesFileComparators.SortType.Relevance)
+                continue;
+            Comparator<AesFile> comparator = getComparator(type);
+            AesFile[] expected = files.clone();
+            Arrays.sort(expected, comparator);
+            AesFile[] sorted = AesFileComparators.sort(files, type, 4);
+            assertEquals(expected.length, sorted.length);
+            for (int i = 0; i < sorted.length; i++)
+                assertEquals(0, comparator.compare(expected[i], sorted[i]));
+        }
+        drive.close();
+    }
+
+    private static Comparator<AesFile> getComparator(AesFileComparators.SortType type) {
+        switch (type) {
+            case FilenameAsc:
+                return AesFileComparators.getFilenameAscComparator();
+            case FilenameDesc:
+                return AesFileComparators.getFilenameDescComparator();
+            case SizeAsc:
+                return AesFileComparators.getSizeAscComparator();
+            case SizeDesc:
+                return AesFileComparators.getSizeDescComparator();
+            case TypeAsc:
+                return AesFileComparators.getTypeAscComparator();
+            case TypeDesc:
+                return AesFileComparators.getTypeDescComparator();
+            case DateAsc:
+                return AesFileComparators.getDateAscComparator();
+            case DateDesc:
+                return AesFileComparators.getDateDescComparator();
+            default:
+                return AesFileComparators.getDefaultComparator();
+        }
+    }
+
+    @Test
+    public void shouldSearchWithFilenameIndex() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesFile rootDir = drive.getRoot();
+        AesFile docs = rootDir.createDirectory("Documents");
+        docs.createFile("Report2024.txt");
+        rootDir.createFile("notes.txt");
+
+        // the index is built from the existing files when it is first used
+        drive.setSearchIndexEnabled(true);
+        AesFileSearchIndex index = drive.getSearchIndex();
+        assertEquals(3, index.size());
+        List<AesFileSearchIndex.Result> results = index.search("report", 0);
+        assertEquals(1, results.size());
+        assertEquals("/Documents/Report2024.txt", results.get(0).getPath());
+        assertEquals("Report2024.txt", results.get(0).getFile().getName());
+
+        // changes are applied to the index
+        AesFile archive = rootDir.createDirectory("Archive");
+        AesFile report = docs.getChild("Report2024.txt");
+        report.rename("Summary2024.txt");
+        assertEquals(0, index.search("report", 0).size());
+        report = docs.getChild("Summary2024.txt");
+        report.move(archive);
+        results = index.search("summary", 0);
+        assertEquals(1, results.size());
+        assertEquals("/Archive/Summary2024.txt", results.get(0).getPath());
+        assertEquals(1, index.search("2024", 0).size());
+        rootDir.getChild("notes.txt").delete();
+        assertEquals(0, index.search("notes", 0).size());
+        archive.deleteRecursively();
+        assertEquals(0, index.search("summary", 0).size());
+        assertEquals(1, index.size());
+
+        // the index is written and reloaded when the drive is reopened
+        drive.getRoot().getChild("Documents").createFile("budget.xls");
+        drive.close();
+        drive = SalmonFSTestHelper.openDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        drive.setSearchIndexEnabled(true);
+        results = drive.getSearchIndex().search("BUDGET", 0);
+        assertEquals(1, results.size());
+        assertEquals("/Documents/budget.xls", results.get(0).getPath());
+        assertNotNull(results.get(0).getFile());
+        drive.close();
+    }
+
+    @Test
+    public void shouldSearchAfterMovingIntoNewDirectory() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesFile rootDir = drive.getRoot();
+        AesFile docs = rootDir.createDirectory("Documents");
+        docs.createFile("Report2024.txt");
+        drive.setSearchIndexEnabled(true);
+        AesFileSearchIndex index = drive.getSearchIndex();
+
+        // a directory indexed before its new parent is moved into it
+        AesFile archive = rootDir.createDirectory("Archive");
+        docs.move(archive);
+        List<AesFileSearchIndex.Result> results = index.search("report", 0);
+        assertEquals(1, results.size());
+        assertEquals("/Archive/Documents/Report2024.txt", results.get(0).getPath());
+
+        // removing the new parent removes the moved entries
+        index.remove(archive.getRealFile().getDisplayPath());
+        assertEquals(0, index.search("report", 0).size());
+        assertEquals(0, index.search("documents", 0).size());
+        assertEquals(0, index.size());
+        drive.close();
+    }
+
+    @Test
+    public void shouldSearchImportedFileContents() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        IFile sourceDir = SalmonFSTestHelper.generateFolder("content_import");
+        IFile logFile = sourceDir.getChild("server.log");
+        SalmonFSTestHelper.createFile(logFile, "Connection refused by upstream host\nRetrying connection");
+        IFile dataFile = sourceDir.getChild("data.bin");
+        SalmonFSTestHelper.createFile(dataFile, "connection refused");
+
+        AesFileImporter importer = new AesFileImporter();
+        importer.setContentIndexEnabled(true);
+        AesFile dir = drive.getRoot().createDirectory("logs");
+        AesFile importedLog = importer.importFile(logFile, dir);
+        importer.importFile(SalmonFSTestHelper.TEST_IMPORT_TINY_FILE, dir);
+        importer.importFile(dataFile, dir);
+        importer.close();
+
+        // binary files are not indexed
+        AesFileContentIndex index = drive.getContentIndex();
+        assertEquals(2, index.size());
+        List<AesFile> results = index.search("Connection REFUSED", 0);
+        assertEquals(1, results.size());
+        assertEquals("server.log", results.get(0).getName());
+        assertEquals(1, index.search("encryption", 0).size());
+        assertEquals(0, index.search("connection encryption", 0).size());
+
+        // the index follows renamed and deleted files
+        importedLog.rename("client.log");
+        results = index.search("upstream", 0);
+        assertEquals(1, results.size());
+        assertEquals("client.log", results.get(0).getName());
+
+        // the index is written and reloaded when the drive is reopened
+        drive.close();
+        drive = SalmonFSTestHelper.openDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        results = drive.getContentIndex().search("retrying", 0);
+        assertEquals(1, results.size());
+        results.get(0).delete();
+        assertEquals(0, drive.getContentIndex().search("retrying", 0).size());
+        assertEquals(1, drive.getContentIndex().size());
+        drive.close();
+    }
+
+    @Test
+    public void shouldWalkDirectoriesInParallel() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesFile rootDir = drive.getRoot();
+        for (int i = 0; i < 3; i++) {
+            AesFile dir = rootDir.createDirectory("dir" + i);
+            AesFile subdir = dir.createDirectory("subdir");
+            for (int j = 0; j < 4; j++)
+                subdir.createFile("file" + j + ".txt");
+            dir.createFile("file.txt");
+        }
+
+        List<String> unordered = Collections.synchronizedList(new ArrayList<>());
+        AesFileWalker.walk(rootDir, (file) -> {
+            unordered.add(file.getPath());
+            return true;
+        }, 4);
+        // 3 dirs with a subdir, a file, and 4 files in the subdir
+        assertEquals(3 * 7, unordered.size());
+
+        List<String> ordered = new ArrayList<>();
+        AesFileWalker.walk(rootDir, (file) -> {
+            ordered.add(file.getPath());
+            return !file.getName().equals("subdir");
+        }, 4, true);
+        assertEquals(3 * 3, ordered.size());
+        for (int i = 0; i < ordered.size(); i++) {
+            // each directory is followed by its contents
+            if (ordered.get(i).matches("/dir[0-9]")) {
+                assertTrue(ordered.get(i + 1).startsWith(ordered.get(i) + "/"));
+                assertTrue(ordered.get(i + 2).startsWith(ordered.get(i) + "/"));
+            }
+        }
+        assertTrue(unordered.containsAll(ordered));
+
+        boolean caught = false;
+        try {
+            AesFileWalker.walk(rootDir, (file) -> {
+                throw new Exception("Stop");
+            }, 2);
+        } catch (IOException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+
+        // the visitor is not running anymore when the walk returns with an error
+        AtomicInteger visiting = new AtomicInteger();
+        caught = false;
+        try {
+            AesFileWalker.walk(rootDir, (file) -> {
+                visiting.incrementAndGet();
+                try {
+                    if (file.getName().equals("file.txt"))
+                        throw new Exception("Stop");
+                    Thread.sleep(50);
+                    return true;
+                } finally {
+                    visiting.decrementAndGet();
+                }
+            }, 4);
+        } catch (IOException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+        assertEquals(0, visiting.get());
+        drive.close();
+    }
+
+    @Test
+    public void shouldIterateDirectoryStream() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        drive.setDirectoryIndexEnabled(true);
+        AesFile dir = drive.getRoot().createDirectory("folder1");
+        dir.createDirectory("subfolder");
+        for (int i = 0; i < 25; i++)
+            dir.createFile("file" + i + ".txt");
+        drive.flushDirectoryIndexes();
+        drive.setFilenameCacheSize(0);
+
+        ArrayList<String> names = new ArrayList<>();
+        int dirs = 0;
+        AesDirectoryStream stream = dir.openDirectoryStream(10);
+        for (AesDirectoryStream.Entry entry : stream) {
+            names.add(entry.getName());
+            if (entry.isDirectory())
+                dirs++;
+            assertEquals(entry.getName(), entry.getFile().getName());
+        }
+        stream.close();
+        // the directory index file is not listed
+        assertEquals(26, names.size());
+        assertEquals(1, dirs);
+        assertTrue(names.contains("subfolder"));
+        assertTrue(names.contains("file24.txt"));
+
+        boolean caught = false;
+        try {
+            stream.iterator();
+        } catch (IllegalStateException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+        drive.close();
+    }
+
+    @Test
+    public void shouldTranscodeFilesToAnotherDrive() throws Exception {
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive sourceDrive = SalmonFSTestHelper.createDrive(
+                SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME),
+                SalmonFSTestHelper.driveClassType, SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesDrive targetDrive = SalmonFSTestHelper.createDrive(
+                SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME + "_target"),
+                SalmonFSTestHelper.driveClassType, SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        targetDrive.setDefaultFileChunkSize(64 * 1024);
+        AesFile dir = sourceDrive.getRoot().createDirectory("folder1");
+        byte[] data = SalmonCoreTestHelper.getRandArray(300 * 1024 + 17);
+        AesFile file = dir.createFile("data.dat");
+        file.setApplyIntegrity(true);
+        RandomAccessStream stream = file.getOutputStream();
+        stream.write(data, 0, data.length);
+        stream.flush();
+        stream.close();
+
+        for (int threads : new int[]{1, 3}) {
+            AesFile targetDir = targetDrive.getRoot().createDirectory("target" + threads);
+            AesFile transcoded = dir.transcodeTo(targetDir, threads);
+            assertEquals("folder1", transcoded.getName());
+            AesFile targetFile = transcoded.getChild("data.dat");
+            assertNotNull(targetFile);
+            assertEquals(64 * 1024, targetFile.getFileChunkSize());
+            assertFalse(Arrays.equals(file.getFileNonce(), targetFile.getFileNonce()));
+            targetFile.setVerifyIntegrity(true);
+            MemoryStream ms = new MemoryStream();
+            AesStream inputStream = targetFile.getInputStream();
+            inputStream.copyTo(ms);
+            inputStream.close();
+            assertArrayEquals(data, ms.toArray());
+        }
+
+        // the verification setting of the source is not changed
+        AesFile source = dir.getChild("data.dat");
+        assertFalse(source.isIntegrityEnabled());
+        source.transcodeTo(targetDrive.getRoot());
+        assertFalse(source.isIntegrityEnabled());
+
+        // a directory cannot be transcoded into itself
+        AesFile nested = dir.createDirectory("nested");
+        boolean caught = false;
+        try {
+            dir.transcodeTo(nested);
+        } catch (IOException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+        assertEquals(0, nested.listFiles().length);
+        sourceDrive.close();
+        targetDrive.close();
+    }
+
+    @Test
+    public void shouldAppendToFile() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesFile file = drive.getRoot().createFile("log.txt");
+        file.setApplyIntegrity(true);
+        byte[] data = SalmonCoreTestHelper.getRandArray(100 * 1024 + 11);
+        RandomAccessStream stream = file.getOutputStream();
+        stream.write(data, 0, data.length);
+        stream.flush();
+        stream.close();
+
+        byte[] appended = SalmonCoreTestHelper.getRandArray(300 * 1024 + 5);
+        file = drive.getRoot().getChild("log.txt");
+        byte[] nonce = file.getFileNonce();
+        stream = file.getAppendStream();
+        stream.write(appended, 0, appended.length);
+        stream.close();
+        assertArrayEquals(nonce, file.getFileNonce());
+        assertEquals(data.length + appended.length, file.getLength());
+
+        file.setVerifyIntegrity(true);
+        MemoryStream ms = new MemoryStream();
+        AesStream inputStream = file.getInputStream();
+        inputStream.copyTo(ms);
+        inputStream.close();
+        byte[] expected = Arrays.copyOf(data, data.length + appended.length);
+        System.arraycopy(appended, 0, expected, data.length, appended.length);
+        assertArrayEquals(expected, ms.toArray());
+
+        // the header read above is not used after the file is written with a new nonce
+        byte[] rewritten = SalmonCoreTestHelper.getRandArray(expected.length);
+        file.setAllowOverwrite(true);
+        stream = file.getOutputStream(drive.getNextNonce());
+        stream.write(rewritten, 0, rewritten.length);
+        stream.close();
+        assertFalse(Arrays.equals(nonce, file.getFileNonce()));
+        ms = new MemoryStream();
+        inputStream = file.getInputStream();
+        inputStream.copyTo(ms);
+        inputStream.close();
+        assertArrayEquals(rewritten, ms.toArray());
+        drive.close();
+    }
+
+    @Test
+    public void shouldStoreFilesInPack() throws Exception {
+        IFile vaultDir = SalmonFSTestHelper.generateFolder(SalmonFSTestHelper.TEST_VAULT_DIRNAME);
+        FileSequencer sequencer = SalmonFSTestHelper.createSalmonFileSequencer();
+        AesDrive drive = SalmonFSTestHelper.createDrive(vaultDir, SalmonFSTestHelper.driveClassType,
+                SalmonCoreTestHelper.TEST_PASSWORD, sequencer);
+        AesPack pack = AesPack.create(drive.getRoot(), "thumbnails.pack");
+        pack.setMaxPendingBytes(8 * 1024);
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] data = SalmonCoreTestHelper.getRandArray(100 + i * 7);
+            contents.add(data);
+            pack.addEntry("thumb" + i + ".png", data);
+        }
+        pack.close();
+        assertEquals(1, drive.getRoot().listFiles().length);
+
+        pack = AesPack.open(drive.getRoot().getChild("thumbnails.pack"));
+        assertEquals(100, pack.size());
+        for (int i = 0; i < 100; i++)
+            assertArrayEquals(contents.get(i), pack.getEntry("thumb" + i + ".png").getBytes());
+
+        pack.getEntry("thumb0.png").rename("renamed.png");
+        for (int i = 1; i < 50; i++)
+            pack.getEntry("thumb" + i + ".png").delete();
+        boolean caught = false;
+        try {
+            pack.getEntry("thumb50.png").rename("thumb51.png");
+        } catch (IOException ex) {
+            caught = true;
+        }
+        assertTrue(caught);
+        pack.close();
+        assertTrue(pack.getUnusedSpace() > 0);
+
+        // a file left by an earlier compaction does not block the compaction
+        AesFile leftover = drive.getRoot().createFile("thumbnails.pack.compact");
+        pack.compact();
+        assertEquals(0, pack.getUnusedSpace());
+        assertEquals(2, drive.getRoot().listFiles().length);
+        assertTrue(leftover.exists());
+        assertArrayEquals(contents.get(0), pack.getEntry("renamed.png").getBytes());
+        leftover.delete();
+
+        pack = AesPack.open(drive.getRoot().getChild("thumbnails.pack"));
+        assertEquals(51, pack.size());
+        assertNull(pack.getEntry("thumb0.png"));
+        assertNull(pack.getEntry("thumb1.png"));
+        assertArrayEquals(contents.get(0), pack.getEntry("renamed.png").getBytes());
+        for (int i = 50; i < 100; i++)
+            assertArrayEquals(contents.get(i), pack.getEntry("thumb" + i + ".png").getBytes());
+        drive.close();
+    }
+
     @Test
     public void shouldCreateFileSequencer() throws IOException {
         SalmonFSTestHelper.shouldTestFileSequencer();